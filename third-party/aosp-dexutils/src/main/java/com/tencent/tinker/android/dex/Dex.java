@@ -28,8 +28,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.AbstractList;
@@ -63,6 +66,8 @@ public final class Dex {
     private ByteBuffer data;
     private int nextSectionStart = 0;
     private byte[] signature = null;
+    private volatile String[] decodedStrings = null;
+    private volatile String[] decodedTypeNames = null;
 
     /**
      * Creates a new dex that reads from {@code data}. It is an error to modify
@@ -154,6 +159,40 @@ public final class Dex {
         }
     }
 
+    /**
+     * Creates a new empty dex of the specified size whose bytes are mapped onto
+     * {@code dexOut}. Data written into the returned dex goes straight to the file,
+     * call {@link #flush()} once the dex is complete.
+     */
+    public static Dex createMapped(File dexOut, int byteCount) throws IOException {
+        RandomAccessFile raf = null;
+        boolean isMapped = false;
+        try {
+            raf = new RandomAccessFile(dexOut, "rw");
+            raf.setLength(byteCount);
+            Dex dex = new Dex(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, byteCount));
+            isMapped = true;
+            return dex;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (Exception e) {
+                    // ignored.
+                }
+            }
+            if (!isMapped) {
+                dexOut.delete();
+            }
+        }
+    }
+
+    private Dex(MappedByteBuffer data) {
+        this.data = data;
+        this.data.order(ByteOrder.LITTLE_ENDIAN);
+        this.tableOfContents.fileSize = data.capacity();
+    }
+
     private static void checkBounds(int index, int length) {
         if (index < 0 || index >= length) {
             throw new IndexOutOfBoundsException("index:" + index + ", length=" + length);
@@ -172,11 +211,31 @@ public final class Dex {
     }
 
     public void writeTo(OutputStream out) throws IOException {
-        byte[] rawData = data.array();
-        out.write(rawData);
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset(), data.capacity());
+        } else {
+            ByteBuffer buffer = data.duplicate();
+            buffer.clear();
+            byte[] chunk = new byte[Math.min(buffer.remaining(), 64 * 1024)];
+            while (buffer.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), chunk.length);
+                buffer.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
         out.flush();
     }
 
+    /**
+     * Forces the content of a dex created by {@link #createMapped(File, int)}
+     * out to its file. It is a no-op for dex in heap.
+     */
+    public void flush() {
+        if (data instanceof MappedByteBuffer && !data.isReadOnly()) {
+            ((MappedByteBuffer) data).force();
+        }
+    }
+
     public void writeTo(File dexOut) throws IOException {
         OutputStream out = null;
         try {
@@ -268,6 +327,24 @@ public final class Dex {
         return strings;
     }
 
+    /**
+     * Keeps every string and type name decoded by {@link #strings()} and {@link #typeNames()},
+     * so looking up the same index again costs an array access instead of a MUTF-8 decode.
+     * The cache holds at most one string per string id and one reference per type id.
+     *
+     * <b>Only enable it on a dex that won't be written anymore.</b>
+     */
+    public void enableStringCache() {
+        if (decodedStrings == null) {
+            synchronized (this) {
+                if (decodedStrings == null) {
+                    decodedTypeNames = new String[tableOfContents.typeIds.size];
+                    decodedStrings = new String[tableOfContents.stringIds.size];
+                }
+            }
+        }
+    }
+
     public List<Integer> typeIds() {
         return typeIds;
     }
@@ -881,8 +958,17 @@ public final class Dex {
     private final class StringTable extends AbstractList<String> implements RandomAccess {
         @Override public String get(int index) {
             checkBounds(index, tableOfContents.stringIds.size);
+            // Racing decodes of the same index store equal immutable strings, no lock needed.
+            final String[] cache = decodedStrings;
+            if (cache != null && cache[index] != null) {
+                return cache[index];
+            }
             int stringOff = openSection(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM)).readInt();
-            return openSection(stringOff).readStringData().value;
+            String value = openSection(stringOff).readStringData().value;
+            if (cache != null) {
+                cache[index] = value;
+            }
+            return value;
         }
         @Override public int size() {
             return tableOfContents.stringIds.size;
@@ -902,7 +988,15 @@ public final class Dex {
     private final class TypeIndexToDescriptorTable extends AbstractList<String>
             implements RandomAccess {
         @Override public String get(int index) {
-            return strings.get(descriptorIndexFromTypeIndex(index));
+            final String[] cache = decodedTypeNames;
+            if (cache != null && index >= 0 && index < cache.length && cache[index] != null) {
+                return cache[index];
+            }
+            String value = strings.get(descriptorIndexFromTypeIndex(index));
+            if (cache != null) {
+                cache[index] = value;
+            }
+            return value;
         }
         @Override public int size() {
             return tableOfContents.typeIds.size;
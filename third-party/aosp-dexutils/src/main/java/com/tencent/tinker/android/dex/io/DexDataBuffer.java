@@ -35,10 +35,10 @@ import com.tencent.tinker.android.dex.ProtoId;
 import com.tencent.tinker.android.dex.SizeOf;
 import com.tencent.tinker.android.dex.StringData;
 import com.tencent.tinker.android.dex.TypeList;
+import com.tencent.tinker.android.dex.util.ByteArrayOutput;
 import com.tencent.tinker.android.dex.util.ByteInput;
 import com.tencent.tinker.android.dex.util.ByteOutput;
 
-import java.io.ByteArrayOutputStream;
 import java.io.UTFDataFormatException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -58,6 +58,13 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
     private int dataBound;
     private boolean isResizeAllowed;
 
+    /**
+     * Scratch space reused by {@link #readDebugInfoItem()} so that reading a debug info
+     * section does not allocate a fresh stream for every item. Buffers are not shared
+     * between threads, so no synchronization is needed here.
+     */
+    private ByteArrayOutput debugInfoScratch;
+
     public DexDataBuffer() {
         this.data = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
         this.data.order(ByteOrder.LITTLE_ENDIAN);
@@ -317,82 +324,67 @@ public class DexDataBuffer implements ByteInput, ByteOutput {
             parameterNames[i] = readUleb128p1();
         }
 
-        ByteArrayOutputStream baos = null;
-
-        try {
-            baos = new ByteArrayOutputStream(64);
-
-            final ByteArrayOutputStream baosRef = baos;
+        ByteArrayOutput out = debugInfoScratch;
+        if (out == null) {
+            out = new ByteArrayOutput(64);
+            debugInfoScratch = out;
+        } else {
+            out.reset();
+        }
 
-            ByteOutput outAdapter = new ByteOutput() {
-                @Override
-                public void writeByte(int i) {
-                    baosRef.write(i);
-                }
-            };
-
-            outside_whileloop:
-                while (true) {
-                    int opcode = readByte();
-                    baos.write(opcode);
-                    switch (opcode) {
-                        case DebugInfoItem.DBG_END_SEQUENCE: {
-                            break outside_whileloop;
-                        }
-                        case DebugInfoItem.DBG_ADVANCE_PC: {
-                            int addrDiff = readUleb128();
-                            Leb128.writeUnsignedLeb128(outAdapter, addrDiff);
-                            break;
-                        }
-                        case DebugInfoItem.DBG_ADVANCE_LINE: {
-                            int lineDiff = readSleb128();
-                            Leb128.writeSignedLeb128(outAdapter, lineDiff);
-                            break;
-                        }
-                        case DebugInfoItem.DBG_START_LOCAL:
-                        case DebugInfoItem.DBG_START_LOCAL_EXTENDED: {
-                            int registerNum = readUleb128();
-                            Leb128.writeUnsignedLeb128(outAdapter, registerNum);
-                            int nameIndex = readUleb128p1();
-                            Leb128.writeUnsignedLeb128p1(outAdapter, nameIndex);
-                            int typeIndex = readUleb128p1();
-                            Leb128.writeUnsignedLeb128p1(outAdapter, typeIndex);
-                            if (opcode == DebugInfoItem.DBG_START_LOCAL_EXTENDED) {
-                                int sigIndex = readUleb128p1();
-                                Leb128.writeUnsignedLeb128p1(outAdapter, sigIndex);
-                            }
-                            break;
-                        }
-                        case DebugInfoItem.DBG_END_LOCAL:
-                        case DebugInfoItem.DBG_RESTART_LOCAL: {
-                            int registerNum = readUleb128();
-                            Leb128.writeUnsignedLeb128(outAdapter, registerNum);
-                            break;
-                        }
-                        case DebugInfoItem.DBG_SET_FILE: {
-                            int nameIndex = readUleb128p1();
-                            Leb128.writeUnsignedLeb128p1(outAdapter, nameIndex);
-                            break;
-                        }
-                        case DebugInfoItem.DBG_SET_PROLOGUE_END:
-                        case DebugInfoItem.DBG_SET_EPILOGUE_BEGIN:
-                        default: {
-                            break;
+        outside_whileloop:
+            while (true) {
+                int opcode = readByte();
+                out.writeByte(opcode);
+                switch (opcode) {
+                    case DebugInfoItem.DBG_END_SEQUENCE: {
+                        break outside_whileloop;
+                    }
+                    case DebugInfoItem.DBG_ADVANCE_PC: {
+                        int addrDiff = readUleb128();
+                        Leb128.writeUnsignedLeb128(out, addrDiff);
+                        break;
+                    }
+                    case DebugInfoItem.DBG_ADVANCE_LINE: {
+                        int lineDiff = readSleb128();
+                        Leb128.writeSignedLeb128(out, lineDiff);
+                        break;
+                    }
+                    case DebugInfoItem.DBG_START_LOCAL:
+                    case DebugInfoItem.DBG_START_LOCAL_EXTENDED: {
+                        int registerNum = readUleb128();
+                        Leb128.writeUnsignedLeb128(out, registerNum);
+                        int nameIndex = readUleb128p1();
+                        Leb128.writeUnsignedLeb128p1(out, nameIndex);
+                        int typeIndex = readUleb128p1();
+                        Leb128.writeUnsignedLeb128p1(out, typeIndex);
+                        if (opcode == DebugInfoItem.DBG_START_LOCAL_EXTENDED) {
+                            int sigIndex = readUleb128p1();
+                            Leb128.writeUnsignedLeb128p1(out, sigIndex);
                         }
+                        break;
+                    }
+                    case DebugInfoItem.DBG_END_LOCAL:
+                    case DebugInfoItem.DBG_RESTART_LOCAL: {
+                        int registerNum = readUleb128();
+                        Leb128.writeUnsignedLeb128(out, registerNum);
+                        break;
+                    }
+                    case DebugInfoItem.DBG_SET_FILE: {
+                        int nameIndex = readUleb128p1();
+                        Leb128.writeUnsignedLeb128p1(out, nameIndex);
+                        break;
+                    }
+                    case DebugInfoItem.DBG_SET_PROLOGUE_END:
+                    case DebugInfoItem.DBG_SET_EPILOGUE_BEGIN:
+                    default: {
+                        break;
                     }
-                }
-
-            byte[] infoSTM = baos.toByteArray();
-            return new DebugInfoItem(off, lineStart, parameterNames, infoSTM);
-        } finally {
-            if (baos != null) {
-                try {
-                    baos.close();
-                } catch (Exception e) {
-                    // Do nothing.
                 }
             }
-        }
+
+        byte[] infoSTM = out.toByteArray();
+        return new DebugInfoItem(off, lineStart, parameterNames, infoSTM);
     }
 
     public ClassData readClassData() {
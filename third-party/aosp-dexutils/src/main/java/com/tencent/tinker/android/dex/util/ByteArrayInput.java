@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.android.dex.util;
+
+/**
+ * *** This file is NOT a part of AOSP. ***
+ * A byte source reading from a plain array.
+ *
+ * The backing array is not copied and the cursor can be moved to another array with
+ * {@link #reset(byte[])}. Instances are not thread-safe.
+ */
+public final class ByteArrayInput implements ByteInput {
+    private byte[] buf;
+    private int pos;
+
+    public ByteArrayInput(byte[] buf) {
+        reset(buf);
+    }
+
+    public void reset(byte[] buf) {
+        this.buf = buf;
+        this.pos = 0;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public int available() {
+        return buf.length - pos;
+    }
+
+    @Override
+    public byte readByte() {
+        if (pos >= buf.length) {
+            throw new IndexOutOfBoundsException("pos: " + pos + ", length: " + buf.length);
+        }
+        return buf[pos++];
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.android.dex.util;
+
+import java.util.Arrays;
+
+/**
+ * *** This file is NOT a part of AOSP. ***
+ * A growable byte sink backed by a plain array.
+ *
+ * Unlike {@link java.io.ByteArrayOutputStream} it is not synchronized and can be
+ * {@link #reset()} and reused, so callers that encode many small items can keep
+ * one instance as scratch space instead of allocating a stream plus an adapter per item.
+ * Instances are not thread-safe.
+ */
+public final class ByteArrayOutput implements ByteOutput {
+    private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+
+    private byte[] buf;
+    private int count;
+
+    public ByteArrayOutput() {
+        this(64);
+    }
+
+    public ByteArrayOutput(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("negative capacity: " + initialCapacity);
+        }
+        this.buf = new byte[initialCapacity];
+        this.count = 0;
+    }
+
+    @Override
+    public void writeByte(int i) {
+        if (count == buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(16, buf.length << 1));
+        }
+        buf[count++] = (byte) i;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Returns a copy of the bytes written since the last {@link #reset()}.
+     */
+    public byte[] toByteArray() {
+        if (count == 0) {
+            return EMPTY_BYTE_ARRAY;
+        }
+        return Arrays.copyOf(buf, count);
+    }
+}
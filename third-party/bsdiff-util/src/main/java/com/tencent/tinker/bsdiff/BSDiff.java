@@ -37,7 +37,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Java Binary Diff utility. Based on bsdiff (v4.2) by Colin Percival (see http://www.daemonology.net/bsdiff/ ) and distributed under BSD license.
@@ -47,185 +53,16 @@ public class BSDiff {
 
     //private static final String VERSION = "jbdiff-0.1.0.1";
 
-    // This is
-    private static final byte[] MAGIC_BYTES = new byte[]{0x4D, 0x69, 0x63,
-        0x72, 0x6F, 0x4D, 0x73, 0x67};
-
-    private static void split(int[] arrayI, int[] arrayV, int start, int len, int h) {
-
-        int i, j, k, x, tmp, jj, kk;
-
-        if (len < 16) {
-            for (k = start; k < start + len; k += j) {
-                j = 1;
-                x = arrayV[arrayI[k] + h];
-                for (i = 1; k + i < start + len; i++) {
-                    if (arrayV[arrayI[k + i] + h] < x) {
-                        x = arrayV[arrayI[k + i] + h];
-                        j = 0;
-                    }
-
-                    if (arrayV[arrayI[k + i] + h] == x) {
-                        tmp = arrayI[k + j];
-                        arrayI[k + j] = arrayI[k + i];
-                        arrayI[k + i] = tmp;
-                        j++;
-                    }
-
-                }
-
-                for (i = 0; i < j; i++) {
-                    arrayV[arrayI[k + i]] = k + j - 1;
-                }
-                if (j == 1) {
-                    arrayI[k] = -1;
-                }
-            }
-
-            return;
-        }
-
-        x = arrayV[arrayI[start + len / 2] + h];
-        jj = 0;
-        kk = 0;
-        for (i = start; i < start + len; i++) {
-            if (arrayV[arrayI[i] + h] < x) {
-                jj++;
-            }
-            if (arrayV[arrayI[i] + h] == x) {
-                kk++;
-            }
-        }
-
-        jj += start;
-        kk += jj;
-
-        i = start;
-        j = 0;
-        k = 0;
-        while (i < jj) {
-            if (arrayV[arrayI[i] + h] < x) {
-                i++;
-            } else if (arrayV[arrayI[i] + h] == x) {
-                tmp = arrayI[i];
-                arrayI[i] = arrayI[jj + j];
-                arrayI[jj + j] = tmp;
-                j++;
-            } else {
-                tmp = arrayI[i];
-                arrayI[i] = arrayI[kk + k];
-                arrayI[kk + k] = tmp;
-                k++;
-            }
-
-        }
-
-        while (jj + j < kk) {
-            if (arrayV[arrayI[jj + j] + h] == x) {
-                j++;
-            } else {
-                tmp = arrayI[jj + j];
-                arrayI[jj + j] = arrayI[kk + k];
-                arrayI[kk + k] = tmp;
-                k++;
-            }
-
-        }
-
-        if (jj > start) {
-            split(arrayI, arrayV, start, jj - start, h);
-        }
-
-        for (i = 0; i < kk - jj; i++) {
-            arrayV[arrayI[jj + i]] = kk - 1;
-        }
-
-        if (jj == kk - 1) {
-            arrayI[jj] = -1;
-        }
-
-        if (start + len > kk) {
-            split(arrayI, arrayV, kk, start + len - kk, h);
-        }
-
-    }
-
     /**
-     * Fast suffix sporting. Larsson and Sadakane's qsufsort algorithm. See
-     * http://www.cs.lth.se/Research/Algorithms/Papers/jesper5.ps
+     * SA-IS builds the suffix array in linear time, qsufsort is kept as {@link QSufSortSuffixSorter#INSTANCE}.
+     * Both produce the same suffix array, so patches are identical whichever one is used.
      */
-    private static void qsufsort(int[] arrayI, int[] arrayV, byte[] oldBuf, int oldsize) {
-
-        // int oldsize = oldBuf.length;
-        int[] buckets = new int[256];
-
-        // No need to do that in Java.
-        // for ( int i = 0; i < 256; i++ ) {
-        // buckets[i] = 0;
-        // }
-
-        for (int i = 0; i < oldsize; i++) {
-            buckets[oldBuf[i] & 0xff]++;
-        }
-
-        for (int i = 1; i < 256; i++) {
-            buckets[i] += buckets[i - 1];
-        }
-
-        for (int i = 255; i > 0; i--) {
-            buckets[i] = buckets[i - 1];
-        }
-
-        buckets[0] = 0;
-
-        for (int i = 0; i < oldsize; i++) {
-            arrayI[++buckets[oldBuf[i] & 0xff]] = i;
-        }
-
-        arrayI[0] = oldsize;
-        for (int i = 0; i < oldsize; i++) {
-            arrayV[i] = buckets[oldBuf[i] & 0xff];
-        }
-        arrayV[oldsize] = 0;
-
-        for (int i = 1; i < 256; i++) {
-            if (buckets[i] == buckets[i - 1] + 1) {
-                arrayI[buckets[i]] = -1;
-            }
-        }
-
-        arrayI[0] = -1;
-
-        for (int h = 1; arrayI[0] != -(oldsize + 1); h += h) {
-            int len = 0;
-            int i;
-            for (i = 0; i < oldsize + 1;) {
-                if (arrayI[i] < 0) {
-                    len -= arrayI[i];
-                    i -= arrayI[i];
-                } else {
-                    // if(len) I[i-len]=-len;
-                    if (len != 0) {
-                        arrayI[i - len] = -len;
-                    }
-                    len = arrayV[arrayI[i]] + 1 - i;
-                    split(arrayI, arrayV, i, len, h);
-                    i += len;
-                    len = 0;
-                }
-
-            }
-
-            if (len != 0) {
-                arrayI[i - len] = -len;
-            }
-        }
-
-        for (int i = 0; i < oldsize + 1; i++) {
-            arrayI[arrayV[i]] = i;
-        }
-    }
+    public static final SuffixSorter DEFAULT_SUFFIX_SORTER = SAISSuffixSorter.INSTANCE;
 
+    /**
+     * Regions smaller than this are not worth a separate task when scanning in parallel.
+     */
+    private static final int MIN_PARALLEL_REGION_SIZE = 256 * 1024;
 
     /**
      * 分别将 oldBufd[start..oldSize] 和 oldBufd[end..oldSize] 与  newBuf[newBufOffset...newSize] 进行匹配，
@@ -294,11 +131,15 @@ public class BSDiff {
 
 
     public static void bsdiff(File oldFile, File newFile, File diffFile) throws IOException {
+        bsdiff(oldFile, newFile, diffFile, new Options());
+    }
+
+    public static void bsdiff(File oldFile, File newFile, File diffFile, Options options) throws IOException {
         InputStream oldInputStream = new BufferedInputStream(new FileInputStream(oldFile));
         InputStream newInputStream = new BufferedInputStream(new FileInputStream(newFile));
         OutputStream diffOutputStream = new FileOutputStream(diffFile);
         try {
-            byte[] diffBytes = bsdiff(oldInputStream, (int) oldFile.length(), newInputStream, (int) newFile.length());
+            byte[] diffBytes = bsdiff(oldInputStream, (int) oldFile.length(), newInputStream, (int) newFile.length(), options);
             diffOutputStream.write(diffBytes);
         } finally {
             diffOutputStream.close();
@@ -307,6 +148,11 @@ public class BSDiff {
 
 
     public static byte[] bsdiff(InputStream oldInputStream, int oldsize, InputStream newInputStream, int newsize) throws IOException {
+        return bsdiff(oldInputStream, oldsize, newInputStream, newsize, new Options());
+    }
+
+
+    public static byte[] bsdiff(InputStream oldInputStream, int oldsize, InputStream newInputStream, int newsize, Options options) throws IOException {
 
         byte[] oldBuf = new byte[oldsize];
 
@@ -317,65 +163,175 @@ public class BSDiff {
         BSUtil.readFromStream(newInputStream, newBuf, 0, newsize);
         newInputStream.close();
 
-        return bsdiff(oldBuf, oldsize, newBuf, newsize);
+        return bsdiff(oldBuf, oldsize, newBuf, newsize, options);
     }
 
 
     public static byte[] bsdiff(byte[] oldBuf, int oldsize, byte[] newBuf, int newsize) throws IOException {
+        return bsdiff(oldBuf, oldsize, newBuf, newsize, new Options());
+    }
 
-        int[] arrayI = new int[oldsize + 1];
-        qsufsort(arrayI, new int[oldsize + 1], oldBuf, oldsize);
 
-        // diff block
-        int diffBLockLen = 0;
-        byte[] diffBlock = new byte[newsize];
+    /**
+     * Same as {@link #bsdiff(byte[], int, byte[], int)}, with the suffix sorter, parallelism and
+     * block codec taken from options, see {@link Options}.
+     */
+    public static byte[] bsdiff(byte[] oldBuf, int oldsize, byte[] newBuf, int newsize, Options options) throws IOException {
+        final BlockCodec codec = options.codec;
 
-        // extra block
-        int extraBlockLen = 0;
-        byte[] extraBlock = new byte[newsize];
+        final int[] arrayI = options.suffixSorter.buildSuffixArray(oldBuf, oldsize);
+
+        DiffRegion[] regions = scanRegions(arrayI, oldBuf, oldsize, newBuf, newsize, options.parallelism, options.executor);
 
         /*
          * Diff file is composed as follows:
          *
-         * Header (32 bytes) Data (from offset 32 to end of file)
-         *
-         * Header:
-         * Offset 0, length 8 bytes: file magic "MicroMsg"
-         * Offset 8, length 8 bytes: length of compressed ctrl block
-         * Offset 16, length 8 bytes: length of compressed diff block
-         * Offset 24, length 8 bytes: length of new file
+         * Header (32 or 40 bytes, see BSHeader) Data (from the end of header to end of file)
          *
          * Data:
-         * 32 (length ctrlBlockLen): ctrlBlock (bzip2)
-         * 32 + ctrlBlockLen (length diffBlockLen): diffBlock (bzip2)
-         * 32 + ctrlBlockLen + diffBlockLen (to end of file): extraBlock (bzip2)
+         * headerSize (length ctrlBlockLen): ctrlBlock (compressed)
+         * headerSize + ctrlBlockLen (length diffBlockLen): diffBlock (compressed)
+         * headerSize + ctrlBlockLen + diffBlockLen (to end of file): extraBlock (compressed)
          *
          * ctrlBlock comprises a set of records, each record 12 bytes.
-         * A record comprises 3 x 32 bit integers. The ctrlBlock is not compressed.
+         * A record comprises 3 x 32 bit integers.
          */
 
         ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
         DataOutputStream diffOut = new DataOutputStream(byteOut);
 
         // Write as much of header as we have now. Size of ctrlBlock and diffBlock must be filled in later.
-        diffOut.write(MAGIC_BYTES);
-        diffOut.writeLong(-1); // place holder for ctrlBlockLen
-        diffOut.writeLong(-1); // place holder for diffBlockLen
-        diffOut.writeLong(newsize);
+        BSHeader header = BSHeader.create(-1, -1, newsize, codec, codec, codec);
+        header.write(diffOut);
         diffOut.flush();
+        int headerSize = header.size();
 
-        GZIPOutputStream bzip2Out = new GZIPOutputStream(diffOut);
+        OutputStream bzip2Out = codec.compress(diffOut);
         DataOutputStream dataOut = new DataOutputStream(bzip2Out);
 
+        for (int r = 0; r < regions.length; r++) {
+            DiffRegion region = regions[r];
+            if (r + 1 < regions.length && region.ctrlLen > 0) {
+                // Seek to the old position the next region was scanned from.
+                region.ctrl[region.ctrlLen - 1] += regions[r + 1].firstpos - region.lastpos;
+            }
+            for (int i = 0; i < region.ctrlLen; i++) {
+                dataOut.writeInt(region.ctrl[i]);
+            }
+        }
+
+        dataOut.flush();
+        codec.finish(bzip2Out);
+
+        // now compressed ctrlBlockLen
+        int ctrlBlockLen = diffOut.size() - headerSize;
+
+        /*
+         * Write diff block
+         */
+        bzip2Out = codec.compress(diffOut);
+        for (DiffRegion region : regions) {
+            bzip2Out.write(region.diffBlock, 0, region.diffBlockLen);
+        }
+        codec.finish(bzip2Out);
+        int diffBlockLen = diffOut.size() - ctrlBlockLen - headerSize;
+        // System.err.println( "Diff: diffBlockLen=" + diffBlockLen );
+
+        /*
+         * Write extra block
+         */
+        bzip2Out = codec.compress(diffOut);
+        for (DiffRegion region : regions) {
+            bzip2Out.write(region.extraBlock, 0, region.extraBlockLen);
+        }
+        codec.finish(bzip2Out);
+
+        diffOut.close();
+
+        /*
+         * Write missing header info.
+         */
+        ByteArrayOutputStream byteHeaderOut = new ByteArrayOutputStream(headerSize);
+        DataOutputStream headerOut = new DataOutputStream(byteHeaderOut);
+        BSHeader.create(ctrlBlockLen, diffBlockLen, newsize, codec, codec, codec).write(headerOut);
+        headerOut.close();
+
+        // Copy header information into the diff
+        byte[] diffBytes = byteOut.toByteArray();
+        byte[] headerBytes = byteHeaderOut.toByteArray();
+
+        System.arraycopy(headerBytes, 0, diffBytes, 0, headerBytes.length);
+
+        return diffBytes;
+    }
+
+    private static DiffRegion[] scanRegions(final int[] arrayI, final byte[] oldBuf, final int oldsize, final byte[] newBuf, int newsize,
+                                            int parallelism, ExecutorService executor) throws IOException {
+        int regionCount = Math.max(1, Math.min(parallelism, newsize / MIN_PARALLEL_REGION_SIZE));
+        if (regionCount == 1) {
+            return new DiffRegion[]{scanRegion(arrayI, oldBuf, oldsize, newBuf, 0, newsize)};
+        }
+
+        List<Callable<DiffRegion>> tasks = new ArrayList<>(regionCount);
+        for (int r = 0; r < regionCount; r++) {
+            final int start = (int) ((long) newsize * r / regionCount);
+            final int end = (int) ((long) newsize * (r + 1) / regionCount);
+            tasks.add(new Callable<DiffRegion>() {
+                @Override
+                public DiffRegion call() throws Exception {
+                    return scanRegion(arrayI, oldBuf, oldsize, newBuf, start, end);
+                }
+            });
+        }
+
+        ExecutorService pool = executor != null ? executor : new ForkJoinPool(regionCount);
+        try {
+            List<Future<DiffRegion>> futures = pool.invokeAll(tasks);
+            DiffRegion[] regions = new DiffRegion[regionCount];
+            for (int r = 0; r < regionCount; r++) {
+                regions[r] = futures.get(r).get();
+            }
+            return regions;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning bsdiff regions.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to scan bsdiff regions.", e.getCause());
+        } finally {
+            if (pool != executor) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Runs the bsdiff match search over newBuf[start...end), treating it as a standalone new file.
+     */
+    private static DiffRegion scanRegion(int[] arrayI, byte[] oldBuf, int oldsize, byte[] newBuf, int start, int end) {
+        // The search below never looks past the end of the region.
+        int newsize = end;
+
+        DiffRegion region = new DiffRegion(end - start);
+        region.firstpos = Math.min(start, oldsize);
+
+        // diff block
+        int diffBLockLen = 0;
+        byte[] diffBlock = region.diffBlock;
+
+        // extra block
+        int extraBlockLen = 0;
+        byte[] extraBlock = region.extraBlock;
+
         int oldscore, scsc;
 
         int overlap, ss, lens;
         int i;
-        int scan = 0;
+        int scan = start;
         int matchLen = 0;
-        int lastscan = 0;
-        int lastpos = 0;
-        int lastoffset = 0;
+        int lastscan = start;
+        // Assume the region is aligned with the same offset of the old file to begin with.
+        int lastpos = Math.min(start, oldsize);
+        int lastoffset = lastpos - lastscan;
 
         IntByRef pos = new IntByRef();
         // int ctrlBlockLen = 0;
@@ -468,9 +424,9 @@ public class BSDiff {
                 extraBlockLen += (scan - lenb) - (lastscan + lenFromOld);
 
                 // Write control block entry (3 x int)
-                dataOut.writeInt(lenFromOld);  // oldBuf
-                dataOut.writeInt((scan - lenb) - (lastscan + lenFromOld));  // diffBufextraBlock
-                dataOut.writeInt((pos.value - lenb) - (lastpos + lenFromOld));  // oldBuf
+                region.addCtrl(lenFromOld,  // oldBuf
+                    (scan - lenb) - (lastscan + lenFromOld),  // diffBufextraBlock
+                    (pos.value - lenb) - (lastpos + lenFromOld));  // oldBuf
 
                 lastscan = scan - lenb;
                 lastpos = pos.value - lenb;
@@ -478,52 +434,10 @@ public class BSDiff {
             } // end if
         } // end while loop
 
-        dataOut.flush();
-        bzip2Out.finish();
-
-        // now compressed ctrlBlockLen
-        int ctrlBlockLen = diffOut.size() - BSUtil.HEADER_SIZE;
-
-        // GZIPOutputStream gzOut;
-
-        /*
-         * Write diff block
-         */
-        bzip2Out = new GZIPOutputStream(diffOut);
-        bzip2Out.write(diffBlock, 0, diffBLockLen);
-        bzip2Out.finish();
-        bzip2Out.flush();
-        int diffBlockLen = diffOut.size() - ctrlBlockLen - BSUtil.HEADER_SIZE;
-        // System.err.println( "Diff: diffBlockLen=" + diffBlockLen );
-
-        /*
-         * Write extra block
-         */
-        bzip2Out = new GZIPOutputStream(diffOut);
-        bzip2Out.write(extraBlock, 0, extraBlockLen);
-        bzip2Out.finish();
-        bzip2Out.flush();
-
-        diffOut.close();
-
-        /*
-         * Write missing header info.
-         */
-        ByteArrayOutputStream byteHeaderOut = new ByteArrayOutputStream(BSUtil.HEADER_SIZE);
-        DataOutputStream headerOut = new DataOutputStream(byteHeaderOut);
-        headerOut.write(MAGIC_BYTES);
-        headerOut.writeLong(ctrlBlockLen); // place holder for ctrlBlockLen
-        headerOut.writeLong(diffBlockLen); // place holder for diffBlockLen
-        headerOut.writeLong(newsize);
-        headerOut.close();
-
-        // Copy header information into the diff
-        byte[] diffBytes = byteOut.toByteArray();
-        byte[] headerBytes = byteHeaderOut.toByteArray();
-
-        System.arraycopy(headerBytes, 0, diffBytes, 0, headerBytes.length);
-
-        return diffBytes;
+        region.diffBlockLen = diffBLockLen;
+        region.extraBlockLen = extraBlockLen;
+        region.lastpos = lastpos;
+        return region;
     }
 
     //    /**
@@ -544,7 +458,84 @@ public class BSDiff {
     //
     //    }
 
+    /**
+     * How {@link BSDiff} builds a patch, the defaults give the same output as the original bsdiff.
+     */
+    public static final class Options {
+        private SuffixSorter    suffixSorter = DEFAULT_SUFFIX_SORTER;
+        private int             parallelism  = 1;
+        private BlockCodec      codec        = BlockCodec.GZIP;
+        private ExecutorService executor;
+
+        public Options setSuffixSorter(SuffixSorter suffixSorter) {
+            this.suffixSorter = suffixSorter;
+            return this;
+        }
+
+        /**
+         * Splits the new file into at most parallelism regions and searches them for matches concurrently
+         * once the suffix array is built. Each region is scanned as if it were a standalone new file and the
+         * control records are stitched together, so the result is still a plain patch that {@link BSPatch}
+         * applies. The regions share the buffers of the serial scan, so this costs no extra memory.
+         *
+         * With {@code parallelism <= 1} the output is exactly the same as the serial version. Otherwise
+         * the patch may be slightly larger, since matches can not cross region boundaries.
+         */
+        public Options setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Compresses the ctrl, diff and extra blocks with codec. Anything other than {@link BlockCodec#GZIP}
+         * is written with a version 2 header (see {@link BSHeader}) and needs a BSPatch which knows about that codec.
+         */
+        public Options setCodec(BlockCodec codec) {
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Runs the region scans on executor, which is left running, instead of a pool of their own.
+         * It must not be the executor the diff itself runs on, or the diff may wait for itself.
+         */
+        public Options setExecutor(ExecutorService executor) {
+            this.executor = executor;
+            return this;
+        }
+    }
+
     private static class IntByRef {
         private int value;
     }
+
+    /**
+     * Control records, diff and extra bytes generated for one region of the new file.
+     */
+    private static class DiffRegion {
+        private final byte[] diffBlock;
+        private final byte[] extraBlock;
+        private int diffBlockLen;
+        private int extraBlockLen;
+        private int[] ctrl = new int[3 * 16];
+        private int ctrlLen;
+        private int firstpos;
+        private int lastpos;
+
+        DiffRegion(int size) {
+            diffBlock = new byte[size];
+            extraBlock = new byte[size];
+        }
+
+        void addCtrl(int x, int y, int z) {
+            if (ctrlLen + 3 > ctrl.length) {
+                int[] newCtrl = new int[ctrl.length * 2];
+                System.arraycopy(ctrl, 0, newCtrl, 0, ctrlLen);
+                ctrl = newCtrl;
+            }
+            ctrl[ctrlLen++] = x;
+            ctrl[ctrlLen++] = y;
+            ctrl[ctrlLen++] = z;
+        }
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.bsdiff;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Header of a bsdiff file.
+ *
+ * Version 1, all blocks are gzip compressed:
+ * Offset 0, length 8 bytes: file magic "MicroMsg"
+ * Offset 8, length 8 bytes: length of compressed ctrl block
+ * Offset 16, length 8 bytes: length of compressed diff block
+ * Offset 24, length 8 bytes: length of new file
+ *
+ * Version 2, the codec of each block is recorded:
+ * Offset 0, length 8 bytes: file magic "TinkerBS"
+ * Offset 8, length 8 bytes: length of compressed ctrl block
+ * Offset 16, length 8 bytes: length of compressed diff block
+ * Offset 24, length 8 bytes: length of new file
+ * Offset 32, length 1 byte: header version, 2
+ * Offset 33, length 1 byte: codec id of ctrl block
+ * Offset 34, length 1 byte: codec id of diff block
+ * Offset 35, length 1 byte: codec id of extra block
+ * Offset 36, length 4 bytes: reserved, 0
+ */
+final class BSHeader {
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+
+    static final int HEADER_SIZE_V2 = 40;
+
+    private static final byte[] MAGIC_V1 = new byte[]{0x4D, 0x69, 0x63,
+        0x72, 0x6F, 0x4D, 0x73, 0x67};
+
+    private static final byte[] MAGIC_V2 = new byte[]{0x54, 0x69, 0x6E,
+        0x6B, 0x65, 0x72, 0x42, 0x53};
+
+    final int version;
+    final long ctrlBlockLen;
+    final long diffBlockLen;
+    final int newsize;
+    final BlockCodec ctrlCodec;
+    final BlockCodec diffCodec;
+    final BlockCodec extraCodec;
+
+    BSHeader(int version, long ctrlBlockLen, long diffBlockLen, int newsize, BlockCodec ctrlCodec, BlockCodec diffCodec, BlockCodec extraCodec) {
+        this.version = version;
+        this.ctrlBlockLen = ctrlBlockLen;
+        this.diffBlockLen = diffBlockLen;
+        this.newsize = newsize;
+        this.ctrlCodec = ctrlCodec;
+        this.diffCodec = diffCodec;
+        this.extraCodec = extraCodec;
+    }
+
+    /**
+     * Patches which only use gzip keep the version 1 header, so older BSPatch can still apply them.
+     */
+    static BSHeader create(long ctrlBlockLen, long diffBlockLen, int newsize, BlockCodec ctrlCodec, BlockCodec diffCodec, BlockCodec extraCodec) {
+        boolean allGzip = (ctrlCodec == BlockCodec.GZIP && diffCodec == BlockCodec.GZIP && extraCodec == BlockCodec.GZIP);
+        return new BSHeader(allGzip ? VERSION_1 : VERSION_2, ctrlBlockLen, diffBlockLen, newsize, ctrlCodec, diffCodec, extraCodec);
+    }
+
+    int size() {
+        return (version == VERSION_1 ? BSUtil.HEADER_SIZE : HEADER_SIZE_V2);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.write(version == VERSION_1 ? MAGIC_V1 : MAGIC_V2);
+        out.writeLong(ctrlBlockLen);
+        out.writeLong(diffBlockLen);
+        out.writeLong(newsize);
+        if (version != VERSION_1) {
+            out.writeByte(version);
+            out.writeByte(ctrlCodec.getId());
+            out.writeByte(diffCodec.getId());
+            out.writeByte(extraCodec.getId());
+            out.writeInt(0);
+        }
+    }
+
+    /**
+     * Files without the version 2 magic are read as version 1, as BSPatch never checked the magic before.
+     */
+    static BSHeader read(InputStream in) throws IOException {
+        DataInputStream headerIn = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC_V2.length];
+        headerIn.readFully(magic);
+        long ctrlBlockLen = headerIn.readLong();
+        long diffBlockLen = headerIn.readLong();
+        int newsize = (int) headerIn.readLong();
+        if (!Arrays.equals(magic, MAGIC_V2)) {
+            return new BSHeader(VERSION_1, ctrlBlockLen, diffBlockLen, newsize, BlockCodec.GZIP, BlockCodec.GZIP, BlockCodec.GZIP);
+        }
+        int version = headerIn.readUnsignedByte();
+        if (version != VERSION_2) {
+            throw new IOException("unsupported bsdiff header version: " + version);
+        }
+        BlockCodec ctrlCodec = BlockCodec.get(headerIn.readUnsignedByte());
+        BlockCodec diffCodec = BlockCodec.get(headerIn.readUnsignedByte());
+        BlockCodec extraCodec = BlockCodec.get(headerIn.readUnsignedByte());
+        headerIn.readInt();
+        return new BSHeader(VERSION_2, ctrlBlockLen, diffBlockLen, newsize, ctrlCodec, diffCodec, extraCodec);
+    }
+}
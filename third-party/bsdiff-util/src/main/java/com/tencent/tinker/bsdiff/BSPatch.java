@@ -35,11 +35,13 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.util.zip.GZIPInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 /**
@@ -69,145 +71,315 @@ public class BSPatch {
 
     /**
      * BSPatch using less memory size.
-     * Memory size = diffFile size + max block size
+     * Memory size = a few fixed size buffers, see {@link #patchStream(RandomAccessFile, File, File)}.
      *
+     * oldFile is closed when this method returns.
      */
     public static int patchLessMemory(RandomAccessFile oldFile, File newFile, File diffFile, int extLen) throws IOException {
-        if (oldFile == null || oldFile.length() <= 0) {
-            return RETURN_OLD_FILE_ERR;
-        }
-        if (newFile == null) {
-            return RETURN_NEW_FILE_ERR;
-        }
-        if (diffFile == null || diffFile.length() <= 0) {
-            return RETURN_DIFF_FILE_ERR;
-        }
-
-        byte[] diffBytes = new byte[(int) diffFile.length()];
-        InputStream diffInputStream = new FileInputStream(diffFile);
         try {
-            BSUtil.readFromStream(diffInputStream, diffBytes, 0, diffBytes.length);
+            return patchStream(oldFile, newFile, diffFile);
         } finally {
-            diffInputStream.close();
+            if (oldFile != null) {
+                oldFile.close();
+            }
         }
-        return patchLessMemory(oldFile, (int) oldFile.length(), diffBytes, diffBytes.length, newFile, extLen);
     }
 
     /**
      * BSPatch using less memory size.
-     * Memory size = diffFile size + max block size
+     * Memory size = diffFile size + a few fixed size buffers
      * extLen   the length of the apk external info. set 0 if has no external info.
+     *
+     * oldFile is closed when this method returns.
      */
     public static int patchLessMemory(RandomAccessFile oldFile, int oldsize, byte[] diffBuf, int diffSize, File newFile, int extLen) throws IOException {
+        InputStream ctrlBlockIn = null;
+        InputStream diffBlockIn = null;
+        InputStream extraBlockIn = null;
+        try {
+            if (oldFile == null || oldsize <= 0) {
+                return RETURN_OLD_FILE_ERR;
+            }
+            if (newFile == null) {
+                return RETURN_NEW_FILE_ERR;
+            }
+            if (diffBuf == null || diffSize <= 0) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+
+            BSHeader header = BSHeader.read(new ByteArrayInputStream(diffBuf, 0, diffSize));
+            if (!isBlockLenValid(header, diffSize)) {
+                return RETURN_DIFF_FILE_ERR;
+            }
+
+            ctrlBlockIn = openBlock(header.ctrlCodec, diffBuf, header.size(), header.ctrlBlockLen);
+            diffBlockIn = openBlock(header.diffCodec, diffBuf, header.size() + header.ctrlBlockLen, header.diffBlockLen);
+            extraBlockIn = openBlock(header.extraCodec, diffBuf, header.size() + header.ctrlBlockLen + header.diffBlockLen,
+                diffSize - header.size() - header.ctrlBlockLen - header.diffBlockLen);
+
+            return patchStream(oldFile.getChannel(), oldsize, ctrlBlockIn, diffBlockIn, extraBlockIn, header.newsize, newFile);
+        } finally {
+            closeQuietly(ctrlBlockIn);
+            closeQuietly(diffBlockIn);
+            closeQuietly(extraBlockIn);
+            if (oldFile != null) {
+                oldFile.close();
+            }
+        }
+    }
 
-        if (oldFile == null || oldsize <= 0) {
+    /**
+     * Streaming patch, neither the diff file nor the old or new file is loaded into memory.
+     * Memory size = a few fixed size buffers
+     */
+    public static int patchStream(File oldFile, File newFile, File diffFile) throws IOException {
+        if (oldFile == null || oldFile.length() <= 0) {
+            return RETURN_OLD_FILE_ERR;
+        }
+        RandomAccessFile oldRaf = new RandomAccessFile(oldFile, "r");
+        try {
+            return patchStream(oldRaf, newFile, diffFile);
+        } finally {
+            oldRaf.close();
+        }
+    }
+
+    /**
+     * Streaming patch, neither the diff file nor the old or new file is loaded into memory.
+     * Memory size = a few fixed size buffers
+     *
+     * The old file is read with positional reads, the ctrl, diff and extra blocks are
+     * inflated by three independent streams over the diff file and the new file is
+     * written out through a fixed size buffer. oldFile is not closed by this method.
+     */
+    public static int patchStream(RandomAccessFile oldFile, File newFile, File diffFile) throws IOException {
+        if (oldFile == null || oldFile.length() <= 0) {
             return RETURN_OLD_FILE_ERR;
         }
         if (newFile == null) {
             return RETURN_NEW_FILE_ERR;
         }
-        if (diffBuf == null || diffSize <= 0) {
+        if (diffFile == null || diffFile.length() < BSUtil.HEADER_SIZE) {
             return RETURN_DIFF_FILE_ERR;
         }
 
-        // int commentLenPos = oldsize - extLen - 2;
-        // if (commentLenPos <= 2) {
-        //     return RETURN_OLD_FILE_ERR;
-        // }
-
-        DataInputStream diffIn = new DataInputStream(new ByteArrayInputStream(diffBuf, 0, diffSize));
-
-        diffIn.skip(8); // skip headerMagic at header offset 0 (length 8 bytes)
-        long ctrlBlockLen = diffIn.readLong(); // ctrlBlockLen after bzip2 compression at heater offset 8 (length 8 bytes)
-        long diffBlockLen = diffIn.readLong(); // diffBlockLen after bzip2 compression at header offset 16 (length 8 bytes)
-        int newsize = (int) diffIn.readLong(); // size of new file at header offset 24 (length 8 bytes)
-
-        diffIn.close();
+        long diffSize = diffFile.length();
+        BSHeader header;
+        InputStream headerIn = new FileInputStream(diffFile);
+        try {
+            header = BSHeader.read(headerIn);
+        } finally {
+            headerIn.close();
+        }
+        if (!isBlockLenValid(header, diffSize)) {
+            return RETURN_DIFF_FILE_ERR;
+        }
+        long ctrlBlockOffset = header.size();
+        long diffBlockOffset = ctrlBlockOffset + header.ctrlBlockLen;
+        long extraBlockOffset = diffBlockOffset + header.diffBlockLen;
 
-        InputStream in = new ByteArrayInputStream(diffBuf, 0, diffSize);
-        in.skip(BSUtil.HEADER_SIZE);
-        DataInputStream ctrlBlockIn = new DataInputStream(new GZIPInputStream(in));
+        InputStream ctrlBlockIn = null;
+        InputStream diffBlockIn = null;
+        InputStream extraBlockIn = null;
+        try {
+            ctrlBlockIn = header.ctrlCodec.decompress(openBlock(diffFile, ctrlBlockOffset, header.ctrlBlockLen));
+            diffBlockIn = header.diffCodec.decompress(openBlock(diffFile, diffBlockOffset, header.diffBlockLen));
+            extraBlockIn = header.extraCodec.decompress(openBlock(diffFile, extraBlockOffset, diffSize - extraBlockOffset));
+            return patchStream(oldFile.getChannel(), (int) oldFile.length(), ctrlBlockIn, diffBlockIn, extraBlockIn, header.newsize, newFile);
+        } finally {
+            closeQuietly(ctrlBlockIn);
+            closeQuietly(diffBlockIn);
+            closeQuietly(extraBlockIn);
+        }
+    }
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
-        in.skip(ctrlBlockLen + BSUtil.HEADER_SIZE);
-        InputStream diffBlockIn = new GZIPInputStream(in);
+    private static int patchStream(FileChannel oldChannel, int oldsize, InputStream ctrlBlockIn, InputStream diffBlockIn,
+                                   InputStream extraBlockIn, int newsize, File newFile) throws IOException {
+        DataInputStream ctrlIn = new DataInputStream(ctrlBlockIn);
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
-        in.skip(diffBlockLen + ctrlBlockLen + BSUtil.HEADER_SIZE);
-        InputStream extraBlockIn = new GZIPInputStream(in);
+        byte[] buffer = new byte[BSUtil.BUFFER_SIZE];
+        byte[] oldBuffer = new byte[BSUtil.BUFFER_SIZE];
+        ByteBuffer outBuffer = ByteBuffer.allocate(BSUtil.BUFFER_SIZE * 8);
 
-        OutputStream outStream = new FileOutputStream(newFile);
+        FileOutputStream outStream = new FileOutputStream(newFile);
         try {
+            FileChannel outChannel = outStream.getChannel();
             int oldpos = 0;
             int newpos = 0;
             int[] ctrl = new int[3];
 
-            // int nbytes;
             while (newpos < newsize) {
 
                 for (int i = 0; i <= 2; i++) {
-                    ctrl[i] = ctrlBlockIn.readInt();
+                    ctrl[i] = ctrlIn.readInt();
                 }
 
-                if (newpos + ctrl[0] > newsize) {
-                    outStream.close();
+                if (ctrl[0] < 0 || ctrl[1] < 0 || newpos + ctrl[0] > newsize) {
                     return RETURN_DIFF_FILE_ERR;
                 }
 
-                // Read ctrl[0] bytes from diffBlock stream
-                byte[] buffer = new byte[ctrl[0]];
-                if (!BSUtil.readFromStream(diffBlockIn, buffer, 0, ctrl[0])) {
-                    outStream.close();
-                    return RETURN_DIFF_FILE_ERR;
-                }
+                // Add ctrl[0] bytes from diffBlock stream to the old file, one buffer at a time
+                int remain = ctrl[0];
+                while (remain > 0) {
+                    int len = Math.min(remain, buffer.length);
+                    if (!BSUtil.readFromStream(diffBlockIn, buffer, 0, len)) {
+                        return RETURN_DIFF_FILE_ERR;
+                    }
 
-                byte[] oldBuffer = new byte[ctrl[0]];
-                if (oldFile.read(oldBuffer, 0, ctrl[0]) < ctrl[0]) {
-                    outStream.close();
-                    return RETURN_DIFF_FILE_ERR;
-                }
-                for (int i = 0; i < ctrl[0]; i++) {
-                    // if (oldpos + i == commentLenPos) {
-                    //     oldBuffer[i] = 0;
-                    //     oldBuffer[i + 1] = 0;
-                    // }
-
-                    if ((oldpos + i >= 0) && (oldpos + i < oldsize)) {
-                        buffer[i] += oldBuffer[i];
+                    int oldFrom = Math.max(oldpos, 0);
+                    int oldTo = (int) Math.min((long) oldpos + len, oldsize);
+                    if (oldFrom < oldTo) {
+                        if (!readFromChannel(oldChannel, oldFrom, oldBuffer, oldTo - oldFrom)) {
+                            return RETURN_OLD_FILE_ERR;
+                        }
+                        int delta = oldFrom - oldpos;
+                        for (int i = 0; i < oldTo - oldFrom; i++) {
+                            buffer[delta + i] += oldBuffer[i];
+                        }
                     }
-                }
-                outStream.write(buffer);
+                    write(outChannel, outBuffer, buffer, len);
 
-                newpos += ctrl[0];
-                oldpos += ctrl[0];
+                    remain -= len;
+                    newpos += len;
+                    oldpos += len;
+                }
 
                 if (newpos + ctrl[1] > newsize) {
-                    outStream.close();
                     return RETURN_DIFF_FILE_ERR;
                 }
 
-                buffer = new byte[ctrl[1]];
-                if (!BSUtil.readFromStream(extraBlockIn, buffer, 0, ctrl[1])) {
-                    outStream.close();
-                    return RETURN_DIFF_FILE_ERR;
+                // Copy ctrl[1] bytes from extraBlock stream
+                remain = ctrl[1];
+                while (remain > 0) {
+                    int len = Math.min(remain, buffer.length);
+                    if (!BSUtil.readFromStream(extraBlockIn, buffer, 0, len)) {
+                        return RETURN_DIFF_FILE_ERR;
+                    }
+                    write(outChannel, outBuffer, buffer, len);
+                    remain -= len;
                 }
-                outStream.write(buffer);
-                outStream.flush();
 
                 newpos += ctrl[1];
                 oldpos += ctrl[2];
-                oldFile.seek(oldpos);
             }
-            ctrlBlockIn.close();
-            diffBlockIn.close();
-            extraBlockIn.close();
+            flush(outChannel, outBuffer);
         } finally {
-            oldFile.close();
             outStream.close();
         }
         return RETURN_SUCCESS;
     }
 
+    private static boolean isBlockLenValid(BSHeader header, long diffSize) {
+        return header.ctrlBlockLen >= 0 && header.diffBlockLen >= 0
+            && header.size() + header.ctrlBlockLen + header.diffBlockLen <= diffSize;
+    }
+
+    private static InputStream openBlock(BlockCodec codec, byte[] diffBuf, long offset, long length) throws IOException {
+        return codec.decompress(new ByteArrayInputStream(diffBuf, (int) offset, (int) length));
+    }
+
+    private static InputStream openBlock(File diffFile, long offset, long length) throws IOException {
+        FileInputStream in = new FileInputStream(diffFile);
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BufferedInputStream(new BlockInputStream(in, length), BSUtil.BUFFER_SIZE);
+    }
+
+    private static boolean readFromChannel(FileChannel channel, long position, byte[] buf, int len) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buf, 0, len);
+        while (byteBuffer.hasRemaining()) {
+            int bytesRead = channel.read(byteBuffer, position + byteBuffer.position());
+            if (bytesRead < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer outBuffer, byte[] buf, int len) throws IOException {
+        if (outBuffer.remaining() < len) {
+            flush(channel, outBuffer);
+        }
+        outBuffer.put(buf, 0, len);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer outBuffer) throws IOException {
+        outBuffer.flip();
+        while (outBuffer.hasRemaining()) {
+            channel.write(outBuffer);
+        }
+        outBuffer.clear();
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // ignore
+        }
+    }
+
+    /**
+     * Reads at most length bytes of the underlying stream, so that one block of the diff
+     * file can never run into the next one.
+     */
+    private static class BlockInputStream extends FilterInputStream {
+        private long remaining;
+
+        BlockInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int bytesRead = in.read(b, off, (int) Math.min(len, remaining));
+            if (bytesRead > 0) {
+                remaining -= bytesRead;
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
     /**
      * This patch method is fast ,but using more memory.
      * Memory size = oldBuf + diffBuf + newBuf
@@ -308,26 +480,16 @@ public class BSPatch {
      * Memory size = oldBuf + diffBuf + newBuf
      */
     public static byte[] patchFast(byte[] oldBuf, int oldsize, byte[] diffBuf, int diffSize, int extLen) throws IOException {
-        DataInputStream diffIn = new DataInputStream(new ByteArrayInputStream(diffBuf, 0, diffSize));
-
-        diffIn.skip(8); // skip headerMagic at header offset 0 (length 8 bytes)
-        long ctrlBlockLen = diffIn.readLong(); // ctrlBlockLen after bzip2 compression at heater offset 8 (length 8 bytes)
-        long diffBlockLen = diffIn.readLong(); // diffBlockLen after bzip2 compression at header offset 16 (length 8 bytes)
-        int newsize = (int) diffIn.readLong(); // size of new file at header offset 24 (length 8 bytes)
-
-        diffIn.close();
-
-        InputStream in = new ByteArrayInputStream(diffBuf, 0, diffSize);
-        in.skip(BSUtil.HEADER_SIZE);
-        DataInputStream ctrlBlockIn = new DataInputStream(new GZIPInputStream(in));
-
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
-        in.skip(ctrlBlockLen + BSUtil.HEADER_SIZE);
-        InputStream diffBlockIn = new GZIPInputStream(in);
+        BSHeader header = BSHeader.read(new ByteArrayInputStream(diffBuf, 0, diffSize));
+        if (!isBlockLenValid(header, diffSize)) {
+            throw new IOException("Corrupt by wrong patch file.");
+        }
+        int newsize = header.newsize;
 
-        in = new ByteArrayInputStream(diffBuf, 0, diffSize);
-        in.skip(diffBlockLen + ctrlBlockLen + BSUtil.HEADER_SIZE);
-        InputStream extraBlockIn = new GZIPInputStream(in);
+        DataInputStream ctrlBlockIn = new DataInputStream(openBlock(header.ctrlCodec, diffBuf, header.size(), header.ctrlBlockLen));
+        InputStream diffBlockIn = openBlock(header.diffCodec, diffBuf, header.size() + header.ctrlBlockLen, header.diffBlockLen);
+        InputStream extraBlockIn = openBlock(header.extraCodec, diffBuf, header.size() + header.ctrlBlockLen + header.diffBlockLen,
+            diffSize - header.size() - header.ctrlBlockLen - header.diffBlockLen);
 
         // byte[] newBuf = new byte[newsize + 1];
         byte[] newBuf = new byte[newsize];
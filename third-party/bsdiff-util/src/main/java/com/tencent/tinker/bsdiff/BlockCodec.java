@@ -0,0 +1,199 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.bsdiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression used for the ctrl, diff and extra blocks of a bsdiff file.
+ *
+ * The id of each codec is recorded in the diff header, so BSPatch picks the right codec
+ * by itself. Custom codecs (xz, zstd, ...) can be plugged in with {@link #register(BlockCodec)},
+ * they must be registered on both the diff side and the patch side.
+ */
+public abstract class BlockCodec {
+
+    // Codec ids are stored in one byte of the header.
+    private static final BlockCodec[] CODECS = new BlockCodec[256];
+
+    /**
+     * The original codec, patches using it for all blocks keep the "MicroMsg" header
+     * and can be applied by every version of BSPatch.
+     */
+    public static final BlockCodec GZIP = new BlockCodec(0, "gzip") {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+    };
+
+    /**
+     * zlib deflate at the best compression level, smaller than {@link #GZIP} at a higher diff time.
+     */
+    public static final BlockCodec DEFLATE_BEST = new BlockCodec(1, "deflate-best") {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return new EndingDeflaterOutputStream(out, new Deflater(Deflater.BEST_COMPRESSION));
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new EndingInflaterInputStream(in, new Inflater());
+        }
+    };
+
+    /**
+     * No compression at all. Nothing has to be inflated while patching, and the patch
+     * package which holds the diff file is compressed as a whole anyway.
+     */
+    public static final BlockCodec STORED = new BlockCodec(2, "stored") {
+        @Override
+        public OutputStream compress(OutputStream out) throws IOException {
+            return out;
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return in;
+        }
+    };
+
+    static {
+        register(GZIP);
+        register(DEFLATE_BEST);
+        register(STORED);
+    }
+
+    private final int id;
+    private final String name;
+
+    protected BlockCodec(int id, String name) {
+        if (id < 0 || id >= CODECS.length) {
+            throw new IllegalArgumentException("codec id must be in [0, " + CODECS.length + "), got " + id);
+        }
+        this.id = id;
+        this.name = name;
+    }
+
+    public static synchronized void register(BlockCodec codec) {
+        BlockCodec exist = CODECS[codec.id];
+        if (exist != null && exist != codec) {
+            throw new IllegalStateException("codec id " + codec.id + " is already used by " + exist.name);
+        }
+        CODECS[codec.id] = codec;
+    }
+
+    public static synchronized BlockCodec get(int id) throws IOException {
+        BlockCodec codec = (id >= 0 && id < CODECS.length ? CODECS[id] : null);
+        if (codec == null) {
+            throw new IOException("unknown bsdiff block codec: " + id);
+        }
+        return codec;
+    }
+
+    public static synchronized BlockCodec get(String name) {
+        for (BlockCodec codec : CODECS) {
+            if (codec != null && codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("unknown bsdiff block codec: " + name);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns a stream which compresses into out. Closing or finishing the returned
+     * stream must not close out, callers call {@link #finish(OutputStream)} instead.
+     */
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /**
+     * Writes any remaining compressed data without closing the underlying stream.
+     */
+    public void finish(OutputStream compressed) throws IOException {
+        if (compressed instanceof DeflaterOutputStream) {
+            ((DeflaterOutputStream) compressed).finish();
+        }
+        compressed.flush();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Releases the native memory of its own deflater as soon as all data is written.
+     */
+    private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+        EndingDeflaterOutputStream(OutputStream out, Deflater deflater) {
+            super(out, deflater, BSUtil.BUFFER_SIZE);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (def.finished()) {
+                return;
+            }
+            try {
+                super.finish();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * Releases the native memory of its own inflater when closed.
+     */
+    private static class EndingInflaterInputStream extends InflaterInputStream {
+        EndingInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater, BSUtil.BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
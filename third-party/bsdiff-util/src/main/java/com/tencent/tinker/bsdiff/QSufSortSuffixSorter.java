@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company.
+ * Copyright (c) 2005, Joe Desbonnet, (jdesbonnet@gmail.com)
+ * Copyright 2003-2005 Colin Percival
+ * All rights reserved
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted providing that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.tencent.tinker.bsdiff;
+
+/**
+ * Larsson and Sadakane's qsufsort, the suffix sorter BSDiff used originally.
+ * It runs in O(n log n) and needs two int arrays of {@code size + 1} elements.
+ */
+public class QSufSortSuffixSorter implements SuffixSorter {
+
+    public static final QSufSortSuffixSorter INSTANCE = new QSufSortSuffixSorter();
+
+    @Override
+    public int[] buildSuffixArray(byte[] buf, int size) {
+        int[] arrayI = new int[size + 1];
+        qsufsort(arrayI, new int[size + 1], buf, size);
+        return arrayI;
+    }
+
+    private static void split(int[] arrayI, int[] arrayV, int start, int len, int h) {
+
+        int i, j, k, x, tmp, jj, kk;
+
+        if (len < 16) {
+            for (k = start; k < start + len; k += j) {
+                j = 1;
+                x = arrayV[arrayI[k] + h];
+                for (i = 1; k + i < start + len; i++) {
+                    if (arrayV[arrayI[k + i] + h] < x) {
+                        x = arrayV[arrayI[k + i] + h];
+                        j = 0;
+                    }
+
+                    if (arrayV[arrayI[k + i] + h] == x) {
+                        tmp = arrayI[k + j];
+                        arrayI[k + j] = arrayI[k + i];
+                        arrayI[k + i] = tmp;
+                        j++;
+                    }
+
+                }
+
+                for (i = 0; i < j; i++) {
+                    arrayV[arrayI[k + i]] = k + j - 1;
+                }
+                if (j == 1) {
+                    arrayI[k] = -1;
+                }
+            }
+
+            return;
+        }
+
+        x = arrayV[arrayI[start + len / 2] + h];
+        jj = 0;
+        kk = 0;
+        for (i = start; i < start + len; i++) {
+            if (arrayV[arrayI[i] + h] < x) {
+                jj++;
+            }
+            if (arrayV[arrayI[i] + h] == x) {
+                kk++;
+            }
+        }
+
+        jj += start;
+        kk += jj;
+
+        i = start;
+        j = 0;
+        k = 0;
+        while (i < jj) {
+            if (arrayV[arrayI[i] + h] < x) {
+                i++;
+            } else if (arrayV[arrayI[i] + h] == x) {
+                tmp = arrayI[i];
+                arrayI[i] = arrayI[jj + j];
+                arrayI[jj + j] = tmp;
+                j++;
+            } else {
+                tmp = arrayI[i];
+                arrayI[i] = arrayI[kk + k];
+                arrayI[kk + k] = tmp;
+                k++;
+            }
+
+        }
+
+        while (jj + j < kk) {
+            if (arrayV[arrayI[jj + j] + h] == x) {
+                j++;
+            } else {
+                tmp = arrayI[jj + j];
+                arrayI[jj + j] = arrayI[kk + k];
+                arrayI[kk + k] = tmp;
+                k++;
+            }
+
+        }
+
+        if (jj > start) {
+            split(arrayI, arrayV, start, jj - start, h);
+        }
+
+        for (i = 0; i < kk - jj; i++) {
+            arrayV[arrayI[jj + i]] = kk - 1;
+        }
+
+        if (jj == kk - 1) {
+            arrayI[jj] = -1;
+        }
+
+        if (start + len > kk) {
+            split(arrayI, arrayV, kk, start + len - kk, h);
+        }
+
+    }
+
+    /**
+     * Fast suffix sporting. Larsson and Sadakane's qsufsort algorithm. See
+     * http://www.cs.lth.se/Research/Algorithms/Papers/jesper5.ps
+     */
+    private static void qsufsort(int[] arrayI, int[] arrayV, byte[] oldBuf, int oldsize) {
+
+        // int oldsize = oldBuf.length;
+        int[] buckets = new int[256];
+
+        // No need to do that in Java.
+        // for ( int i = 0; i < 256; i++ ) {
+        // buckets[i] = 0;
+        // }
+
+        for (int i = 0; i < oldsize; i++) {
+            buckets[oldBuf[i] & 0xff]++;
+        }
+
+        for (int i = 1; i < 256; i++) {
+            buckets[i] += buckets[i - 1];
+        }
+
+        for (int i = 255; i > 0; i--) {
+            buckets[i] = buckets[i - 1];
+        }
+
+        buckets[0] = 0;
+
+        for (int i = 0; i < oldsize; i++) {
+            arrayI[++buckets[oldBuf[i] & 0xff]] = i;
+        }
+
+        arrayI[0] = oldsize;
+        for (int i = 0; i < oldsize; i++) {
+            arrayV[i] = buckets[oldBuf[i] & 0xff];
+        }
+        arrayV[oldsize] = 0;
+
+        for (int i = 1; i < 256; i++) {
+            if (buckets[i] == buckets[i - 1] + 1) {
+                arrayI[buckets[i]] = -1;
+            }
+        }
+
+        arrayI[0] = -1;
+
+        for (int h = 1; arrayI[0] != -(oldsize + 1); h += h) {
+            int len = 0;
+            int i;
+            for (i = 0; i < oldsize + 1;) {
+                if (arrayI[i] < 0) {
+                    len -= arrayI[i];
+                    i -= arrayI[i];
+                } else {
+                    // if(len) I[i-len]=-len;
+                    if (len != 0) {
+                        arrayI[i - len] = -len;
+                    }
+                    len = arrayV[arrayI[i]] + 1 - i;
+                    split(arrayI, arrayV, i, len, h);
+                    i += len;
+                    len = 0;
+                }
+
+            }
+
+            if (len != 0) {
+                arrayI[i - len] = -len;
+            }
+        }
+
+        for (int i = 0; i < oldsize + 1; i++) {
+            arrayI[arrayV[i]] = i;
+        }
+    }
+}
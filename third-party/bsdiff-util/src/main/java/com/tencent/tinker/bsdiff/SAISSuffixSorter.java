@@ -0,0 +1,223 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.bsdiff;
+
+/**
+ * Linear time suffix sorter based on Nong, Zhang and Chan's SA-IS algorithm
+ * ("Two Efficient Algorithms for Linear Time Suffix Array Construction").
+ *
+ * The input is treated as {@code buf[0..size)} followed by a virtual sentinel which
+ * is smaller than every byte, so the sentinel suffix lands in slot 0 exactly where
+ * qsufsort puts it. Memory usage is one int array of {@code size + 1} elements plus
+ * one boolean per input byte, which is less than {@link QSufSortSuffixSorter} needs.
+ */
+public class SAISSuffixSorter implements SuffixSorter {
+
+    public static final SAISSuffixSorter INSTANCE = new SAISSuffixSorter();
+
+    private static final int BYTE_ALPHABET_SIZE = 257;
+
+    @Override
+    public int[] buildSuffixArray(byte[] buf, int size) {
+        int[] sa = new int[size + 1];
+        if (size == 0) {
+            sa[0] = 0;
+            return sa;
+        }
+        sais(new ByteText(buf, size), sa, size + 1, BYTE_ALPHABET_SIZE);
+        return sa;
+    }
+
+    /**
+     * Characters of the text being sorted. The last character must be a unique
+     * sentinel smaller than all other characters.
+     */
+    private abstract static class Text {
+        abstract int charAt(int i);
+    }
+
+    private static final class ByteText extends Text {
+        private final byte[] buf;
+        private final int size;
+
+        ByteText(byte[] buf, int size) {
+            this.buf = buf;
+            this.size = size;
+        }
+
+        @Override
+        int charAt(int i) {
+            return (i == size ? 0 : (buf[i] & 0xff) + 1);
+        }
+    }
+
+    private static final class IntText extends Text {
+        private final int[] data;
+        private final int offset;
+
+        IntText(int[] data, int offset) {
+            this.data = data;
+            this.offset = offset;
+        }
+
+        @Override
+        int charAt(int i) {
+            return data[offset + i];
+        }
+    }
+
+    private static boolean isLMS(boolean[] sType, int i) {
+        return i > 0 && sType[i] && !sType[i - 1];
+    }
+
+    private static void getBuckets(Text text, int[] bkt, int n, int k, boolean end) {
+        for (int i = 0; i < k; ++i) {
+            bkt[i] = 0;
+        }
+        for (int i = 0; i < n; ++i) {
+            ++bkt[text.charAt(i)];
+        }
+        int sum = 0;
+        for (int i = 0; i < k; ++i) {
+            sum += bkt[i];
+            bkt[i] = (end ? sum : sum - bkt[i]);
+        }
+    }
+
+    private static void induceL(boolean[] sType, int[] sa, Text text, int[] bkt, int n, int k) {
+        getBuckets(text, bkt, n, k, false);
+        for (int i = 0; i < n; ++i) {
+            int j = sa[i] - 1;
+            if (j >= 0 && !sType[j]) {
+                sa[bkt[text.charAt(j)]++] = j;
+            }
+        }
+    }
+
+    private static void induceS(boolean[] sType, int[] sa, Text text, int[] bkt, int n, int k) {
+        getBuckets(text, bkt, n, k, true);
+        for (int i = n - 1; i >= 0; --i) {
+            int j = sa[i] - 1;
+            if (j >= 0 && sType[j]) {
+                sa[--bkt[text.charAt(j)]] = j;
+            }
+        }
+    }
+
+    /**
+     * Sorts all suffixes of {@code text[0..n)} into {@code sa[0..n)}. Characters are in [0, k).
+     */
+    private static void sais(Text text, int[] sa, int n, int k) {
+        if (n == 1) {
+            sa[0] = 0;
+            return;
+        }
+
+        boolean[] sType = new boolean[n];
+        sType[n - 1] = true;
+        sType[n - 2] = false;
+        for (int i = n - 3; i >= 0; --i) {
+            int c0 = text.charAt(i);
+            int c1 = text.charAt(i + 1);
+            sType[i] = (c0 < c1 || (c0 == c1 && sType[i + 1]));
+        }
+
+        // Stage 1: reduce the problem by at least 1/2, sorting all LMS substrings.
+        int[] bkt = new int[k];
+        getBuckets(text, bkt, n, k, true);
+        for (int i = 0; i < n; ++i) {
+            sa[i] = -1;
+        }
+        for (int i = 1; i < n; ++i) {
+            if (isLMS(sType, i)) {
+                sa[--bkt[text.charAt(i)]] = i;
+            }
+        }
+        induceL(sType, sa, text, bkt, n, k);
+        induceS(sType, sa, text, bkt, n, k);
+
+        // Compact all the sorted LMS substrings into the first n1 items of sa.
+        int n1 = 0;
+        for (int i = 0; i < n; ++i) {
+            if (isLMS(sType, sa[i])) {
+                sa[n1++] = sa[i];
+            }
+        }
+
+        // Name the LMS substrings, equal substrings get the same name.
+        for (int i = n1; i < n; ++i) {
+            sa[i] = -1;
+        }
+        int name = 0;
+        int prev = -1;
+        for (int i = 0; i < n1; ++i) {
+            int pos = sa[i];
+            boolean diff = false;
+            for (int d = 0; d < n; ++d) {
+                if (prev == -1
+                    || text.charAt(pos + d) != text.charAt(prev + d)
+                    || sType[pos + d] != sType[prev + d]) {
+                    diff = true;
+                    break;
+                } else if (d > 0 && (isLMS(sType, pos + d) || isLMS(sType, prev + d))) {
+                    break;
+                }
+            }
+            if (diff) {
+                ++name;
+                prev = pos;
+            }
+            sa[n1 + (pos >> 1)] = name - 1;
+        }
+        for (int i = n - 1, j = n - 1; i >= n1; --i) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+
+        // Stage 2: solve the reduced problem, recursing if names are not yet unique.
+        int s1Offset = n - n1;
+        if (name < n1) {
+            sais(new IntText(sa, s1Offset), sa, n1, name);
+        } else {
+            for (int i = 0; i < n1; ++i) {
+                sa[sa[s1Offset + i]] = i;
+            }
+        }
+
+        // Stage 3: induce the result for the original problem.
+        getBuckets(text, bkt, n, k, true);
+        for (int i = 1, j = 0; i < n; ++i) {
+            if (isLMS(sType, i)) {
+                sa[s1Offset + j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; ++i) {
+            sa[i] = sa[s1Offset + sa[i]];
+        }
+        for (int i = n1; i < n; ++i) {
+            sa[i] = -1;
+        }
+        for (int i = n1 - 1; i >= 0; --i) {
+            int j = sa[i];
+            sa[i] = -1;
+            sa[--bkt[text.charAt(j)]] = j;
+        }
+        induceL(sType, sa, text, bkt, n, k);
+        induceS(sType, sa, text, bkt, n, k);
+    }
+}
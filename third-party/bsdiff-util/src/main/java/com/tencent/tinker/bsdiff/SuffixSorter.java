@@ -0,0 +1,30 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.bsdiff;
+
+/**
+ * Builds the suffix array BSDiff uses to search for matches in the old file.
+ *
+ * The returned array has {@code size + 1} elements. Element 0 is always {@code size}
+ * (the empty suffix sorts first) and the remaining elements are the start offsets of
+ * every suffix of {@code buf[0..size)} in ascending lexicographic order. Since the order
+ * of suffixes is unique, every implementation produces exactly the same array, so the
+ * choice of sorter never changes the generated patch.
+ */
+public interface SuffixSorter {
+    int[] buildSuffixArray(byte[] buf, int size);
+}
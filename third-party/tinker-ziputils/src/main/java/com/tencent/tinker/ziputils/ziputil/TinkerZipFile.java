@@ -18,12 +18,15 @@ package com.tencent.tinker.ziputils.ziputil;
 
 import java.io.BufferedInputStream;
 import java.io.Closeable;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -93,6 +96,7 @@ public class TinkerZipFile implements Closeable, ZipConstants {
     private final LinkedHashMap<String, TinkerZipEntry> entries = new LinkedHashMap<String, TinkerZipEntry>();
     private File fileToDeleteOnClose;
     private RandomAccessFile raf;
+    private FileChannel channel;
     private String comment;
 
     /**
@@ -140,6 +144,7 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             fileToDeleteOnClose = null;
         }
         raf = new RandomAccessFile(filename, "r");
+        channel = raf.getChannel();
 
         readCentralDir();
         // guard.open("close");
@@ -249,10 +254,9 @@ public class TinkerZipFile implements Closeable, ZipConstants {
         // guard.close();
         RandomAccessFile localRaf = raf;
         if (localRaf != null) { // Only close initialized instances
-            synchronized (localRaf) {
-                raf = null;
-                localRaf.close();
-            }
+            raf = null;
+            channel = null;
+            localRaf.close();
             if (fileToDeleteOnClose != null) {
                 fileToDeleteOnClose.delete();
                 fileToDeleteOnClose = null;
@@ -337,45 +341,90 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             return null;
         }
         // Create an InputStream at the right part of the file.
-        RandomAccessFile localRaf = raf;
-        synchronized (localRaf) {
-            // We don't know the entry data's start position. All we have is the
-            // position of the entry's local header.
-            // http://www.pkware.com/documents/casestudies/APPNOTE.TXT
-            RAFStream rafStream = new RAFStream(localRaf, entry.localHeaderRelOffset);
-            DataInputStream is = new DataInputStream(rafStream);
-            final int localMagic = Integer.reverseBytes(is.readInt());
-            if (localMagic != LOCSIG) {
-                throwZipException(filename, localRaf.length(), entry.getName(), entry.localHeaderRelOffset, "Local File Header", localMagic);
-            }
-            is.skipBytes(2);
-            // At position 6 we find the General Purpose Bit Flag.
-            int gpbf = Short.reverseBytes(is.readShort()) & 0xffff;
-            if ((gpbf & TinkerZipFile.GPBF_UNSUPPORTED_MASK) != 0) {
-                throw new ZipException("Invalid General Purpose Bit Flag: " + gpbf);
+        FileChannel localChannel = channel;
+        long dataOffset = getDataOffset(localChannel, entry);
+        /*if (entry.compressionMethod == ZipEntry.STORED) {
+            rafStream.endOffset = rafStream.offset + entry.size;
+            return rafStream;
+        } else {
+            rafStream.endOffset = rafStream.offset + entry.compressedSize;
+            int bufSize = Math.max(1024, (int) Math.min(entry.getSize(), 65535L));
+            return new ZipInflaterInputStream(rafStream, new Inflater(true), bufSize, entry);
+        }*/
+        if (entry.compressionMethod == TinkerZipEntry.STORED) {
+            return new RAFStream(localChannel, dataOffset, dataOffset + entry.size);
+        } else {
+            return new RAFStream(localChannel, dataOffset, dataOffset + entry.compressedSize);
+        }
+    }
+
+    /**
+     * Copies the data of {@code entry} to {@code out} as it is stored in the file, that is still
+     * compressed for deflated entries. Unlike {@link #getInputStream(TinkerZipEntry)}, the local
+     * header is read with a single read and the data is copied through the caller's buffer.
+     *
+     * @throws IllegalStateException if this zip file has been closed.
+     */
+    public void copyRawData(TinkerZipEntry entry, OutputStream out, byte[] buffer) throws IOException {
+        String name = entry.getName();
+        entry = getEntry(name);
+        if (entry == null) {
+            throw new ZipException("Entry not found: " + name);
+        }
+        FileChannel localChannel = channel;
+        long position = getDataOffset(localChannel, entry);
+        long remaining = entry.compressionMethod == TinkerZipEntry.STORED ? entry.size : entry.compressedSize;
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (remaining > 0) {
+            byteBuffer.clear();
+            byteBuffer.limit((int) Math.min(buffer.length, remaining));
+            int count = localChannel.read(byteBuffer, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of " + filename + " while copying " + name);
             }
-            // Offset 26 has the file name length, and offset 28 has the extra field length.
-            // These lengths can differ from the ones in the central header.
-            is.skipBytes(18);
-            int fileNameLength = Short.reverseBytes(is.readShort()) & 0xffff;
-            int extraFieldLength = Short.reverseBytes(is.readShort()) & 0xffff;
-            is.close();
-            // Skip the variable-size file name and extra field data.
-            rafStream.skip(fileNameLength + extraFieldLength);
-            /*if (entry.compressionMethod == ZipEntry.STORED) {
-                rafStream.endOffset = rafStream.offset + entry.size;
-                return rafStream;
-            } else {
-                rafStream.endOffset = rafStream.offset + entry.compressedSize;
-                int bufSize = Math.max(1024, (int) Math.min(entry.getSize(), 65535L));
-                return new ZipInflaterInputStream(rafStream, new Inflater(true), bufSize, entry);
-            }*/
-            if (entry.compressionMethod == TinkerZipEntry.STORED) {
-                rafStream.endOffset = rafStream.offset + entry.size;
-            } else {
-                rafStream.endOffset = rafStream.offset + entry.compressedSize;
+            out.write(buffer, 0, count);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Reads the local header of {@code entry} and returns the file offset its data starts at.
+     * We don't know the entry data's start position, all we have is the position of the entry's
+     * local header, whose name and extra field lengths can differ from the central header ones.
+     * http://www.pkware.com/documents/casestudies/APPNOTE.TXT
+     */
+    private long getDataOffset(FileChannel localChannel, TinkerZipEntry entry) throws IOException {
+        if (localChannel == null) {
+            throw new IllegalStateException("Zip file closed");
+        }
+        byte[] localHeader = new byte[LOCHDR];
+        readFully(localChannel, ByteBuffer.wrap(localHeader), entry.localHeaderRelOffset);
+        BufferIterator it = HeapBufferIterator.iterator(localHeader, 0, localHeader.length, ByteOrder.LITTLE_ENDIAN);
+        final int localMagic = it.readInt();
+        if (localMagic != LOCSIG) {
+            throwZipException(filename, localChannel.size(), entry.getName(), entry.localHeaderRelOffset, "Local File Header", localMagic);
+        }
+        // At position 6 we find the General Purpose Bit Flag.
+        it.seek(LOCFLG);
+        int gpbf = it.readShort() & 0xffff;
+        if ((gpbf & TinkerZipFile.GPBF_UNSUPPORTED_MASK) != 0) {
+            throw new ZipException("Invalid General Purpose Bit Flag: " + gpbf);
+        }
+        // Offset 26 has the file name length, and offset 28 has the extra field length.
+        it.seek(LOCNAM);
+        int fileNameLength = it.readShort() & 0xffff;
+        int extraFieldLength = it.readShort() & 0xffff;
+        return entry.localHeaderRelOffset + LOCHDR + fileNameLength + extraFieldLength;
+    }
+
+    private void readFully(FileChannel localChannel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int count = localChannel.read(dst, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of " + filename + " at offset " + position);
             }
-            return rafStream;
+            position += count;
         }
     }
 
@@ -474,8 +523,8 @@ public class TinkerZipFile implements Closeable, ZipConstants {
         // We have to do this now (from the constructor) rather than lazily because the
         // public API doesn't allow us to throw IOException except from the constructor
         // or from getInputStream.
-        RAFStream rafStream = new RAFStream(raf, centralDirOffset);
-        BufferedInputStream bufferedStream = new BufferedInputStream(rafStream, 4096);
+        RAFStream rafStream = new RAFStream(channel, centralDirOffset, channel.size());
+        BufferedInputStream bufferedStream = new BufferedInputStream(rafStream, 8192);
         byte[] hdrBuf = new byte[CENHDR]; // Reuse the same buffer for each entry.
         for (int i = 0; i < numEntries; ++i) {
             TinkerZipEntry newEntry = new TinkerZipEntry(hdrBuf, bufferedStream, StandardCharsets.UTF_8,
@@ -504,24 +553,27 @@ public class TinkerZipFile implements Closeable, ZipConstants {
     }
 
     /**
-     * Wrap a stream around a RandomAccessFile.  The RandomAccessFile is shared
-     * among all streams returned by getInputStream(), so we have to synchronize
-     * access to it.  (We can optimize this by adding buffering here to reduce
-     * collisions.)
+     * Wrap a stream around a RandomAccessFile.  The file is shared among all streams
+     * returned by getInputStream(), so we read it with positional reads on its
+     * {@link FileChannel}; they never touch the file pointer, which lets several
+     * threads stream different entries of the same zip file without locking.
      *
      * <p>We could support mark/reset, but we don't currently need them.
      *
      * @hide
      */
     public static class RAFStream extends InputStream {
-        private final RandomAccessFile sharedRaf;
+        private final FileChannel sharedChannel;
         private long endOffset;
         private long offset;
-        public RAFStream(RandomAccessFile raf, long initialOffset, long endOffset) {
-            sharedRaf = raf;
+        public RAFStream(FileChannel channel, long initialOffset, long endOffset) {
+            sharedChannel = channel;
             offset = initialOffset;
             this.endOffset = endOffset;
         }
+        public RAFStream(RandomAccessFile raf, long initialOffset, long endOffset) {
+            this(raf.getChannel(), initialOffset, endOffset);
+        }
         public RAFStream(RandomAccessFile raf, long initialOffset) throws IOException {
             this(raf, initialOffset, raf.length());
         }
@@ -532,19 +584,19 @@ public class TinkerZipFile implements Closeable, ZipConstants {
             return Streams.readSingleByte(this);
         }
         @Override public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-            synchronized (sharedRaf) {
-                final long length = endOffset - offset;
-                if (byteCount > length) {
-                    byteCount = (int) length;
-                }
-                sharedRaf.seek(offset);
-                int count = sharedRaf.read(buffer, byteOffset, byteCount);
-                if (count > 0) {
-                    offset += count;
-                    return count;
-                } else {
-                    return -1;
-                }
+            final long length = endOffset - offset;
+            if (byteCount > length) {
+                byteCount = (int) length;
+            }
+            if (byteCount == 0) {
+                return -1;
+            }
+            int count = sharedChannel.read(ByteBuffer.wrap(buffer, byteOffset, byteCount), offset);
+            if (count > 0) {
+                offset += count;
+                return count;
+            } else {
+                return -1;
             }
         }
         @Override public long skip(long byteCount) throws IOException {
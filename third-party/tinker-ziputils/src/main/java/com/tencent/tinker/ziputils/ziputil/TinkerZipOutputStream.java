@@ -84,6 +84,7 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
     final static int              TIME_CONST               = 40691;
     final static int              MOD_DATE_CONST           = 18698;
     private static final int      ZIP_VERSION_2_0          = 20; // Zip specification version 2.0.
+    private static final int      COPY_BUFFER_SIZE         = 16384;
     private static final byte[] ZIP64_PLACEHOLDER_BYTES =
             new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
     private final HashSet<String> entries                  = new HashSet<String>();
@@ -98,6 +99,7 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
     // private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
     private ByteArrayOutputStream cDir                     = new ByteArrayOutputStream();
     private TinkerZipEntry currentEntry;
+    private byte[] copyBuffer;
     // private final CRC32 crc = new CRC32();
     private long offset = 0;
     /** The charset-encoded name for the current entry. */
@@ -401,6 +403,22 @@ public class TinkerZipOutputStream extends FilterOutputStream implements ZipCons
         cDir = null;
     }
 
+    /**
+     * Writes a copy of {@code entry} of {@code src}, taking its data, crc and sizes as they are
+     * stored in {@code src}, so that nothing is inflated or deflated.
+     *
+     * @throws IOException
+     *             If an error occurs reading the entry or writing it.
+     */
+    public void copyRawEntry(TinkerZipFile src, TinkerZipEntry entry) throws IOException {
+        putNextEntry(new TinkerZipEntry(entry));
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+        src.copyRawData(entry, out, copyBuffer);
+        closeEntry();
+    }
+
     /**
      * Writes entry information to the underlying stream. Data associated with
      * the entry can then be written using {@code write()}. After data is
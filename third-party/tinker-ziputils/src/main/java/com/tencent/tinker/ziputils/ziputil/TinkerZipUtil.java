@@ -20,7 +20,6 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * Created by zhangshaowen on 16/8/10.
@@ -30,21 +29,7 @@ public class TinkerZipUtil {
 
     // 修改并保存
     public static void extractTinkerEntry(TinkerZipFile apk, TinkerZipEntry zipEntry, TinkerZipOutputStream outputStream) throws IOException {
-        InputStream in = null;
-        try {
-            in = apk.getInputStream(zipEntry);
-            outputStream.putNextEntry(new TinkerZipEntry(zipEntry));
-            byte[] buffer = new byte[BUFFER_SIZE];
-
-            for (int length = in.read(buffer); length != -1; length = in.read(buffer)) {
-                outputStream.write(buffer, 0, length);
-            }
-            outputStream.closeEntry();
-        } finally {
-            if (in != null) {
-                in.close();
-            }
-        }
+        outputStream.copyRawEntry(apk, zipEntry);
     }
 
     public static void extractLargeModifyFile(TinkerZipEntry sourceArscEntry, File newFile, long newFileCrc, TinkerZipOutputStream outputStream) throws IOException {
@@ -16,6 +16,7 @@
 
 package com.tencent.tinker.lib.patch;
 
+import com.tencent.tinker.bsdiff.BSPatch;
 import com.tencent.tinker.commons.util.IOHelper;
 import com.tencent.tinker.lib.util.TinkerLog;
 import com.tencent.tinker.loader.shareutil.ShareConstants;
@@ -98,6 +99,31 @@ public class BasePatchInternal {
         return isExtractionSuccessful;
     }
 
+    /**
+     * Apply the bsdiff patch in diffEntry to oldEntry and write the result to patchTo.
+     * Both entries are extracted next to patchTo first so that BSPatch can stream through them
+     * instead of holding the old file, the diff and the new file in memory at the same time.
+     */
+    public static void bsPatch(ZipFile apk, ZipEntry oldEntry, ZipFile patch, ZipEntry diffEntry, File patchTo) throws IOException {
+        File oldFile = new File(patchTo.getPath() + ".old");
+        File diffFile = new File(patchTo.getPath() + ".diff");
+        try {
+            if (!extract(apk, oldEntry, oldFile, null, false)) {
+                throw new IOException("Failed to extract old file " + oldEntry.getName());
+            }
+            if (!extract(patch, diffEntry, diffFile, null, false)) {
+                throw new IOException("Failed to extract diff file " + diffEntry.getName());
+            }
+            int result = BSPatch.patchStream(oldFile, patchTo, diffFile);
+            if (result != BSPatch.RETURN_SUCCESS) {
+                throw new IOException("bspatch " + patchTo.getName() + " failed, result code: " + result);
+            }
+        } finally {
+            SharePatchFileUtil.safeDeleteFile(oldFile);
+            SharePatchFileUtil.safeDeleteFile(diffFile);
+        }
+    }
+
     public static int getMetaCorruptedCode(int type) {
         if (type == TYPE_DEX) {
             return ShareConstants.ERROR_PACKAGE_CHECK_DEX_META_CORRUPTED;
@@ -20,8 +20,6 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.os.SystemClock;
 
-import com.tencent.tinker.bsdiff.BSPatch;
-import com.tencent.tinker.commons.util.IOHelper;
 import com.tencent.tinker.lib.tinker.Tinker;
 import com.tencent.tinker.lib.util.TinkerLog;
 import com.tencent.tinker.loader.TinkerRuntimeException;
@@ -31,7 +29,6 @@ import com.tencent.tinker.loader.shareutil.ShareSecurityCheck;
 import com.tencent.tinker.loader.shareutil.ShareTinkerInternals;
 
 import java.io.File;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -176,16 +173,7 @@ public class BsDiffPatchInternal extends BasePatchInternal {
                         manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.name, type);
                         return false;
                     }
-                    InputStream oldStream = null;
-                    InputStream newStream = null;
-                    try {
-                        oldStream = apk.getInputStream(rawApkFileEntry);
-                        newStream = patch.getInputStream(patchFileEntry);
-                        BSPatch.patchFast(oldStream, newStream, extractedFile);
-                    } finally {
-                        IOHelper.closeQuietly(oldStream);
-                        IOHelper.closeQuietly(newStream);
-                    }
+                    bsPatch(apk, rawApkFileEntry, patch, patchFileEntry, extractedFile);
 
                     //go go go bsdiff get the
                     if (!SharePatchFileUtil.verifyFileMd5(extractedFile, fileMd5)) {
@@ -24,6 +24,8 @@ import android.os.SystemClock;
 import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
 import com.tencent.tinker.commons.util.DigestUtil;
 import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.lib.reporter.DexRecoverReporter;
+import com.tencent.tinker.lib.reporter.PatchReporter;
 import com.tencent.tinker.lib.tinker.Tinker;
 import com.tencent.tinker.lib.util.TinkerLog;
 import com.tencent.tinker.loader.TinkerDexOptimizer;
@@ -46,7 +48,20 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -61,6 +76,10 @@ public class DexDiffPatchInternal extends BasePatchInternal {
     protected static final int WAIT_ASYN_OAT_TIME = 10 * 1000;
     protected static final int MAX_WAIT_COUNT     = 120;
 
+    private static final int  MAX_PATCH_THREADS           = 4;
+    private static final long DEFAULT_PATCH_MEMORY_BUDGET = 64 * 1024 * 1024;
+    private static final long WAIT_DEX_RECOVER_STOP_TIME  = 30 * 1000;
+
 
     private static ArrayList<File>                      optFiles      = new ArrayList<>();
     private static ArrayList<ShareDexDiffPatchInfo>     patchList     = new ArrayList<>();
@@ -222,13 +241,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         File classNFile = new File(dexFilePath, ShareConstants.CLASS_N_APK_NAME);
         boolean result = true;
         if (classNFile.exists()) {
-            for (ShareDexDiffPatchInfo info : classNDexInfo.keySet()) {
-                if (!SharePatchFileUtil.verifyDexFileMd5(classNFile, info.rawName, info.destMd5InArt)) {
-                    TinkerLog.e(TAG, "verify dex file md5 error, entry name; %s, file len: %d", info.rawName, classNFile.length());
-                    result = false;
-                    break;
-                }
-            }
+            result = verifyClassNDexFiles(classNFile);
             if (!result) {
                 SharePatchFileUtil.safeDeleteFile(classNFile);
             }
@@ -246,6 +259,19 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         return result;
     }
 
+    private static boolean verifyClassNDexFiles(File classNFile) {
+        Map<String, String> entryNameToMd5 = new HashMap<>();
+        for (ShareDexDiffPatchInfo info : classNDexInfo.keySet()) {
+            entryNameToMd5.put(info.rawName, info.destMd5InArt);
+        }
+        List<String> mismatchedEntryNames = SharePatchFileUtil.verifyDexFileMd5s(classNFile, entryNameToMd5);
+        if (!mismatchedEntryNames.isEmpty()) {
+            TinkerLog.e(TAG, "verify dex file md5 error, entry names: %s, file len: %d", mismatchedEntryNames, classNFile.length());
+            return false;
+        }
+        return true;
+    }
+
     private static ZipEntry makeStoredZipEntry(ZipEntry originalEntry, String realDexName) {
         final ZipEntry result = new ZipEntry(realDexName);
         result.setMethod(ZipEntry.STORED);
@@ -322,13 +348,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         }
 
         if (result) {
-            for (ShareDexDiffPatchInfo info : classNDexInfo.keySet()) {
-                if (!SharePatchFileUtil.verifyDexFileMd5(classNFile, info.rawName, info.destMd5InArt)) {
-                    result = false;
-                    TinkerLog.e(TAG, "verify dex file md5 error, entry name; %s, file len: %d", info.rawName, classNFile.length());
-                    break;
-                }
-            }
+            result = verifyClassNDexFiles(classNFile);
         }
         if (result) {
             for (File dexFile : classNDexInfo.values()) {
@@ -446,6 +466,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
         Tinker manager = Tinker.with(context);
         ZipFile apk = null;
         ZipFile patch = null;
+        List<DexRecoverTask> tasks = new ArrayList<>();
         try {
             ApplicationInfo applicationInfo = context.getApplicationInfo();
             if (applicationInfo == null) {
@@ -465,8 +486,6 @@ public class DexDiffPatchInternal extends BasePatchInternal {
             }
             // 遍历 ShareDexDiffPatchInfo
             for (ShareDexDiffPatchInfo info : patchList) {
-                long start = System.currentTimeMillis();
-
                 // 补丁dex文件路径
                 final String infoPath = info.path;
                 String patchRealPath;
@@ -524,11 +543,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
                     }
 
                     //it is a new file, but maybe we need to repack the dex file
-                    if (!extractDexFile(patch, patchFileEntry, extractedFile, info)) {
-                        TinkerLog.w(TAG, "Failed to extract raw patch file " + extractedFile.getPath());
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        return false;
-                    }
+                    tasks.add(new DexRecoverTask(null, patch, null, patchFileEntry, info, extractedFile, extractedFileMd5));
                 } else if (dexDiffMd5.equals("0")) {// dexDiffMd5什么情况下等于0，加固模式下等于0
                     // 如果 oldDexCrc 为0，就说明基准包中对应的 oldDex 文件不存在，直接按照 patch 信息重新打包 dex 即可 ---》适用于非加固模式
                     // skip process old dex for real dalvik vm
@@ -555,15 +570,7 @@ public class DexDiffPatchInternal extends BasePatchInternal {
                     // Small patched dex generating strategy was disabled, we copy full original dex directly now.
                     //patchDexFile(apk, patch, rawApkFileEntry, null, info, smallPatchInfoFile, extractedFile);
                     // 直接复制 ：copy full original dex directly now.
-                    extractDexFile(apk, rawApkFileEntry, extractedFile, info);
-
-                    // 复制完后校验一下md5值是否一致
-                    if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
-                        TinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        SharePatchFileUtil.safeDeleteFile(extractedFile);
-                        return false;
-                    }
+                    tasks.add(new DexRecoverTask(apk, null, rawApkFileEntry, null, info, extractedFile, extractedFileMd5));
                 } else {//  需要进行dex的patch，此种情况下适合非加固模式？
                     // 检查补丁包中 dex 是否存在
                     if (patchFileEntry == null) {
@@ -595,32 +602,231 @@ public class DexDiffPatchInternal extends BasePatchInternal {
 
                     // 真正开始进行dex的patch操作
                     // 执行合成操作
-                    patchDexFile(apk, patch, rawApkFileEntry, patchFileEntry, info, extractedFile);
-
-                    // 检查合成出来的dex的 md5 值是否一致
-                    if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
-                        TinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
-                        manager.getPatchReporter().onPatchTypeExtractFail(patchFile, extractedFile, info.rawName, type);
-                        SharePatchFileUtil.safeDeleteFile(extractedFile);
-                        return false;
-                    }
-
-                    TinkerLog.w(TAG, "success recover dex file: %s, size: %d, use time: %d",
-                        extractedFile.getPath(), extractedFile.length(), (System.currentTimeMillis() - start));
+                    tasks.add(new DexRecoverTask(apk, patch, rawApkFileEntry, patchFileEntry, info, extractedFile, extractedFileMd5));
                 }
             }
+            // dex 之间互不依赖，可以并行合成
+            if (!runDexRecoverTasks(manager, patchFile, tasks, type)) {
+                return false;
+            }
             if (!mergeClassNDexFiles(context, patchFile, dir)) {
                 return false;
             }
         } catch (Throwable e) {
             throw new TinkerRuntimeException("patch " + ShareTinkerInternals.getTypeString(type) + " extract failed (" + e.getMessage() + ").", e);
         } finally {
-            SharePatchFileUtil.closeZip(apk);
-            SharePatchFileUtil.closeZip(patch);
+            if (isAnyDexRecoverTaskRunning(tasks)) {
+                // a worker did not stop in time, closing the zips under it could crash in native code
+                TinkerLog.e(TAG, "dex recover workers are still running, leave apk and patch zip files open");
+            } else {
+                SharePatchFileUtil.closeZip(apk);
+                SharePatchFileUtil.closeZip(patch);
+            }
         }
         return true;
     }
 
+    /**
+     * Recover independent dex files on a bounded worker pool. The old apk and patch
+     * {@link ZipFile} handles are shared by all workers, which is safe since every
+     * task opens its own entry stream. Workers also hold a share of the heap budget
+     * while they patch, so only a few large dexes are in memory at once.
+     * Results are reported on the calling thread.
+     */
+    private static boolean runDexRecoverTasks(Tinker manager, File patchFile, List<DexRecoverTask> tasks, int type) throws Throwable {
+        if (tasks.isEmpty()) {
+            return true;
+        }
+        final int threadCount = Math.min(Math.min(Runtime.getRuntime().availableProcessors(), MAX_PATCH_THREADS), tasks.size());
+        if (threadCount <= 1) {
+            for (DexRecoverTask task : tasks) {
+                if (!task.call()) {
+                    manager.getPatchReporter().onPatchTypeExtractFail(patchFile, task.extractedFile, task.info.rawName, type);
+                    return false;
+                }
+                reportDexRecover(manager, patchFile, task);
+            }
+            return true;
+        }
+
+        final Semaphore memoryBudget = new Semaphore(getMemoryBudgetKb(), true);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        for (DexRecoverTask task : tasks) {
+            task.memoryBudget = memoryBudget;
+            task.cancelled = cancelled;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "tinker-dex-patch-" + index.getAndIncrement());
+            }
+        });
+        try {
+            final CompletionService<Boolean> completionService = new ExecutorCompletionService<>(executor);
+            final Map<Future<Boolean>, DexRecoverTask> futures = new HashMap<>();
+            for (DexRecoverTask task : tasks) {
+                futures.put(completionService.submit(task), task);
+            }
+            for (int i = 0; i < tasks.size(); ++i) {
+                final Future<Boolean> future = completionService.take();
+                final DexRecoverTask task = futures.get(future);
+                boolean success;
+                try {
+                    success = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+                if (!success) {
+                    // stop the others before reporting, the reporter may clean the patch directory
+                    stopDexRecoverWorkers(executor, cancelled);
+                    manager.getPatchReporter().onPatchTypeExtractFail(patchFile, task.extractedFile, task.info.rawName, type);
+                    return false;
+                }
+                reportDexRecover(manager, patchFile, task);
+            }
+            return true;
+        } finally {
+            // zip files are closed by the caller, make sure no worker is still reading them
+            stopDexRecoverWorkers(executor, cancelled);
+        }
+    }
+
+    /**
+     * Patching a dex can't be interrupted, so workers check the cancel flag between
+     * extracting, patching and verifying and stop after their current step.
+     */
+    private static void stopDexRecoverWorkers(ExecutorService executor, AtomicBoolean cancelled) throws InterruptedException {
+        cancelled.set(true);
+        executor.shutdownNow();
+        if (!executor.awaitTermination(WAIT_DEX_RECOVER_STOP_TIME, TimeUnit.MILLISECONDS)) {
+            TinkerLog.e(TAG, "dex recover workers did not stop in %d ms", WAIT_DEX_RECOVER_STOP_TIME);
+        }
+    }
+
+    private static boolean isAnyDexRecoverTaskRunning(List<DexRecoverTask> tasks) {
+        for (DexRecoverTask task : tasks) {
+            if (task.running) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void reportDexRecover(Tinker manager, File patchFile, DexRecoverTask task) {
+        final PatchReporter reporter = manager.getPatchReporter();
+        if (reporter instanceof DexRecoverReporter) {
+            ((DexRecoverReporter) reporter).onPatchDexRecover(patchFile, task.extractedFile, task.info.rawName, task.cost);
+        }
+    }
+
+    private static int getMemoryBudgetKb() {
+        final long maxMemory = Runtime.getRuntime().maxMemory();
+        final long budget = (maxMemory == Long.MAX_VALUE ? DEFAULT_PATCH_MEMORY_BUDGET : maxMemory / 2) / 1024;
+        return (int) Math.max(1, Math.min(budget, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Recover one dex: extract a new dex from patch, copy an old dex from apk, or
+     * apply the dex diff to the old dex. Patched and copied dex are verified by md5.
+     */
+    private static final class DexRecoverTask implements Callable<Boolean> {
+        private final ZipFile               apk;
+        private final ZipFile               patch;
+        private final ZipEntry              oldDexEntry;
+        private final ZipEntry              patchFileEntry;
+        private final ShareDexDiffPatchInfo info;
+        private final File                  extractedFile;
+        private final String                extractedFileMd5;
+        private       Semaphore             memoryBudget;
+        private       AtomicBoolean         cancelled;
+        private volatile boolean            running;
+        private       long                  cost;
+
+        DexRecoverTask(ZipFile apk, ZipFile patch, ZipEntry oldDexEntry, ZipEntry patchFileEntry,
+                       ShareDexDiffPatchInfo info, File extractedFile, String extractedFileMd5) {
+            this.apk = apk;
+            this.patch = patch;
+            this.oldDexEntry = oldDexEntry;
+            this.patchFileEntry = patchFileEntry;
+            this.info = info;
+            this.extractedFile = extractedFile;
+            this.extractedFileMd5 = extractedFileMd5;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            running = true;
+            try {
+                return recover();
+            } finally {
+                running = false;
+            }
+        }
+
+        private boolean recover() throws Exception {
+            final long start = SystemClock.elapsedRealtime();
+            if (isCancelled()) {
+                return false;
+            }
+            if (oldDexEntry == null) {
+                if (!extractDexFile(patch, patchFileEntry, extractedFile, info)) {
+                    TinkerLog.w(TAG, "Failed to extract raw patch file " + extractedFile.getPath());
+                    return false;
+                }
+            } else {
+                if (patchFileEntry == null) {
+                    extractDexFile(apk, oldDexEntry, extractedFile, info);
+                } else {
+                    final int permits = getMemoryPermits();
+                    if (memoryBudget != null) {
+                        memoryBudget.acquire(permits);
+                    }
+                    try {
+                        if (isCancelled()) {
+                            return false;
+                        }
+                        patchDexFile(apk, patch, oldDexEntry, patchFileEntry, info, extractedFile);
+                    } finally {
+                        if (memoryBudget != null) {
+                            memoryBudget.release(permits);
+                        }
+                    }
+                }
+                if (isCancelled()) {
+                    SharePatchFileUtil.safeDeleteFile(extractedFile);
+                    return false;
+                }
+                // 检查合成出来的dex的 md5 值是否一致
+                if (!SharePatchFileUtil.verifyDexFileMd5(extractedFile, extractedFileMd5)) {
+                    TinkerLog.w(TAG, "Failed to recover dex file when verify patched dex: " + extractedFile.getPath());
+                    SharePatchFileUtil.safeDeleteFile(extractedFile);
+                    return false;
+                }
+            }
+            cost = SystemClock.elapsedRealtime() - start;
+            TinkerLog.w(TAG, "success recover dex file: %s, size: %d, use time: %d",
+                extractedFile.getPath(), extractedFile.length(), cost);
+            return true;
+        }
+
+        private boolean isCancelled() {
+            return cancelled != null && cancelled.get();
+        }
+
+        /**
+         * old dex and patched dex are both held in heap when patching, count them in KB.
+         */
+        private int getMemoryPermits() {
+            final long oldDexSize = Math.max(oldDexEntry.getSize(), 0);
+            final long patchSize = Math.max(patchFileEntry.getSize(), 0);
+            final long kb = (oldDexSize * 2 + patchSize) / 1024;
+            final int budget = getMemoryBudgetKb();
+            return (int) Math.max(1, Math.min(kb, budget));
+        }
+    }
+
     /**
      * repack dex to jar
      *
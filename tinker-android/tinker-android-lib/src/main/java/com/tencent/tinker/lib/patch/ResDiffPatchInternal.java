@@ -20,7 +20,6 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.os.SystemClock;
 
-import com.tencent.tinker.bsdiff.BSPatch;
 import com.tencent.tinker.commons.util.IOHelper;
 import com.tencent.tinker.lib.tinker.Tinker;
 import com.tencent.tinker.lib.util.TinkerLog;
@@ -38,7 +37,6 @@ import com.tencent.tinker.ziputils.ziputil.TinkerZipUtil;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -328,16 +326,7 @@ public class ResDiffPatchInternal extends BasePatchInternal {
                     manager.getPatchReporter().onPatchTypeExtractFail(patchFile, largeModeInfo.file, name, type);
                     return false;
                 }
-                InputStream oldStream = null;
-                InputStream newStream = null;
-                try {
-                    oldStream = apkFile.getInputStream(baseEntry);
-                    newStream = patchZipFile.getInputStream(patchEntry);
-                    BSPatch.patchFast(oldStream, newStream, largeModeInfo.file);
-                } finally {
-                    IOHelper.closeQuietly(oldStream);
-                    IOHelper.closeQuietly(newStream);
-                }
+                bsPatch(apkFile, baseEntry, patchZipFile, patchEntry, largeModeInfo.file);
                 // go go go bsdiff get the
                 if (!SharePatchFileUtil.verifyFileMd5(largeModeInfo.file, largeModeInfo.md5)) {
                     TinkerLog.w(TAG, "Failed to recover large modify file:%s", largeModeInfo.file.getPath());
@@ -28,6 +28,7 @@ import com.tencent.tinker.loader.shareutil.SharePatchFileUtil;
 import com.tencent.tinker.loader.shareutil.SharePatchInfo;
 import com.tencent.tinker.loader.shareutil.ShareSecurityCheck;
 import com.tencent.tinker.loader.shareutil.ShareTinkerInternals;
+import com.tencent.tinker.loader.shareutil.ShareVerifyStamps;
 
 import java.io.File;
 import java.io.IOException;
@@ -192,6 +193,7 @@ public class UpgradePatch extends AbstractPatch {
             manager.getPatchReporter().onPatchInfoCorrupted(patchFile, newInfo.oldVersion, newInfo.newVersion);
             return false;
         }
+        ShareVerifyStamps.clear(SharePatchFileUtil.getPatchVerifyStampsFile(patchDirectory));
 
         // Reset patch apply retry count to let us be able to reapply without triggering
         // patch apply disable when we apply it successfully previously.
@@ -39,7 +39,7 @@ import java.io.File;
  * all is running in the process which loading the patch
  */
 // 加载补丁中的report
-public class DefaultLoadReporter implements LoadReporter {
+public class DefaultLoadReporter implements LoadReporter, LoadVerifyStampReporter {
     private static final String TAG = "Tinker.DefaultLoadReporter";
     protected final Context context;
 
@@ -221,6 +221,18 @@ public class DefaultLoadReporter implements LoadReporter {
         //you can just report the result here
     }
 
+    /**
+     * with {@code TinkerApplication.tinkerLoadVerifyFlag}, files verified by an earlier launch
+     * are not hashed again while their size, modified time and inode are unchanged.
+     *
+     * @param hitCount  files whose verification was skipped
+     * @param missCount files which were hashed
+     */
+    @Override
+    public void onLoadVerifyStamps(int hitCount, int missCount) {
+        TinkerLog.i(TAG, "patch loadReporter onLoadVerifyStamps: hit: %d, miss: %d", hitCount, missCount);
+    }
+
     /**
      * load patch occur unknown exception that we have wrap try catch for you!
      * you may need to report this exception and contact me
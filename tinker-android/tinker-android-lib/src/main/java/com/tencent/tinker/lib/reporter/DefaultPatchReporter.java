@@ -39,7 +39,7 @@ import java.util.List;
  * all is running in the :patch process
  */
 // 补丁patch过程中的reporter
-public class DefaultPatchReporter implements PatchReporter {
+public class DefaultPatchReporter implements PatchReporter, DexRecoverReporter {
     private static final String TAG = "Tinker.DefaultPatchReporter";
     private static boolean shouldRetry = false;
     protected final Context context;
@@ -128,6 +128,21 @@ public class DefaultPatchReporter implements PatchReporter {
         Tinker.with(context).cleanPatchByPatchApk(patchFile);
     }
 
+    /**
+     * a dex file is recovered and verified, dexes may be recovered concurrently
+     * but this is always called on the patch thread
+     *
+     * @param patchFile      the input patch file to recover
+     * @param extractTo      the recovered dex file
+     * @param filename       dex name in the patch
+     * @param cost           cost time in ms
+     */
+    @Override
+    public void onPatchDexRecover(File patchFile, File extractTo, String filename, long cost) {
+        TinkerLog.i(TAG, "patchReporter onPatchDexRecover: dex recovered path: %s, extractTo: %s, filename: %s, cost: %d",
+            patchFile.getPath(), extractTo.getPath(), filename, cost);
+    }
+
     /**
      * dex opt failed
      *
@@ -0,0 +1,38 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.lib.reporter;
+
+import java.io.File;
+
+/**
+ * optional callback of a {@link PatchReporter}, implement it as well to receive
+ * the time each dex took to recover. {@link DefaultPatchReporter} implements it.
+ */
+public interface DexRecoverReporter {
+
+    /**
+     * a dex file is recovered and verified, dexes may be recovered concurrently
+     * but this is always called on the patch thread
+     *
+     * @param patchFile      the input patch file to recover
+     * @param extractTo      the recovered dex file
+     * @param filename       dex name in the patch
+     * @param cost           cost time in ms
+     */
+    void onPatchDexRecover(File patchFile, File extractTo, String filename, long cost);
+}
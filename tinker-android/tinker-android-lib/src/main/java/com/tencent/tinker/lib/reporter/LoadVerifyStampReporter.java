@@ -0,0 +1,34 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.lib.reporter;
+
+/**
+ * optional callback of a {@link LoadReporter}, implement it as well to receive
+ * how many patch files were verified by their stamps. {@link DefaultLoadReporter} implements it.
+ */
+public interface LoadVerifyStampReporter {
+
+    /**
+     * with {@code TinkerApplication.tinkerLoadVerifyFlag}, files verified by an earlier launch
+     * are not hashed again while their size, modified time and inode are unchanged.
+     *
+     * @param hitCount  files whose verification was skipped
+     * @param missCount files which were hashed
+     */
+    void onLoadVerifyStamps(int hitCount, int missCount);
+}
@@ -85,7 +85,6 @@ public interface PatchReporter {
      */
     void onPatchTypeExtractFail(File patchFile, File extractTo, String filename, int fileType);
 
-
     /**
      * dex opt failed
      *
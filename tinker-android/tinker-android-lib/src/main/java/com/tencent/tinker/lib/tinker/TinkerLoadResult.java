@@ -20,6 +20,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 
+import com.tencent.tinker.lib.reporter.LoadReporter;
+import com.tencent.tinker.lib.reporter.LoadVerifyStampReporter;
 import com.tencent.tinker.lib.util.TinkerLog;
 import com.tencent.tinker.loader.TinkerRuntimeException;
 import com.tencent.tinker.loader.shareutil.ShareConstants;
@@ -328,6 +330,13 @@ public class TinkerLoadResult {
 
                 packageConfig = ShareIntentUtil.getIntentPackageConfig(intentResult);
 
+                int verifyStampHit = ShareIntentUtil.getIntExtra(intentResult, ShareIntentUtil.INTENT_PATCH_VERIFY_STAMP_HIT, 0);
+                int verifyStampMiss = ShareIntentUtil.getIntExtra(intentResult, ShareIntentUtil.INTENT_PATCH_VERIFY_STAMP_MISS, 0);
+                LoadReporter loadReporter = tinker.getLoadReporter();
+                if (verifyStampHit + verifyStampMiss > 0 && loadReporter instanceof LoadVerifyStampReporter) {
+                    ((LoadVerifyStampReporter) loadReporter).onLoadVerifyStamps(verifyStampHit, verifyStampMiss);
+                }
+
                 if (useInterpretMode) {
                     tinker.getLoadReporter().onLoadInterpret(ShareConstants.TYPE_INTERPRET_OK, null);
                 }
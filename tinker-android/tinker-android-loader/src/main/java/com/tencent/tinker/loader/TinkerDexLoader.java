@@ -28,11 +28,14 @@ import com.tencent.tinker.loader.shareutil.ShareIntentUtil;
 import com.tencent.tinker.loader.shareutil.SharePatchFileUtil;
 import com.tencent.tinker.loader.shareutil.ShareSecurityCheck;
 import com.tencent.tinker.loader.shareutil.ShareTinkerInternals;
+import com.tencent.tinker.loader.shareutil.ShareVerifyStamps;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import dalvik.system.BaseDexClassLoader;
 
@@ -69,6 +72,18 @@ public class TinkerDexLoader {
      */
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     public static boolean loadTinkerJars(final TinkerApplication application, String directory, String oatDir, Intent intentResult, boolean isSystemOTA, boolean isProtectedApp) {
+        return loadTinkerJars(application, directory, oatDir, intentResult, isSystemOTA, isProtectedApp, null);
+    }
+
+    /**
+     * Load tinker JARs and add them to
+     * the Application ClassLoader.
+     *
+     * @param application The application.
+     * @param verifyStamps dexes stamped in it are not verified again, null if verify flag is off
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    public static boolean loadTinkerJars(final TinkerApplication application, String directory, String oatDir, Intent intentResult, boolean isSystemOTA, boolean isProtectedApp, ShareVerifyStamps verifyStamps) {
         if (LOAD_DEX_LIST.isEmpty() && classNDexInfo.isEmpty()) {
             Log.w(TAG, "there is no dex to load");
             return true;
@@ -98,14 +113,21 @@ public class TinkerDexLoader {
             if (application.isTinkerLoadVerifyFlag()) {
                 long start = System.currentTimeMillis();
                 String checkMd5 = getInfoMd5(info);
-                if (!SharePatchFileUtil.verifyDexFileMd5(file, checkMd5)) {
-                    //it is good to delete the mismatch file
-                    ShareIntentUtil.setIntentReturnCode(intentResult, ShareConstants.ERROR_LOAD_PATCH_VERSION_DEX_MD5_MISMATCH);
-                    intentResult.putExtra(ShareIntentUtil.INTENT_PATCH_MISMATCH_DEX_PATH,
-                        file.getAbsolutePath());
-                    return false;
+                if (verifyStamps != null && verifyStamps.isVerified(file, ShareConstants.DEX_IN_JAR, checkMd5)) {
+                    Log.i(TAG, "dex file:" + file.getPath() + " md5 is stamped, skip verifying");
+                } else {
+                    if (!SharePatchFileUtil.verifyDexFileMd5(file, checkMd5)) {
+                        //it is good to delete the mismatch file
+                        ShareIntentUtil.setIntentReturnCode(intentResult, ShareConstants.ERROR_LOAD_PATCH_VERSION_DEX_MD5_MISMATCH);
+                        intentResult.putExtra(ShareIntentUtil.INTENT_PATCH_MISMATCH_DEX_PATH,
+                            file.getAbsolutePath());
+                        return false;
+                    }
+                    if (verifyStamps != null) {
+                        verifyStamps.markVerified(file, ShareConstants.DEX_IN_JAR, checkMd5);
+                    }
+                    Log.i(TAG, "verify dex file:" + file.getPath() + " md5, use time: " + (System.currentTimeMillis() - start));
                 }
-                Log.i(TAG, "verify dex file:" + file.getPath() + " md5, use time: " + (System.currentTimeMillis() - start));
             }
             legalFiles.add(file);
         }
@@ -116,13 +138,26 @@ public class TinkerDexLoader {
             long start = System.currentTimeMillis();
 
             if (application.isTinkerLoadVerifyFlag()) {
+                HashMap<String, String> entryNameToMd5 = new HashMap<>();
                 for (ShareDexDiffPatchInfo info : classNDexInfo) {
-                    if (!SharePatchFileUtil.verifyDexFileMd5(classNFile, info.rawName, info.destMd5InArt)) {
+                    if (verifyStamps == null || !verifyStamps.isVerified(classNFile, info.rawName, info.destMd5InArt)) {
+                        entryNameToMd5.put(info.rawName, info.destMd5InArt);
+                    }
+                }
+                if (!entryNameToMd5.isEmpty()) {
+                    List<String> mismatchedEntryNames = SharePatchFileUtil.verifyDexFileMd5s(classNFile, entryNameToMd5);
+                    if (!mismatchedEntryNames.isEmpty()) {
+                        Log.e(TAG, "verify dex file md5 error, entries: " + mismatchedEntryNames);
                         ShareIntentUtil.setIntentReturnCode(intentResult, ShareConstants.ERROR_LOAD_PATCH_VERSION_DEX_MD5_MISMATCH);
                         intentResult.putExtra(ShareIntentUtil.INTENT_PATCH_MISMATCH_DEX_PATH,
                             classNFile.getAbsolutePath());
                         return false;
                     }
+                    if (verifyStamps != null) {
+                        for (Map.Entry<String, String> entry : entryNameToMd5.entrySet()) {
+                            verifyStamps.markVerified(classNFile, entry.getKey(), entry.getValue());
+                        }
+                    }
                 }
             }
             Log.i(TAG, "verify dex file:" + classNFile.getPath() + " md5, use time: " + (System.currentTimeMillis() - start));
@@ -30,6 +30,7 @@ import com.tencent.tinker.loader.shareutil.SharePatchFileUtil;
 import com.tencent.tinker.loader.shareutil.SharePatchInfo;
 import com.tencent.tinker.loader.shareutil.ShareSecurityCheck;
 import com.tencent.tinker.loader.shareutil.ShareTinkerInternals;
+import com.tencent.tinker.loader.shareutil.ShareVerifyStamps;
 
 import java.io.File;
 
@@ -341,10 +342,14 @@ public class TinkerLoader extends AbstractTinkerLoader {
             return;
         }
 
+        // files verified by an earlier launch are not hashed again while they stay unchanged
+        final ShareVerifyStamps verifyStamps = app.isTinkerLoadVerifyFlag()
+            ? ShareVerifyStamps.load(SharePatchFileUtil.getPatchVerifyStampsFile(patchDirectoryPath), version) : null;
+
         //now we can load patch jar
         if (!isArkHotRuning && isEnabledForDex) {
             // 在收到补丁时已经完成了dex2oat的操作，这次直接load
-            boolean loadTinkerJars = TinkerDexLoader.loadTinkerJars(app, patchVersionDirectory, oatDex, resultIntent, isSystemOTA, isProtectedApp);
+            boolean loadTinkerJars = TinkerDexLoader.loadTinkerJars(app, patchVersionDirectory, oatDex, resultIntent, isSystemOTA, isProtectedApp, verifyStamps);
 
             // 如果是 ota 的话，更新 oat 的文件夹路径
             if (isSystemOTA) {
@@ -379,13 +384,19 @@ public class TinkerLoader extends AbstractTinkerLoader {
         //now we can load patch resource
         // 合成好的资源补丁存放在/data/data/${PackageName}/tinker/res/中，名为resources.apk
         if (isEnabledForResource) {
-            boolean loadTinkerResources = TinkerResourceLoader.loadTinkerResources(app, patchVersionDirectory, resultIntent);
+            boolean loadTinkerResources = TinkerResourceLoader.loadTinkerResources(app, patchVersionDirectory, resultIntent, verifyStamps);
             if (!loadTinkerResources) {
                 Log.w(TAG, "tryLoadPatchFiles:onPatchLoadResourcesFail");
                 return;
             }
         }
 
+        if (verifyStamps != null) {
+            verifyStamps.save();
+            resultIntent.putExtra(ShareIntentUtil.INTENT_PATCH_VERIFY_STAMP_HIT, verifyStamps.getHitCount());
+            resultIntent.putExtra(ShareIntentUtil.INTENT_PATCH_VERIFY_STAMP_MISS, verifyStamps.getMissCount());
+        }
+
         // Init component hotplug support.
         if ((isEnabledForDex || isEnabledForArkHot) && isEnabledForResource) {
             ComponentHotplug.install(app, securityCheck);
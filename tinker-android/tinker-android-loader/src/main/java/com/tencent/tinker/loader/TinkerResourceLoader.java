@@ -32,6 +32,7 @@ import com.tencent.tinker.loader.shareutil.SharePatchFileUtil;
 import com.tencent.tinker.loader.shareutil.ShareReflectUtil;
 import com.tencent.tinker.loader.shareutil.ShareResPatchInfo;
 import com.tencent.tinker.loader.shareutil.ShareSecurityCheck;
+import com.tencent.tinker.loader.shareutil.ShareVerifyStamps;
 
 import java.io.File;
 import java.lang.reflect.Field;
@@ -64,6 +65,15 @@ public class TinkerResourceLoader {
      * Load tinker resources
      */
     public static boolean loadTinkerResources(TinkerApplication application, String directory, Intent intentResult) {
+        return loadTinkerResources(application, directory, intentResult, null);
+    }
+
+    /**
+     * Load tinker resources
+     *
+     * @param verifyStamps resources stamped in it are not verified again, null if verify flag is off
+     */
+    public static boolean loadTinkerResources(TinkerApplication application, String directory, Intent intentResult, ShareVerifyStamps verifyStamps) {
         // 检查 res_meta.txt 中读取出来的 md5 值，如果 resPatchInfo 或者 md5 是空的，就说明补丁包中没有资源补丁，不需要加载
         if (resPatchInfo == null || resPatchInfo.resArscMd5 == null) {
             return true;
@@ -73,12 +83,19 @@ public class TinkerResourceLoader {
         long start = System.currentTimeMillis();
 
         if (application.isTinkerLoadVerifyFlag()) {
-            if (!SharePatchFileUtil.checkResourceArscMd5(resourceFile, resPatchInfo.resArscMd5)) {
-                Log.e(TAG, "Failed to load resource file, path: " + resourceFile.getPath() + ", expect md5: " + resPatchInfo.resArscMd5);
-                ShareIntentUtil.setIntentReturnCode(intentResult, ShareConstants.ERROR_LOAD_PATCH_VERSION_RESOURCE_MD5_MISMATCH);
-                return false;
+            if (verifyStamps != null && verifyStamps.isVerified(resourceFile, ShareConstants.RES_ARSC, resPatchInfo.resArscMd5)) {
+                Log.i(TAG, "resource file:" + resourceFile.getPath() + " md5 is stamped, skip verifying");
+            } else {
+                if (!SharePatchFileUtil.checkResourceArscMd5(resourceFile, resPatchInfo.resArscMd5)) {
+                    Log.e(TAG, "Failed to load resource file, path: " + resourceFile.getPath() + ", expect md5: " + resPatchInfo.resArscMd5);
+                    ShareIntentUtil.setIntentReturnCode(intentResult, ShareConstants.ERROR_LOAD_PATCH_VERSION_RESOURCE_MD5_MISMATCH);
+                    return false;
+                }
+                if (verifyStamps != null) {
+                    verifyStamps.markVerified(resourceFile, ShareConstants.RES_ARSC, resPatchInfo.resArscMd5);
+                }
+                Log.i(TAG, "verify resource file:" + resourceFile.getPath() + " md5, use time: " + (System.currentTimeMillis() - start));
             }
-            Log.i(TAG, "verify resource file:" + resourceFile.getPath() + " md5, use time: " + (System.currentTimeMillis() - start));
         }
         try {
             TinkerResourcePatcher.monkeyPatchExistingResources(application, resourceString);
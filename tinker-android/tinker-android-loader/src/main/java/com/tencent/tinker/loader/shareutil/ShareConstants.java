@@ -103,6 +103,7 @@ public class ShareConstants {
 
     public static final String PATCH_INFO_NAME      = "patch.info";
     public static final String PATCH_INFO_LOCK_NAME = "info.lock";
+    public static final String PATCH_VERIFY_STAMPS_NAME = "verify.stamps";
 
     public static final String META_SUFFIX = "meta.txt";
 
@@ -45,6 +45,8 @@ public class ShareIntentUtil {
     public static final  String INTENT_PATCH_SYSTEM_OTA          = "intent_patch_system_ota";
     public static final  String INTENT_PATCH_OAT_DIR             = "intent_patch_oat_dir";
     public static final  String INTENT_PATCH_INTERPRET_EXCEPTION = "intent_patch_interpret_exception";
+    public static final  String INTENT_PATCH_VERIFY_STAMP_HIT    = "intent_patch_verify_stamp_hit";
+    public static final  String INTENT_PATCH_VERIFY_STAMP_MISS   = "intent_patch_verify_stamp_miss";
 
 
     private static final String TAG                              = "ShareIntentUtil";
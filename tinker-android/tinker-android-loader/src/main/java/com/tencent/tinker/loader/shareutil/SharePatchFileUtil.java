@@ -34,6 +34,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
@@ -43,6 +47,11 @@ import java.util.zip.ZipFile;
 public class SharePatchFileUtil {
     private static final String TAG = "Tinker.PatchFileUtil";
 
+    /**
+     * entries smaller than this are not worth a thread of their own when verifying
+     */
+    private static final long PARALLEL_VERIFY_MIN_ENTRY_SIZE = 1024 * 1024;
+
     private static char[] hexDigits = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 
     /**
@@ -86,6 +95,10 @@ public class SharePatchFileUtil {
         return new File(patchDirectory + "/" + ShareConstants.PATCH_INFO_LOCK_NAME);
     }
 
+    public static File getPatchVerifyStampsFile(String patchDirectory) {
+        return new File(patchDirectory + "/" + ShareConstants.PATCH_VERIFY_STAMPS_NAME);
+    }
+
     public static String getPatchVersionDirectory(String version) {
         if (version == null || version.length() != ShareConstants.MD5_LENGTH) {
             return null;
@@ -333,6 +346,119 @@ public class SharePatchFileUtil {
         return md5.equals(fileMd5);
     }
 
+    /**
+     * Verifies several dex entries of one jar, such as tinker_classN.apk, opening it only once.
+     * Large entries are digested in parallel.
+     *
+     * @param entryNameToMd5 expected md5 of each entry
+     * @return names of the entries that are missing or mismatched, all of them if file is null,
+     * empty if all of them are valid
+     */
+    public static List<String> verifyDexFileMd5s(File file, Map<String, String> entryNameToMd5) {
+        final List<String> mismatchedEntryNames = new ArrayList<>();
+        if (entryNameToMd5 == null) {
+            return mismatchedEntryNames;
+        }
+        if (file == null) {
+            mismatchedEntryNames.addAll(entryNameToMd5.keySet());
+            return mismatchedEntryNames;
+        }
+        if (isRawDexFile(file.getName())) {
+            for (Map.Entry<String, String> entry : entryNameToMd5.entrySet()) {
+                if (!verifyDexFileMd5(file, entry.getKey(), entry.getValue())) {
+                    mismatchedEntryNames.add(entry.getKey());
+                }
+            }
+            return mismatchedEntryNames;
+        }
+
+        ZipFile dexJar = null;
+        try {
+            dexJar = new ZipFile(file);
+        } catch (Throwable e) {
+            Log.e(TAG, "Bad dex jar file: " + file.getAbsolutePath(), e);
+            mismatchedEntryNames.addAll(entryNameToMd5.keySet());
+            return mismatchedEntryNames;
+        }
+        try {
+            final List<String> entryNames = new ArrayList<>(entryNameToMd5.keySet());
+            final String[] entryMd5s = new String[entryNames.size()];
+
+            int largeEntryCount = 0;
+            for (String entryName : entryNames) {
+                ZipEntry entry = dexJar.getEntry(entryName);
+                if (entry != null && entry.getSize() >= PARALLEL_VERIFY_MIN_ENTRY_SIZE) {
+                    ++largeEntryCount;
+                }
+            }
+            final int threadCount = Math.min(largeEntryCount, Runtime.getRuntime().availableProcessors());
+
+            final ZipFile jar = dexJar;
+            final AtomicInteger nextIndex = new AtomicInteger();
+            Runnable digestTask = new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = nextIndex.getAndIncrement()) < entryMd5s.length) {
+                        entryMd5s[index] = getZipEntryMd5(jar, entryNames.get(index));
+                    }
+                }
+            };
+
+            Thread[] helpers = new Thread[Math.max(threadCount - 1, 0)];
+            for (int i = 0; i < helpers.length; ++i) {
+                helpers[i] = new Thread(digestTask, "Tinker.VerifyDex-" + i);
+                helpers[i].start();
+            }
+            digestTask.run();
+            // helpers read from the jar, so it must not be closed before all of them are done
+            boolean interrupted = false;
+            for (Thread helper : helpers) {
+                while (true) {
+                    try {
+                        helper.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Log.w(TAG, "interrupted when verifying " + file.getAbsolutePath());
+                Thread.currentThread().interrupt();
+            }
+
+            for (int i = 0; i < entryMd5s.length; ++i) {
+                String entryName = entryNames.get(i);
+                String md5 = entryNameToMd5.get(entryName);
+                if (md5 == null || !md5.equals(entryMd5s[i])) {
+                    mismatchedEntryNames.add(entryName);
+                }
+            }
+        } finally {
+            closeZip(dexJar);
+        }
+        return mismatchedEntryNames;
+    }
+
+    private static String getZipEntryMd5(ZipFile zipFile, String entryName) {
+        ZipEntry entry = zipFile.getEntry(entryName);
+        if (entry == null) {
+            Log.e(TAG, "There's no entry named: " + entryName + " in " + zipFile.getName());
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = zipFile.getInputStream(entry);
+            return getMD5(is);
+        } catch (Throwable e) {
+            Log.e(TAG, "exception occurred when get md5 of " + entryName + " in " + zipFile.getName(), e);
+            return null;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
     public static void copyFileUsingStream(File source, File dest) throws IOException {
         if (!SharePatchFileUtil.isLegalFile(source) || dest == null) {
             return;
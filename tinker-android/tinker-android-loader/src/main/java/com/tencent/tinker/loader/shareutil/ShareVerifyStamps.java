@@ -0,0 +1,178 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.loader.shareutil;
+
+import android.os.Build;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers patch files whose md5 has been verified, so the next launch can skip hashing them
+ * again while their size, modified time and inode stay the same.
+ *
+ * Stamps belong to one patch version and one system fingerprint, a new patch or an ota drops
+ * all of them. Each stamp expires after {@link #MAX_STAMP_AGE_MS}, then the file is hashed again.
+ */
+public final class ShareVerifyStamps {
+    private static final String TAG = "Tinker.VerifyStamps";
+
+    private static final String KEY_PATCH_VERSION = "version";
+    private static final String KEY_FINGER_PRINT  = "print";
+    private static final String STAMP_KEY_PREFIX  = "stamp:";
+
+    private static final long MAX_STAMP_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private final File       stampFile;
+    private final Properties stamps;
+    private boolean isDirty;
+    private int     hitCount;
+    private int     missCount;
+
+    private ShareVerifyStamps(File stampFile, Properties stamps, boolean isDirty) {
+        this.stampFile = stampFile;
+        this.stamps = stamps;
+        this.isDirty = isDirty;
+    }
+
+    /**
+     * Reads the stamps of {@code patchVersion}, stamps of any other version or fingerprint are dropped.
+     */
+    public static ShareVerifyStamps load(File stampFile, String patchVersion) {
+        Properties properties = new Properties();
+        if (stampFile.exists()) {
+            FileInputStream is = null;
+            try {
+                is = new FileInputStream(stampFile);
+                properties.load(is);
+            } catch (Throwable e) {
+                Log.w(TAG, "read verify stamps failed, e:" + e);
+                properties.clear();
+            } finally {
+                SharePatchFileUtil.closeQuietly(is);
+            }
+        }
+        if (patchVersion.equals(properties.getProperty(KEY_PATCH_VERSION))
+            && Build.FINGERPRINT.equals(properties.getProperty(KEY_FINGER_PRINT))) {
+            return new ShareVerifyStamps(stampFile, properties, false);
+        }
+        Properties fresh = new Properties();
+        fresh.setProperty(KEY_PATCH_VERSION, patchVersion);
+        fresh.setProperty(KEY_FINGER_PRINT, Build.FINGERPRINT);
+        return new ShareVerifyStamps(stampFile, fresh, !properties.isEmpty());
+    }
+
+    public static void clear(File stampFile) {
+        SharePatchFileUtil.safeDeleteFile(stampFile);
+    }
+
+    /**
+     * @param entryName entry verified in {@code file}, or the file name for a raw file
+     * @return true if {@code file} was verified against {@code md5} and has not changed since
+     */
+    public boolean isVerified(File file, String entryName, String md5) {
+        String stamp = stamps.getProperty(stampKey(file, entryName));
+        if (stamp != null) {
+            String[] parts = stamp.split(",");
+            // size:modified:inode,md5,verified time
+            if (parts.length == 3 && parts[1].equals(md5) && parts[0].equals(statOf(file))) {
+                long age = System.currentTimeMillis() - parseLong(parts[2]);
+                if (age >= 0 && age < MAX_STAMP_AGE_MS) {
+                    ++hitCount;
+                    return true;
+                }
+            }
+        }
+        ++missCount;
+        return false;
+    }
+
+    public void markVerified(File file, String entryName, String md5) {
+        stamps.setProperty(stampKey(file, entryName), statOf(file) + "," + md5 + "," + System.currentTimeMillis());
+        isDirty = true;
+    }
+
+    public int getHitCount() {
+        return hitCount;
+    }
+
+    public int getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Writes the stamps to a temp file which then replaces the old one, so other processes
+     * never read half of it.
+     */
+    public void save() {
+        if (!isDirty) {
+            return;
+        }
+        File tempFile = new File(stampFile.getPath() + "." + android.os.Process.myPid() + ".tmp");
+        boolean isWritten = false;
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile, false);
+            stamps.store(os, null);
+            isWritten = true;
+        } catch (IOException e) {
+            Log.w(TAG, "write verify stamps failed, e:" + e);
+        } finally {
+            SharePatchFileUtil.closeQuietly(os);
+        }
+        if (!isWritten || !tempFile.renameTo(stampFile)) {
+            Log.w(TAG, "save verify stamps failed: " + stampFile.getPath());
+            SharePatchFileUtil.safeDeleteFile(tempFile);
+            return;
+        }
+        isDirty = false;
+    }
+
+    private static String stampKey(File file, String entryName) {
+        return STAMP_KEY_PREFIX + file.getAbsolutePath() + "!" + entryName;
+    }
+
+    /**
+     * size, modified time and inode, the inode is 0 below lollipop
+     */
+    private static String statOf(File file) {
+        long inode = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                inode = Os.stat(file.getAbsolutePath()).st_ino;
+            } catch (Throwable e) {
+                Log.w(TAG, "stat failed: " + file.getPath() + ", e:" + e);
+            }
+        }
+        return file.length() + ":" + file.lastModified() + ":" + inode;
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
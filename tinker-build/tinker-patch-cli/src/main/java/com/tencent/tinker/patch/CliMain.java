@@ -19,6 +19,7 @@ package com.tencent.tinker.patch;
 
 import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.build.patch.Runner;
+import com.tencent.tinker.build.util.IncrementalState;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
@@ -43,6 +44,11 @@ public class CliMain extends Runner {
     private static final String ARG_CONFIG = "-config";
     private static final String ARG_OLD    = "-old";
     private static final String ARG_NEW    = "-new";
+    private static final String ARG_PARALLELISM = "-parallelism";
+    private static final String ARG_DIFF_CACHE_DIR = "-diffCacheDir";
+    private static final String ARG_DIFF_CACHE_SIZE = "-diffCacheSize";
+    private static final String ARG_INCREMENTAL_FROM = "-incrementalFrom";
+    private static final String ARG_SAVE_INCREMENTAL_STATE = "-saveIncrementalState";
 
     protected static String mRunningLocation;
 
@@ -76,7 +82,9 @@ public class CliMain extends Runner {
         String command = "tinker.jar"; //$NON-NLS-1$
         out.println();
         out.println();
-        out.println("Usage: java -jar " + command + " " + ARG_OLD + " old.apk " + ARG_NEW + " new.apk " + ARG_CONFIG + " tinker_config.xml " + ARG_OUT + " output_path");
+        out.println("Usage: java -jar " + command + " " + ARG_OLD + " old.apk " + ARG_NEW + " new.apk " + ARG_CONFIG + " tinker_config.xml " + ARG_OUT + " output_path"
+            + " [" + ARG_PARALLELISM + " thread_count] [" + ARG_DIFF_CACHE_DIR + " cache_dir [" + ARG_DIFF_CACHE_SIZE + " size_in_mb]]"
+            + " [" + ARG_INCREMENTAL_FROM + " previous_output_path] [" + ARG_SAVE_INCREMENTAL_STATE + "]");
         out.println("others please contact us");
     }
 
@@ -102,7 +110,24 @@ public class CliMain extends Runner {
                 outputFile = new File(mRunningLocation, TypedValue.PATH_DEFAULT_OUTPUT);
             }
 
+            // the output folder is cleaned while loading the config
+            File incrementalStateDir = null;
+            if (readArgs.getIncrementalFrom() != null) {
+                incrementalStateDir = IncrementalState.stashIfInside(readArgs.getIncrementalFrom(), outputFile);
+            }
+
             loadConfigFromXml(configFile, outputFile, oldApkFile, newApkFile);
+            mConfig.mIncrementalStateDir = incrementalStateDir;
+            mConfig.mSaveIncrementalState = readArgs.isSaveIncrementalState();
+            if (readArgs.getParallelism() > 0) {
+                mConfig.mParallelism = readArgs.getParallelism();
+            }
+            if (readArgs.getDiffCacheDir() != null) {
+                mConfig.mDiffCacheDir = readArgs.getDiffCacheDir();
+            }
+            if (readArgs.getDiffCacheSizeMb() > 0) {
+                mConfig.mDiffCacheMaxSize = readArgs.getDiffCacheSizeMb() * 1024L * 1024L;
+            }
             Logger.initLogger(mConfig);
             tinkerPatch();
         } catch (IOException e) {
@@ -136,6 +161,11 @@ public class CliMain extends Runner {
         private File     outputFile;
         private File     oldApkFile;
         private File     newApkFile;
+        private int      parallelism;
+        private File     diffCacheDir;
+        private int      diffCacheSizeMb;
+        private File     incrementalFrom;
+        private boolean  saveIncrementalState;
 
         ReadArgs(String[] args) {
             this.args = args;
@@ -157,6 +187,26 @@ public class CliMain extends Runner {
             return newApkFile;
         }
 
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public File getDiffCacheDir() {
+            return diffCacheDir;
+        }
+
+        public int getDiffCacheSizeMb() {
+            return diffCacheSizeMb;
+        }
+
+        public File getIncrementalFrom() {
+            return incrementalFrom;
+        }
+
+        public boolean isSaveIncrementalState() {
+            return saveIncrementalState;
+        }
+
         public ReadArgs invoke() {
             for (int index = 0; index < args.length; index++) {
                 String arg = args[index];
@@ -192,6 +242,42 @@ public class CliMain extends Runner {
                         goToError(new IllegalArgumentException("Missing new apk file argument"), ERRNO_USAGE);
                     }
                     newApkFile = new File(args[++index]);
+                } else if (arg.equals(ARG_PARALLELISM)) {
+                    if (index == args.length - 1) {
+                        goToError(new IllegalArgumentException("Missing parallelism argument"), ERRNO_USAGE);
+                    }
+                    try {
+                        parallelism = Integer.parseInt(args[++index]);
+                    } catch (NumberFormatException e) {
+                        goToError(new IllegalArgumentException("Invalid parallelism argument: " + args[index]), ERRNO_USAGE);
+                    }
+                    if (parallelism <= 0) {
+                        goToError(new IllegalArgumentException("Parallelism must be positive: " + parallelism), ERRNO_USAGE);
+                    }
+                } else if (arg.equals(ARG_DIFF_CACHE_DIR)) {
+                    if (index == args.length - 1) {
+                        goToError(new IllegalArgumentException("Missing diff cache dir argument"), ERRNO_USAGE);
+                    }
+                    diffCacheDir = new File(args[++index]);
+                } else if (arg.equals(ARG_DIFF_CACHE_SIZE)) {
+                    if (index == args.length - 1) {
+                        goToError(new IllegalArgumentException("Missing diff cache size argument"), ERRNO_USAGE);
+                    }
+                    try {
+                        diffCacheSizeMb = Integer.parseInt(args[++index]);
+                    } catch (NumberFormatException e) {
+                        goToError(new IllegalArgumentException("Invalid diff cache size argument: " + args[index]), ERRNO_USAGE);
+                    }
+                    if (diffCacheSizeMb <= 0) {
+                        goToError(new IllegalArgumentException("Diff cache size must be positive: " + diffCacheSizeMb), ERRNO_USAGE);
+                    }
+                } else if (arg.equals(ARG_INCREMENTAL_FROM)) {
+                    if (index == args.length - 1) {
+                        goToError(new IllegalArgumentException("Missing incremental from argument"), ERRNO_USAGE);
+                    }
+                    incrementalFrom = new File(args[++index]);
+                } else if (arg.equals(ARG_SAVE_INCREMENTAL_STATE)) {
+                    saveIncrementalState = true;
                 }
             }
             return this;
@@ -90,12 +90,61 @@ public class TinkerPatchExtension {
      */
     boolean useSign
 
+    /**
+     * Deflate level of the patch apk entries, from 0 to 9.
+     * default: 9
+     */
+    int compressLevel
+
+    /**
+     * Compression of the blocks in so and resource bsdiff files: gzip, deflate-best or stored.
+     * Anything but gzip can only be applied by a tinker runtime which knows that codec.
+     * default: "gzip"
+     */
+    String bsdiffCodec
+
     /**
      * whether use tinker
      * default: true
      */
     boolean tinkerEnable
 
+    /**
+     * Number of worker threads used to hash and diff the files of both apks,
+     * and of regions bsdiff searches concurrently in a large file.
+     * 1 diffs everything on the calling thread.
+     * default: 0, which means the number of available processors, but at most 4
+     */
+    int parallelism
+
+    /**
+     * Directory to keep dex and bsdiff outputs in, so that later builds against the same
+     * base apk can reuse them. The directory may be shared by several builds.
+     * default: "", which disables the cache
+     */
+    String diffCacheDir
+
+    /**
+     * Size limit of {@link #diffCacheDir} in megabytes, least recently used outputs are evicted first.
+     * default: 512
+     */
+    int diffCacheMaxSizeMb
+
+    /**
+     * Output folder of a previous patch build against the same old apk. Dex and bsdiff outputs
+     * and digests of entries which did not change since then are taken from there.
+     * It may be the output folder of this task itself.
+     * default: "", which does a full build
+     */
+    String incrementalFrom
+
+    /**
+     * Keep the state of this build in its output folder so a later build can use it as
+     * {@link #incrementalFrom}. It is always kept when building incrementally.
+     * default: false
+     */
+    boolean saveIncrementalState
+
     public TinkerPatchExtension() {
         oldApk = ""
         outputFolder = ""
@@ -104,7 +153,14 @@ public class TinkerPatchExtension {
         allowLoaderInAnyDex = false
         removeLoaderForAllDex = false
         useSign = true
+        compressLevel = 9
+        bsdiffCodec = "gzip"
         tinkerEnable = true
+        parallelism = 0
+        diffCacheDir = ""
+        diffCacheMaxSizeMb = 512
+        incrementalFrom = ""
+        saveIncrementalState = false
     }
 
     void checkParameter() {
@@ -117,7 +173,9 @@ public class TinkerPatchExtension {
         } else if (!apk.isFile()) {
             throw new GradleException("old apk ${oldApk} is a directory, you must set the correct old apk value!")
         }
-
+        if (parallelism < 0) {
+            throw new GradleException("parallelism ${parallelism} is negative, you must set a value >= 0!")
+        }
     }
 
     @Override
@@ -129,6 +187,13 @@ public class TinkerPatchExtension {
            | removeLoaderForAllDex = ${removeLoaderForAllDex}
            | tinkerEnable = ${tinkerEnable}
            | useSign = ${useSign}
+           | compressLevel = ${compressLevel}
+           | bsdiffCodec = ${bsdiffCodec}
+           | parallelism = ${parallelism}
+           | diffCacheDir = ${diffCacheDir}
+           | diffCacheMaxSizeMb = ${diffCacheMaxSizeMb}
+           | incrementalFrom = ${incrementalFrom}
+           | saveIncrementalState = ${saveIncrementalState}
         """.stripMargin()
     }
 }
\ No newline at end of file
@@ -87,6 +87,13 @@ public class TinkerPatchSchemaTask extends DefaultTask {
                .setConfigFields(new HashMap<String, String>(configuration.packageConfig.getFields()))
                .setSevenZipPath(configuration.sevenZip.path)
                .setUseSign(configuration.useSign)
+               .setCompressLevel(configuration.compressLevel)
+               .setBsDiffCodec(configuration.bsdiffCodec)
+               .setParallelism(configuration.parallelism)
+               .setDiffCacheDir(configuration.diffCacheDir)
+               .setDiffCacheMaxSizeMb(configuration.diffCacheMaxSizeMb)
+               .setIncrementalFrom(configuration.incrementalFrom)
+               .setSaveIncrementalState(configuration.saveIncrementalState)
                .setArkHotPath(configuration.arkHot.path)
                .setArkHotName(configuration.arkHot.name)
 
@@ -30,7 +30,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.Key;
 import java.security.KeyStore;
-import java.util.ArrayList;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
 
 /**
  * @author zhangshaowen
@@ -61,10 +63,20 @@ public class PatchBuilder {
         if (resultDir.listFiles().length == 0) {
             return;
         }
-        generateUnsignedApk(unSignedApk);
-        signApk(unSignedApk, signedApk);
+        long begin = System.currentTimeMillis();
+        if (config.mUseSignAPk) {
+            writePatchApk(signedApk, true);
+            Logger.d("Write and sign apk %s cost %dms", signedApk.getName(), System.currentTimeMillis() - begin);
+        } else {
+            writePatchApk(unSignedApk, false);
+            Logger.d("Write unsigned apk %s cost %dms", unSignedApk.getName(), System.currentTimeMillis() - begin);
+        }
 
+        begin = System.currentTimeMillis();
         use7zApk(signedApk, signedWith7ZipApk, sevenZipOutPutDir);
+        if (signedWith7ZipApk.exists()) {
+            Logger.d("Repack apk with 7za %s cost %dms", signedWith7ZipApk.getName(), System.currentTimeMillis() - begin);
+        }
 
         if (!signedApk.exists()) {
             Logger.e("Result: final unsigned patch result: %s, size=%d", unSignedApk.getAbsolutePath(), unSignedApk.length());
@@ -86,90 +98,68 @@ public class PatchBuilder {
 
     }
 
-    private String getSignatureAlgorithm() throws Exception {
-        InputStream is = null;
-        try {
-            is = new BufferedInputStream(new FileInputStream(config.mSignatureFile));
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            keyStore.load(is, config.mStorePass.toCharArray());
-            Key key = keyStore.getKey(config.mStoreAlias, config.mKeyPass.toCharArray());
-            String keyAlgorithm = key.getAlgorithm();
-            String signatureAlgorithm;
-            if (keyAlgorithm.equalsIgnoreCase("DSA")) {
-                signatureAlgorithm = "SHA1withDSA";
-            } else if (keyAlgorithm.equalsIgnoreCase("RSA")) {
-                signatureAlgorithm = "SHA1withRSA";
-            } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
-                signatureAlgorithm = "SHA1withECDSA";
-            } else {
-                throw new RuntimeException("private key is not a DSA or "
-                        + "RSA key");
-            }
-            return signatureAlgorithm;
-        } finally {
-            IOHelper.closeQuietly(is);
-        }
-    }
-
-    /**
-     * @param input  unsigned file input
-     * @param output signed file output
-     * @throws IOException
-     * @throws InterruptedException
-     */
-    private void signApk(File input, File output) throws Exception {
-        //sign apk
-        if (config.mUseSignAPk) {
-            Logger.d("Signing apk: %s", output.getName());
-            String signatureAlgorithm = getSignatureAlgorithm();
-            Logger.d("Signing key algorithm is %s", signatureAlgorithm);
-
-            if (output.exists()) {
-                output.delete();
-            }
-            ArrayList<String> command = new ArrayList<>();
-            command.add("jarsigner");
-            // issue https://github.com/Tencent/tinker/issues/118
-            command.add("-sigalg");
-            command.add(signatureAlgorithm);
-            command.add("-digestalg");
-            command.add("SHA1");
-            command.add("-keystore");
-            command.add(config.mSignatureFile.getAbsolutePath());
-            command.add("-storepass");
-            command.add(config.mStorePass);
-            command.add("-keypass");
-            command.add(config.mKeyPass);
-            command.add("-signedjar");
-            command.add(output.getAbsolutePath());
-            command.add(input.getAbsolutePath());
-            command.add(config.mStoreAlias);
-
-            Process process = new ProcessBuilder(command).start();
-            process.waitFor();
-            process.destroy();
-            if (!output.exists()) {
-                throw new IOException("Can't Generate signed APK. Please check if your sign info is correct.");
-            }
+    private static String getSignatureAlgorithm(Key key) {
+        String keyAlgorithm = key.getAlgorithm();
+        String signatureAlgorithm;
+        if (keyAlgorithm.equalsIgnoreCase("DSA")) {
+            signatureAlgorithm = "SHA1withDSA";
+        } else if (keyAlgorithm.equalsIgnoreCase("RSA")) {
+            signatureAlgorithm = "SHA1withRSA";
+        } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
+            signatureAlgorithm = "SHA1withECDSA";
+        } else {
+            throw new RuntimeException("private key is not a DSA or "
+                    + "RSA key");
         }
+        return signatureAlgorithm;
     }
 
     /**
-     * @param output unsigned apk file output
+     * Zips the result dir into the patch apk and, if asked to, signs it with the configured keystore
+     * while writing, instead of zipping first and running jarsigner over the whole patch again.
+     *
+     * @param output signed or unsigned apk file output
      * @throws IOException
      */
-    private void generateUnsignedApk(File output) throws IOException {
-        Logger.d("Generate unsigned apk: %s", output.getName());
+    private void writePatchApk(File output, boolean sign) throws Exception {
+        Logger.d(sign ? "Signing apk: %s" : "Generate unsigned apk: %s", output.getName());
         final File tempOutDir = config.mTempResultDir;
         if (!tempOutDir.exists()) {
             throw new IOException(String.format(
                 "Missing patch unzip files, path=%s\n", tempOutDir.getAbsolutePath()));
         }
-        FileOperation.zipInputDir(tempOutDir, output, null);
+        if (output.exists()) {
+            output.delete();
+        }
+
+        SignedApkWriter writer = new SignedApkWriter(config.mCompressLevel);
+        if (sign) {
+            InputStream is = null;
+            try {
+                is = new BufferedInputStream(new FileInputStream(config.mSignatureFile));
+                KeyStore keyStore = KeyStore.getInstance("JKS");
+                keyStore.load(is, config.mStorePass.toCharArray());
+                Key key = keyStore.getKey(config.mStoreAlias, config.mKeyPass.toCharArray());
+                Certificate[] chain = keyStore.getCertificateChain(config.mStoreAlias);
+                if (!(key instanceof PrivateKey) || chain == null || chain.length == 0) {
+                    throw new IOException("Can't find the private key of " + config.mStoreAlias + ". Please check if your sign info is correct.");
+                }
+                X509Certificate[] certificates = new X509Certificate[chain.length];
+                for (int i = 0; i < chain.length; i++) {
+                    certificates[i] = (X509Certificate) chain[i];
+                }
+                String signatureAlgorithm = getSignatureAlgorithm(key);
+                Logger.d("Signing key algorithm is %s", signatureAlgorithm);
+                writer.setSigner((PrivateKey) key, certificates, signatureAlgorithm, config.mStoreAlias);
+            } finally {
+                IOHelper.closeQuietly(is);
+            }
+        }
+        writer.write(tempOutDir, output);
 
         if (!output.exists()) {
             throw new IOException(String.format(
-                "can not found the unsigned apk file path=%s",
+                "can not found the apk file path=%s",
                 output.getAbsolutePath()));
         }
     }
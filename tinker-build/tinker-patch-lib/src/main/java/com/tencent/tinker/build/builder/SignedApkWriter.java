@@ -0,0 +1,402 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.builder;
+
+import com.tencent.tinker.build.util.Logger;
+import com.tencent.tinker.build.util.TypedValue;
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs a directory into an apk in a single pass, optionally signing it with a jar (v1) signature
+ * the way jarsigner does with SHA1 digests, without forking any process.
+ *
+ * Entry digests are taken from the bytes while they are written. The manifest, signature file and
+ * signature block are appended after the entries, which {@link java.util.jar.JarFile} based
+ * verifiers, including the patch loader's, read through the central directory anyway.
+ */
+public class SignedApkWriter {
+    private static final String META_INF_DIR   = "META-INF/";
+    private static final String MANIFEST_NAME  = META_INF_DIR + "MANIFEST.MF";
+    private static final String CREATED_BY     = "1.0 (Tinker)";
+    private static final String DIGEST_ALG     = "SHA-1";
+    private static final String DIGEST_ATTR    = "SHA1-Digest";
+    private static final int    MAX_LINE_BYTES = 72;
+
+    private static final String OID_SIGNED_DATA    = "1.2.840.113549.1.7.2";
+    private static final String OID_DATA           = "1.2.840.113549.1.7.1";
+    private static final String OID_SHA1           = "1.3.14.3.2.26";
+    private static final String OID_RSA_ENCRYPTION = "1.2.840.113549.1.1.1";
+    private static final String OID_DSA            = "1.2.840.10040.4.1";
+    private static final String OID_EC_PUBLIC_KEY  = "1.2.840.10045.2.1";
+
+    /**
+     * these are compressed already, deflating them again only costs time
+     */
+    private static final String[] STORED_SUFFIXES = {".zip", ".jar", ".apk"};
+
+    private static final char[] BASE64_CHARS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final int compressLevel;
+
+    private PrivateKey        signerKey;
+    private X509Certificate[] signerCertificates;
+    private String            signatureAlgorithm;
+    private String            signerName;
+
+    public SignedApkWriter(int compressLevel) {
+        this.compressLevel = compressLevel;
+    }
+
+    /**
+     * @param signatureAlgorithm such as SHA1withRSA
+     * @param alias              key alias, the signature files are named after it as jarsigner does
+     */
+    public void setSigner(PrivateKey key, X509Certificate[] certificates, String signatureAlgorithm, String alias) {
+        this.signerKey = key;
+        this.signerCertificates = certificates;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.signerName = getSignerName(alias);
+    }
+
+    public void write(File inputDir, File output) throws IOException, GeneralSecurityException {
+        List<String> names = new ArrayList<>();
+        collectFileNames(inputDir, "", names);
+        Collections.sort(names);
+
+        boolean sign = signerKey != null;
+        MessageDigest digest = sign ? MessageDigest.getInstance(DIGEST_ALG) : null;
+        Map<String, String> entryDigests = new LinkedHashMap<>();
+        byte[] buffer = new byte[TypedValue.BUFFER_SIZE];
+
+        ZipOutputStream zos = null;
+        try {
+            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(output), TypedValue.BUFFER_SIZE));
+            zos.setLevel(compressLevel);
+            for (String name : names) {
+                if (sign && name.startsWith(META_INF_DIR)) {
+                    Logger.e("Warning: %s is replaced by the patch signature, skip it", name);
+                    continue;
+                }
+                File file = new File(inputDir, name);
+                writeFileEntry(zos, name, file, digest, buffer);
+                if (sign) {
+                    entryDigests.put(name, base64(digest.digest()));
+                }
+            }
+            if (sign) {
+                writeSignature(zos, entryDigests);
+            }
+        } finally {
+            IOHelper.closeQuietly(zos);
+        }
+    }
+
+    private static void collectFileNames(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectFileNames(file, prefix + file.getName() + "/", names);
+            } else {
+                names.add(prefix + file.getName());
+            }
+        }
+    }
+
+    private void writeFileEntry(ZipOutputStream zos, String name, File file, MessageDigest digest, byte[] buffer) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (isStored(name)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(file.length());
+            entry.setCompressedSize(file.length());
+            entry.setCrc(getCrc32(file, buffer));
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+        }
+        zos.putNextEntry(entry);
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                zos.write(buffer, 0, len);
+                if (digest != null) {
+                    digest.update(buffer, 0, len);
+                }
+            }
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+        zos.closeEntry();
+    }
+
+    private static boolean isStored(String name) {
+        String lowerName = name.toLowerCase(Locale.US);
+        for (String suffix : STORED_SUFFIXES) {
+            if (lowerName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getCrc32(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, len);
+            }
+        } finally {
+            IOHelper.closeQuietly(is);
+        }
+        return crc.getValue();
+    }
+
+    private void writeSignature(ZipOutputStream zos, Map<String, String> entryDigests) throws IOException, GeneralSecurityException {
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALG);
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeAttribute(manifest, "Manifest-Version", "1.0");
+        writeAttribute(manifest, "Created-By", CREATED_BY);
+        writeLineEnd(manifest);
+
+        // the signature file holds the digest of each manifest section
+        ByteArrayOutputStream sectionDigests = new ByteArrayOutputStream();
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> entry : entryDigests.entrySet()) {
+            section.reset();
+            writeAttribute(section, "Name", entry.getKey());
+            writeAttribute(section, DIGEST_ATTR, entry.getValue());
+            writeLineEnd(section);
+            section.writeTo(manifest);
+
+            writeAttribute(sectionDigests, "Name", entry.getKey());
+            writeAttribute(sectionDigests, DIGEST_ATTR, base64(digest.digest(section.toByteArray())));
+            writeLineEnd(sectionDigests);
+        }
+        byte[] manifestBytes = manifest.toByteArray();
+
+        ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+        writeAttribute(signatureFile, "Signature-Version", "1.0");
+        writeAttribute(signatureFile, "Created-By", CREATED_BY);
+        writeAttribute(signatureFile, DIGEST_ATTR + "-Manifest", base64(digest.digest(manifestBytes)));
+        writeLineEnd(signatureFile);
+        sectionDigests.writeTo(signatureFile);
+        byte[] signatureFileBytes = signatureFile.toByteArray();
+
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+        signature.initSign(signerKey);
+        signature.update(signatureFileBytes);
+        byte[] signatureBlock = encodeSignatureBlock(signature.sign());
+
+        writeBytesEntry(zos, MANIFEST_NAME, manifestBytes);
+        writeBytesEntry(zos, META_INF_DIR + signerName + ".SF", signatureFileBytes);
+        writeBytesEntry(zos, META_INF_DIR + signerName + "." + getBlockExtension(), signatureBlock);
+    }
+
+    private static void writeBytesEntry(ZipOutputStream zos, String name, byte[] bytes) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        zos.putNextEntry(entry);
+        zos.write(bytes);
+        zos.closeEntry();
+    }
+
+    /**
+     * Writes "name: value" split into lines of at most 72 bytes, continuation lines start with a space.
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) throws IOException {
+        byte[] line = (name + ": " + value).getBytes("UTF-8");
+        int offset = Math.min(line.length, MAX_LINE_BYTES);
+        out.write(line, 0, offset);
+        writeLineEnd(out);
+        while (offset < line.length) {
+            int count = Math.min(line.length - offset, MAX_LINE_BYTES - 1);
+            out.write(' ');
+            out.write(line, offset, count);
+            writeLineEnd(out);
+            offset += count;
+        }
+    }
+
+    private static void writeLineEnd(ByteArrayOutputStream out) {
+        out.write('\r');
+        out.write('\n');
+    }
+
+    /**
+     * Same naming as jarsigner: the alias upper-cased, cut to 8 characters, with characters
+     * other than letters, digits, '-' and '_' replaced by '_'.
+     */
+    private static String getSignerName(String alias) {
+        String name = alias.length() > 8 ? alias.substring(0, 8) : alias;
+        name = name.toUpperCase(Locale.US);
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    private String getBlockExtension() {
+        return signerKey.getAlgorithm().toUpperCase(Locale.US);
+    }
+
+    private String getEncryptionAlgorithmOid() {
+        String keyAlgorithm = signerKey.getAlgorithm();
+        if (keyAlgorithm.equalsIgnoreCase("RSA")) {
+            return OID_RSA_ENCRYPTION;
+        } else if (keyAlgorithm.equalsIgnoreCase("DSA")) {
+            return OID_DSA;
+        } else if (keyAlgorithm.equalsIgnoreCase("EC")) {
+            return OID_EC_PUBLIC_KEY;
+        }
+        throw new IllegalStateException("unsupported key algorithm " + keyAlgorithm);
+    }
+
+    /**
+     * PKCS#7 SignedData over the detached signature file, without authenticated attributes.
+     */
+    private byte[] encodeSignatureBlock(byte[] signature) throws GeneralSecurityException {
+        X509Certificate signerCertificate = signerCertificates[0];
+        byte[] sha1AlgorithmId = derSequence(derOid(OID_SHA1), derNull());
+
+        byte[][] certificates = new byte[signerCertificates.length][];
+        for (int i = 0; i < signerCertificates.length; i++) {
+            certificates[i] = signerCertificates[i].getEncoded();
+        }
+
+        byte[] signerInfo = derSequence(
+            derInteger(BigInteger.ONE),
+            derSequence(
+                signerCertificate.getIssuerX500Principal().getEncoded(),
+                derInteger(signerCertificate.getSerialNumber())
+            ),
+            sha1AlgorithmId,
+            derSequence(derOid(getEncryptionAlgorithmOid()), derNull()),
+            der(0x04, signature)
+        );
+
+        byte[] signedData = derSequence(
+            derInteger(BigInteger.ONE),
+            der(0x31, sha1AlgorithmId),
+            derSequence(derOid(OID_DATA)),
+            der(0xa0, certificates),
+            der(0x31, signerInfo)
+        );
+        return derSequence(derOid(OID_SIGNED_DATA), der(0xa0, signedData));
+    }
+
+    private static byte[] derSequence(byte[]... contents) {
+        return der(0x30, contents);
+    }
+
+    private static byte[] derInteger(BigInteger value) {
+        return der(0x02, value.toByteArray());
+    }
+
+    private static byte[] derNull() {
+        return new byte[] {0x05, 0x00};
+    }
+
+    private static byte[] derOid(String oid) {
+        String[] parts = oid.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(parts[0]) * 40 + Integer.parseInt(parts[1]));
+        for (int i = 2; i < parts.length; i++) {
+            long value = Long.parseLong(parts[i]);
+            int shift = 63 - Long.numberOfLeadingZeros(value | 1);
+            shift -= shift % 7;
+            for (; shift > 0; shift -= 7) {
+                out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+            }
+            out.write((int) (value & 0x7f));
+        }
+        return der(0x06, out.toByteArray());
+    }
+
+    private static byte[] der(int tag, byte[]... contents) {
+        int length = 0;
+        for (byte[] content : contents) {
+            length += content.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int lengthBytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                out.write(length >>> (i * 8));
+            }
+        }
+        for (byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String base64(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xff;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xff : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xff : 0;
+            sb.append(BASE64_CHARS[b0 >>> 2]);
+            sb.append(BASE64_CHARS[((b0 & 0x03) << 4) | (b1 >>> 4)]);
+            sb.append(i + 1 < data.length ? BASE64_CHARS[((b1 & 0x0f) << 2) | (b2 >>> 6)] : '=');
+            sb.append(i + 2 < data.length ? BASE64_CHARS[b2 & 0x3f] : '=');
+        }
+        return sb.toString();
+    }
+}
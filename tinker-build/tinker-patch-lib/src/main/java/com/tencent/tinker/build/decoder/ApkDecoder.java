@@ -18,21 +18,23 @@ package com.tencent.tinker.build.decoder;
 
 
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.ApkEntryIndex;
 import com.tencent.tinker.build.util.FileOperation;
+import com.tencent.tinker.build.util.IncrementalState;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by zhangshaowen on 16/3/15.
@@ -70,30 +72,20 @@ public class ApkDecoder extends BaseDecoder {
         resDuplicateFiles = new ArrayList<>();
     }
 
-    private void unzipApkFile(File file, File destFile) throws TinkerPatchException, IOException {
+    private void checkApkFile(File file) throws TinkerPatchException {
         String apkName = file.getName();
         if (!apkName.endsWith(TypedValue.FILE_APK)) {
             throw new TinkerPatchException(
                 String.format("input apk file path must end with .apk, yours %s\n", apkName)
             );
         }
-
-        String destPath = destFile.getAbsolutePath();
-        Logger.d("UnZipping apk to %s", destPath);
-        FileOperation.unZipAPk(file.getAbsoluteFile().getAbsolutePath(), destPath);
-
-    }
-
-    private void unzipApkFiles(File oldFile, File newFile) throws IOException, TinkerPatchException {
-        unzipApkFile(oldFile, this.mOldApkDir);
-        unzipApkFile(newFile, this.mNewApkDir);
     }
 
     // 构建日志
     //old apk: app-pp_release-release.apk, size=24103923, md5=fd9e01ee6f4f86f267d7368949143e50
     //new apk: app-pp_release-release.apk, size=24103739, md5=9944ec291fc80f57bf3e3e2b4ab607dd
-    private void writeToLogFile(File oldFile, File newFile) throws IOException {
-        String line1 = "old apk1131: " + oldFile.getName() + ", size=" + FileOperation.getFileSizes(oldFile) + ", md5=" + MD5.getMD5(oldFile);
+    private void writeToLogFile(File oldFile, String oldMd5, File newFile) throws IOException {
+        String line1 = "old apk1131: " + oldFile.getName() + ", size=" + FileOperation.getFileSizes(oldFile) + ", md5=" + oldMd5;
         String line2 = "new apk: " + newFile.getName() + ", size=" + FileOperation.getFileSizes(newFile) + ", md5=" + MD5.getMD5(newFile);
         Logger.d("Analyze old and new apk files1:");
         Logger.d(line1);
@@ -109,33 +101,74 @@ public class ApkDecoder extends BaseDecoder {
         resPatchDecoder.onAllPatchesStart();
     }
 
-    // Files.walkFileTree
-    // 2) NIO.2的Files工具类提供了一个静态工具方法walkFileTree来高效并优雅地遍历文件系统；
-    //
-    //    3) walkFileTree：
-    //
-    //         i. 原型：static Path Files.walkFileTree(Path start, FileVisitor<? super Path> visitor);
-    //
-    //         ii. 表示从start代表的节点开始遍历文件系统；
-    //
-    //         iii. 其中visitor是遍历过程中的行为控制器；
-    //
-    //    4) 遍历行为控制器——FileVisitor：
-    //
-    //         i. 它是一个接口，里面定义了4个方法用来指定当你访问一个节点之前、之中、之后、失败时应该采取什么行动；
-    //
-    //         ii. 这个设计非常优雅和科学，毕竟你在遍历文件系统时想要做的事情无外乎发生在这几个时间点上，Java全部为你考虑好了，并搭好了框架！多么的贴心！！
     public boolean patch(File oldFile, File newFile) throws Exception {
-        writeToLogFile(oldFile, newFile);
+        String oldApkMd5 = MD5.getMD5(oldFile);
+        writeToLogFile(oldFile, oldApkMd5, newFile);
         // Q&A 为什么针对manifest 单独处理？而不是下面的walkFileTree 的方式？因为manifest只有一个？
         // 为什么manifest是直接从两个apk中解析比较？而其他的是先解压后进行比较？
         // 为什么需要先进行manifest的patch?
         //check manifest change first
         manifestDecoder.patch(oldFile, newFile);
 
-        unzipApkFiles(oldFile, newFile);
+        checkApkFile(oldFile);
+        checkApkFile(newFile);
+        FileOperation.checkDirectory(mOldApkDir.getAbsolutePath());
+        FileOperation.checkDirectory(mNewApkDir.getAbsolutePath());
+
+        IncrementalState previousState = null;
+        if (config.mIncrementalStateDir != null) {
+            previousState = IncrementalState.load(config.mIncrementalStateDir, oldApkMd5);
+        }
+        IncrementalState currentState = null;
+        if (config.mSaveIncrementalState || config.mIncrementalStateDir != null) {
+            currentState = IncrementalState.create(new File(config.mOutFolder), oldApkMd5);
+        }
+        dexPatchDecoder.setIncrementalStates(previousState, currentState);
+        soPatchDecoder.setIncrementalStates(previousState, currentState);
+        resPatchDecoder.setIncrementalStates(previousState, currentState);
 
-        Files.walkFileTree(mNewApkDir.toPath(), new ApkFilesVisitor(config, mNewApkDir.toPath(), mOldApkDir.toPath(), dexPatchDecoder, soPatchDecoder, resPatchDecoder));
+        ApkEntryIndex entryIndex = new ApkEntryIndex(oldFile, newFile);
+        if (previousState != null) {
+            entryIndex.seedDigests(previousState.getDigests());
+        }
+        dexPatchDecoder.setEntryIndex(entryIndex);
+        soPatchDecoder.setEntryIndex(entryIndex);
+        resPatchDecoder.setEntryIndex(entryIndex);
+        ExecutorService executor = createDiffExecutor(config.mParallelism, "tinker-apk-diff-");
+        ExecutorService bsdiffExecutor = createDiffExecutor(config.mParallelism, "tinker-bsdiff-scan-");
+        MemoryBudget memoryBudget = executor != null ? MemoryBudget.ofMaxMemory() : null;
+        soPatchDecoder.setBsDiffExecutor(bsdiffExecutor);
+        resPatchDecoder.setBsDiffExecutor(bsdiffExecutor);
+        try {
+            DecoderWorkQueue dexQueue = new DecoderWorkQueue(dexPatchDecoder, executor, memoryBudget);
+            DecoderWorkQueue soQueue = new DecoderWorkQueue(soPatchDecoder, executor, memoryBudget);
+            DecoderWorkQueue resQueue = new DecoderWorkQueue(resPatchDecoder, executor, memoryBudget);
+
+            scheduleChangedEntries(entryIndex, dexQueue, soQueue, resQueue);
+
+            // dex jobs do their work while committing, so let them run here while the workers
+            // are still busy with so and resource files.
+            dexQueue.drain();
+            soQueue.drain();
+            resQueue.drain();
+            Logger.d("Apk entry index: %s", entryIndex.getStatistics());
+            if (currentState != null) {
+                currentState.putDigests(entryIndex.getDigests());
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (bsdiffExecutor != null) {
+                bsdiffExecutor.shutdownNow();
+            }
+            soPatchDecoder.setBsDiffExecutor(null);
+            resPatchDecoder.setBsDiffExecutor(null);
+            entryIndex.close();
+            dexPatchDecoder.setEntryIndex(null);
+            soPatchDecoder.setEntryIndex(null);
+            resPatchDecoder.setEntryIndex(null);
+        }
 
         // get all duplicate resource file
         for (File duplicateRes : resDuplicateFiles) {
@@ -150,6 +183,16 @@ public class ApkDecoder extends BaseDecoder {
         resPatchDecoder.onAllPatchesEnd();
         arkHotDecoder.onAllPatchesEnd();
 
+        if (currentState != null) {
+            currentState.save();
+        }
+        if (config.mIncrementalStateDir != null) {
+            IncrementalState.release(config.mIncrementalStateDir);
+        }
+        dexPatchDecoder.setIncrementalStates(null, null);
+        soPatchDecoder.setIncrementalStates(null, null);
+        resPatchDecoder.setIncrementalStates(null, null);
+
         //clean resources
         dexPatchDecoder.clean();
         soPatchDecoder.clean();
@@ -163,76 +206,77 @@ public class ApkDecoder extends BaseDecoder {
     public void onAllPatchesEnd() throws IOException, TinkerPatchException {
     }
 
-    class ApkFilesVisitor extends SimpleFileVisitor<Path> {
-        BaseDecoder     dexDecoder;
-        BaseDecoder     soDecoder;
-        BaseDecoder     resDecoder;
-        Configuration   config;
-        Path            newApkPath;
-        Path            oldApkPath;
-
-        ApkFilesVisitor(Configuration config, Path newPath, Path oldPath, BaseDecoder dex, BaseDecoder so, BaseDecoder resDecoder) {
-            this.config = config;
-            this.dexDecoder = dex;
-            this.soDecoder = so;
-            this.resDecoder = resDecoder;
-            this.newApkPath = newPath;
-            this.oldApkPath = oldPath;
+    /**
+     * Workers hashing and diffing so and resource files, or scanning the regions of one bsdiff run,
+     * or null to do everything on the calling thread.
+     */
+    private static ExecutorService createDiffExecutor(int parallelism, final String threadNamePrefix) {
+        if (parallelism <= 1) {
+            return null;
         }
+        final AtomicInteger threadIndex = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadNamePrefix + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
+    /**
+     * Hands the entries of the new apk to the decoders. Dex files are always extracted since the dex
+     * decoder needs every old/new pair, while so and resource entries with the same size and crc in
+     * both apks are skipped without being read. Only the entries handed to a decoder, plus deleted
+     * resources, are extracted to the temp dirs.
+     */
+    private void scheduleChangedEntries(ApkEntryIndex entryIndex, DecoderWorkQueue dexQueue,
+                                        DecoderWorkQueue soQueue, DecoderWorkQueue resQueue) throws IOException {
+        int unchangedCount = 0;
+        int extractedCount = 0;
+        for (TinkerZipEntry newEntry : entryIndex.getNewEntries()) {
+            String patternKey = newEntry.getName();
+            TinkerZipEntry oldEntry = entryIndex.getOldEntry(patternKey);
+
+            DecoderWorkQueue queue;
+            if (Utils.checkFileInPattern(config.mDexFilePattern, patternKey)) {
+                queue = dexQueue;
+            } else if (Utils.checkFileInPattern(config.mSoFilePattern, patternKey)) {
+                queue = soQueue;
+            } else if (Utils.checkFileInPattern(config.mResFilePattern, patternKey)) {
+                queue = resQueue;
+            } else {
+                continue;
+            }
 
-        // note  真正进行patch的地方
-        // visitFile 正在访问一个文件时要干啥
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            //Constructs a relative path between this path and a given path.
-            Path relativePath = newApkPath.relativize(file);
+            //also treat duplicate file as unchanged
+            if (queue != resQueue && oldEntry != null && Utils.checkFileInPattern(config.mResFilePattern, patternKey)) {
+                resDuplicateFiles.add(new File(mOldApkDir, patternKey));
+            }
 
-            //Resolve the given path against this path.
-            Path oldPath = oldApkPath.resolve(relativePath);
+            if (queue != dexQueue && entryIndex.isUnchanged(newEntry)) {
+                ++unchangedCount;
+                continue;
+            }
 
             File oldFile = null;
-            //is a new file?!
-            if (oldPath.toFile().exists()) {
-                oldFile = oldPath.toFile();
-            }
-            String patternKey = relativePath.toString().replace("\\", "/");
-
-            if (Utils.checkFileInPattern(config.mDexFilePattern, patternKey)) {// 针对解压后的dex文件
-                //also treat duplicate file as unchanged
-                if (Utils.checkFileInPattern(config.mResFilePattern, patternKey) && oldFile != null) {
-                    resDuplicateFiles.add(oldFile);
-                }
-
-                try {
-                    dexDecoder.patch(oldFile, file.toFile());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                return FileVisitResult.CONTINUE;
+            if (oldEntry != null) {
+                oldFile = entryIndex.extractOld(oldEntry, mOldApkDir);
+                ++extractedCount;
             }
-            if (Utils.checkFileInPattern(config.mSoFilePattern, patternKey)) {
-                //also treat duplicate file as unchanged
-                if (Utils.checkFileInPattern(config.mResFilePattern, patternKey) && oldFile != null) {
-                    resDuplicateFiles.add(oldFile);
-                }
-                try {
-                    soDecoder.patch(oldFile, file.toFile());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                return FileVisitResult.CONTINUE;
-            }
-            // Q&A 此处有对manifest进行处理，为什么要处理两次
-            if (Utils.checkFileInPattern(config.mResFilePattern, patternKey)) {
-                try {
-                    resDecoder.patch(oldFile, file.toFile());
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                return FileVisitResult.CONTINUE;
+            File newFile = entryIndex.extractNew(newEntry, mNewApkDir);
+            ++extractedCount;
+            queue.submit(oldFile, newFile);
+        }
+
+        // the resource decoder finds deleted resources by looking for old files without a new one
+        for (TinkerZipEntry oldEntry : entryIndex.getDeletedEntries()) {
+            if (Utils.checkFileInPattern(config.mResFilePattern, oldEntry.getName())) {
+                entryIndex.extractOld(oldEntry, mOldApkDir);
+                ++extractedCount;
             }
-            return FileVisitResult.CONTINUE;
         }
+        Logger.d("Skipped %d entries with the same size and crc in both apks, extracted %d entries", unchangedCount, extractedCount);
     }
 }
@@ -16,29 +16,60 @@
 
 package com.tencent.tinker.build.decoder;
 
+import com.tencent.tinker.bsdiff.BSDiff;
 import com.tencent.tinker.build.patch.Configuration;
+import com.tencent.tinker.build.util.ApkEntryIndex;
+import com.tencent.tinker.build.util.DiffCache;
+import com.tencent.tinker.build.util.IncrementalState;
+import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Created by zhangshaowen on 16/2/28.
  */
 public abstract class BaseDecoder {
+    /**
+     * bump when the bsdiff output format or its default settings change
+     */
+    private static final int BSDIFF_CACHE_VERSION = 1;
 
     protected final Configuration config;
     protected final File          outDir;
 
     protected final File resultDir;
 
+    /**
+     * null if no diff cache is configured
+     */
+    protected final DiffCache diffCache;
+
+    /**
+     * set by {@link ApkDecoder} while it hands files to this decoder, may be null
+     */
+    protected ApkEntryIndex entryIndex;
+
+    /**
+     * set by {@link ApkDecoder} for the whole build, previousState is null unless building incrementally
+     */
+    protected IncrementalState previousState;
+    protected IncrementalState currentState;
+
+    /**
+     * set by {@link ApkDecoder} while it hands files to this decoder, null to scan bsdiff inputs serially
+     */
+    protected ExecutorService bsdiffExecutor;
 
     public BaseDecoder(Configuration config) throws IOException {
         this.config = config;
         this.outDir = new File(config.mOutFolder);
 
         this.resultDir = config.mTempResultDir;
+        this.diffCache = DiffCache.open(config);
 
     }
 
@@ -46,6 +77,92 @@ public abstract class BaseDecoder {
         return config;
     }
 
+    public void setEntryIndex(ApkEntryIndex entryIndex) {
+        this.entryIndex = entryIndex;
+    }
+
+    public void setBsDiffExecutor(ExecutorService bsdiffExecutor) {
+        this.bsdiffExecutor = bsdiffExecutor;
+    }
+
+    public void setIncrementalStates(IncrementalState previousState, IncrementalState currentState) {
+        this.previousState = previousState;
+        this.currentState = currentState;
+    }
+
+    /**
+     * MD5 of a file, reusing the digest of an identical entry already hashed by another job.
+     */
+    protected String getFileMD5(File file) {
+        if (entryIndex == null) {
+            return MD5.getMD5(file);
+        }
+        String md5 = entryIndex.getCachedDigest(file, "md5");
+        if (md5 == null) {
+            md5 = MD5.getMD5(file);
+            entryIndex.cacheDigest(file, "md5", md5);
+        }
+        return md5;
+    }
+
+    /**
+     * Name, size and crc of the apk entry a file came from, so the old file of a bsdiff run
+     * does not have to be hashed, or its md5 if it was not extracted from an apk. Only unique
+     * within one base apk, so it keys the incremental state but never the shared diff cache.
+     */
+    protected String getContentKey(File file) {
+        String contentKey = entryIndex != null ? entryIndex.getContentKey(file) : null;
+        return contentKey != null ? contentKey : getFileMD5(file);
+    }
+
+    /**
+     * Runs bsdiff, or copies the output of an earlier build for the same old and new content
+     * from the previous incremental state or the diff cache.
+     */
+    protected void bsdiff(File oldFile, File newFile, String newMd5, File diffFile) throws IOException {
+        if (diffCache == null && previousState == null && currentState == null) {
+            BSDiff.bsdiff(oldFile, newFile, diffFile, getBsDiffOptions());
+            return;
+        }
+        String stateKey = null;
+        if (previousState != null || currentState != null) {
+            stateKey = DiffCache.key("bsdiff", BSDIFF_CACHE_VERSION, getContentKey(oldFile), newMd5, config.mBsDiffCodec.getName());
+        }
+        boolean isRestored = previousState != null && previousState.getOutput(stateKey, diffFile);
+        String cacheKey = null;
+        if (!isRestored && diffCache != null) {
+            cacheKey = DiffCache.key("bsdiff", BSDIFF_CACHE_VERSION, getFileMD5(oldFile), newMd5, config.mBsDiffCodec.getName());
+            isRestored = diffCache.get(cacheKey, diffFile);
+        }
+        if (!isRestored) {
+            BSDiff.bsdiff(oldFile, newFile, diffFile, getBsDiffOptions());
+            if (cacheKey != null) {
+                diffCache.put(cacheKey, diffFile);
+            }
+        }
+        if (currentState != null) {
+            currentState.putOutput(stateKey, diffFile);
+        }
+    }
+
+    /**
+     * The regions of one bsdiff run share the buffers of the job, which already holds its weight
+     * in the memory budget, and a pool of their own, so they add threads but no memory.
+     */
+    private BSDiff.Options getBsDiffOptions() {
+        return new BSDiff.Options()
+            .setCodec(config.mBsDiffCodec)
+            .setParallelism(bsdiffExecutor != null ? config.mParallelism : 1)
+            .setExecutor(bsdiffExecutor);
+    }
+
+    /**
+     * @return true if the apk entries of both files already tell that their content differs
+     */
+    protected boolean isKnownChanged(File oldFile, File newFile) {
+        return entryIndex != null && entryIndex.isKnownChanged(oldFile, newFile);
+    }
+
 
     protected void clean() {
     }
@@ -80,7 +197,35 @@ public abstract class BaseDecoder {
      */
     abstract public boolean patch(File oldFile, File newFile) throws Exception;
 
+    /**
+     * Wraps one call of {@link #patch(File, File)} so that {@link ApkDecoder} can split it across threads.
+     * The default job does all of its work in {@link PatchJob#commit()}.
+     */
+    public PatchJob createPatchJob(final File oldFile, final File newFile) {
+        return new PatchJob() {
+            @Override
+            protected boolean commit() throws Exception {
+                return patch(oldFile, newFile);
+            }
+        };
+    }
+
     abstract public void onAllPatchesStart() throws Exception;
 
     abstract public void onAllPatchesEnd() throws Exception;
+
+    /**
+     * One old/new file pair scheduled on a decoder.
+     *
+     * {@link #compute()} may run on a worker thread, concurrently with other jobs of the same decoder,
+     * so it must only do self-contained work such as hashing, diffing or copying files into the result dir.
+     * {@link #commit()} is always called on the thread walking the apk, in walk order, and is where
+     * decoder state and meta/log writers may be touched.
+     */
+    public abstract static class PatchJob {
+        protected void compute() throws Exception {
+        }
+
+        protected abstract boolean commit() throws Exception;
+    }
 }
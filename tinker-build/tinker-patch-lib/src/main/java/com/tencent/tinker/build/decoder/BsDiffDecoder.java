@@ -16,7 +16,6 @@
 
 package com.tencent.tinker.build.decoder;
 
-import com.tencent.tinker.bsdiff.BSDiff;
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.build.util.FileOperation;
@@ -59,49 +58,14 @@ public class BsDiffDecoder extends BaseDecoder {
 
     @Override
     public boolean patch(File oldFile, File newFile) throws IOException, TinkerPatchException {
-        //first of all, we should check input files
-        if (newFile == null || !newFile.exists()) {
-            return false;
-        }
-        //new add file
-        String newMd5 = MD5.getMD5(newFile);
-        File bsDiffFile = getOutputPath(newFile).toFile();
-
-        if (oldFile == null || !oldFile.exists()) {
-            FileOperation.copyFileUsingStream(newFile, bsDiffFile);
-            writeLogFiles(newFile, null, null, newMd5);
-            return true;
-        }
-
-        //both file length is 0
-        if (oldFile.length() == 0 && newFile.length() == 0) {
-            return false;
-        }
-        if (oldFile.length() == 0 || newFile.length() == 0) {
-            FileOperation.copyFileUsingStream(newFile, bsDiffFile);
-            writeLogFiles(newFile, null, null, newMd5);
-            return true;
-        }
-
-        //new add file
-        String oldMd5 = MD5.getMD5(oldFile);
-
-        if (oldMd5.equals(newMd5)) {
-            return false;
-        }
-
-        if (!bsDiffFile.getParentFile().exists()) {
-            bsDiffFile.getParentFile().mkdirs();
-        }
-        BSDiff.bsdiff(oldFile, newFile, bsDiffFile);
+        BsDiffJob job = new BsDiffJob(oldFile, newFile);
+        job.compute();
+        return job.commit();
+    }
 
-        if (Utils.checkBsDiffFileSize(bsDiffFile, newFile)) {
-            writeLogFiles(newFile, oldFile, bsDiffFile, newMd5);
-        } else {
-            FileOperation.copyFileUsingStream(newFile, bsDiffFile);
-            writeLogFiles(newFile, null, null, newMd5);
-        }
-        return true;
+    @Override
+    public PatchJob createPatchJob(File oldFile, File newFile) {
+        return new BsDiffJob(oldFile, newFile);
     }
 
     @Override
@@ -114,7 +78,8 @@ public class BsDiffDecoder extends BaseDecoder {
 
     }
 
-    protected void writeLogFiles(File newFile, File oldFile, File bsDiff, String newMd5) throws IOException {
+    protected void writeLogFiles(File newFile, File oldFile, File bsDiff, String newMd5,
+                                 String oldCrc, String bsDiffMd5) throws IOException {
         if (metaWriter == null && logWriter == null) {
             return;
         }
@@ -128,13 +93,12 @@ public class BsDiffDecoder extends BaseDecoder {
             if (bsDiff == null || oldFile == null) {
                 meta = fileName + "," + parentRelative + "," + newMd5 + "," + 0 + "," + 0;
             } else {
-                String oldCrc = FileOperation.getZipEntryCrc(config.mOldApkFile, relative);
                 if (oldCrc == null || oldCrc.equals("0")) {
                     throw new TinkerPatchException(
                         String.format("can't find zipEntry %s from old apk file %s", relative, config.mOldApkFile.getPath())
                     );
                 }
-                meta = fileName + "," + parentRelative + "," + newMd5 + "," + oldCrc + "," + MD5.getMD5(bsDiff);
+                meta = fileName + "," + parentRelative + "," + newMd5 + "," + oldCrc + "," + bsDiffMd5;
             }
             Logger.d("BsDiffDecoder:write meta file data: %s", meta);
             metaWriter.writeLineToInfoFile(meta);
@@ -147,4 +111,88 @@ public class BsDiffDecoder extends BaseDecoder {
             logWriter.writeLineToInfoFile(log);
         }
     }
+
+    /**
+     * Hashing, bsdiff and the crc lookup in the old apk run in {@link #compute()};
+     * only the meta and log lines are written in {@link #commit()}.
+     */
+    private final class BsDiffJob extends PatchJob {
+        private final File oldFile;
+        private final File newFile;
+
+        private boolean changed;
+        private String  newMd5;
+        private File    bsDiffFile;
+        private String  oldCrc;
+        private String  bsDiffMd5;
+
+        BsDiffJob(File oldFile, File newFile) {
+            this.oldFile = oldFile;
+            this.newFile = newFile;
+        }
+
+        @Override
+        protected void compute() throws IOException {
+            //first of all, we should check input files
+            if (newFile == null || !newFile.exists()) {
+                return;
+            }
+            //new add file
+            newMd5 = getFileMD5(newFile);
+            File outputFile = getOutputPath(newFile).toFile();
+
+            if (oldFile == null || !oldFile.exists()) {
+                FileOperation.copyFileUsingStream(newFile, outputFile);
+                changed = true;
+                return;
+            }
+
+            //both file length is 0
+            if (oldFile.length() == 0 && newFile.length() == 0) {
+                return;
+            }
+            if (oldFile.length() == 0 || newFile.length() == 0) {
+                FileOperation.copyFileUsingStream(newFile, outputFile);
+                changed = true;
+                return;
+            }
+
+            // a crc mismatch in the apks already proves a change, so only hash the old file otherwise
+            if (!isKnownChanged(oldFile, newFile)) {
+                String oldMd5 = getFileMD5(oldFile);
+                if (oldMd5.equals(newMd5)) {
+                    return;
+                }
+            }
+
+            if (!outputFile.getParentFile().exists()) {
+                outputFile.getParentFile().mkdirs();
+            }
+            bsdiff(oldFile, newFile, newMd5, outputFile);
+
+            if (Utils.checkBsDiffFileSize(outputFile, newFile)) {
+                bsDiffFile = outputFile;
+                if (metaWriter != null) {
+                    oldCrc = FileOperation.getZipEntryCrc(config.mOldApkFile, getRelativePathStringToNewFile(newFile));
+                    bsDiffMd5 = MD5.getMD5(outputFile);
+                }
+            } else {
+                FileOperation.copyFileUsingStream(newFile, outputFile);
+            }
+            changed = true;
+        }
+
+        @Override
+        protected boolean commit() throws IOException, TinkerPatchException {
+            if (!changed) {
+                return false;
+            }
+            if (bsDiffFile != null) {
+                writeLogFiles(newFile, oldFile, bsDiffFile, newMd5, oldCrc, bsDiffMd5);
+            } else {
+                writeLogFiles(newFile, null, null, newMd5, null, null);
+            }
+            return true;
+        }
+    }
 }
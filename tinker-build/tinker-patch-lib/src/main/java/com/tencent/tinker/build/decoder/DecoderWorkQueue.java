@@ -0,0 +1,124 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.decoder;
+
+import com.tencent.tinker.build.decoder.BaseDecoder.PatchJob;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Jobs of one decoder in walk order.
+ *
+ * Every job's {@link PatchJob#compute()} is handed to the shared executor as soon as it is submitted,
+ * while {@link PatchJob#commit()} is run by {@link #drain()} on the calling thread, strictly in submission
+ * order. That keeps the decoder's meta and log output identical to a sequential walk.
+ * Without an executor jobs are computed on the calling thread while draining.
+ *
+ * Computing a job on the executor takes permits from the memory budget, weighted by the size
+ * of its files, so a few large files are not diffed at the same time even if threads are idle.
+ */
+final class DecoderWorkQueue {
+    /**
+     * bsdiff holds both files and two int arrays for the suffix sort of the old one
+     */
+    private static final int MEMORY_FACTOR = 8;
+
+    private final BaseDecoder            decoder;
+    private final ExecutorService        executor;
+    private final MemoryBudget           memoryBudget;
+    private final ArrayDeque<PendingJob> pendingJobs = new ArrayDeque<>();
+
+    /**
+     * @param memoryBudget shared by all queues of the executor, may be null
+     */
+    DecoderWorkQueue(BaseDecoder decoder, ExecutorService executor, MemoryBudget memoryBudget) {
+        this.decoder = decoder;
+        this.executor = executor;
+        this.memoryBudget = memoryBudget;
+    }
+
+    void submit(File oldFile, File newFile) {
+        final PatchJob job = decoder.createPatchJob(oldFile, newFile);
+        Future<Void> future = null;
+        if (executor != null) {
+            final int permits = getMemoryPermits(oldFile, newFile);
+            future = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (memoryBudget != null) {
+                        memoryBudget.acquire(permits);
+                    }
+                    try {
+                        job.compute();
+                    } finally {
+                        if (memoryBudget != null) {
+                            memoryBudget.release(permits);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        pendingJobs.add(new PendingJob(job, future));
+    }
+
+    void drain() throws Exception {
+        while (!pendingJobs.isEmpty()) {
+            PendingJob pending = pendingJobs.poll();
+            if (pending.future == null) {
+                pending.job.compute();
+            } else {
+                try {
+                    pending.future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw e;
+                }
+            }
+            pending.job.commit();
+        }
+    }
+
+    private int getMemoryPermits(File oldFile, File newFile) {
+        if (memoryBudget == null) {
+            return 0;
+        }
+        long size = (oldFile != null ? oldFile.length() : 0) + (newFile != null ? newFile.length() : 0);
+        return memoryBudget.permitsOf(size * MEMORY_FACTOR);
+    }
+
+    private static final class PendingJob {
+        final PatchJob     job;
+        final Future<Void> future;
+
+        PendingJob(PatchJob job, Future<Void> future) {
+            this.job = job;
+            this.future = future;
+        }
+    }
+}
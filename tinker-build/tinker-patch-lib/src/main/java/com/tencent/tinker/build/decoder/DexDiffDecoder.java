@@ -17,7 +17,6 @@
 package com.tencent.tinker.build.decoder;
 
 
-import com.tencent.tinker.android.dex.ClassDef;
 import com.tencent.tinker.android.dex.Dex;
 import com.tencent.tinker.android.dex.DexFormat;
 import com.tencent.tinker.build.dexpatcher.DexPatchGenerator;
@@ -27,8 +26,11 @@ import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.build.util.DexClassesComparator;
 import com.tencent.tinker.build.util.DexClassesComparator.DexClassInfo;
 import com.tencent.tinker.build.util.DexClassesComparator.DexGroup;
+import com.tencent.tinker.build.util.DexSession;
+import com.tencent.tinker.build.util.DiffCache;
 import com.tencent.tinker.build.util.ExcludedClassModifiedChecker;
 import com.tencent.tinker.build.util.FileOperation;
+import com.tencent.tinker.build.util.IncrementalState;
 import com.tencent.tinker.build.util.Logger;
 import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
@@ -36,6 +38,7 @@ import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
 import com.tencent.tinker.commons.dexpatcher.DexPatchApplier;
 import com.tencent.tinker.commons.dexpatcher.DexPatcherLogger.IDexPatcherLogger;
+import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
 
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.builder.BuilderMutableMethodImplementation;
@@ -49,17 +52,22 @@ import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarFile;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 
 /**
@@ -72,6 +80,7 @@ public class DexDiffDecoder extends BaseDecoder {
     private final InfoWriter logWriter;
     private final InfoWriter metaWriter;
 
+    private final DexSession dexSession;
     private final ExcludedClassModifiedChecker excludedClassModifiedChecker;
 
     private final Map<String, String> addedClassDescToDexNameMap;
@@ -102,7 +111,8 @@ public class DexDiffDecoder extends BaseDecoder {
             this.dexPatcherLoggerBridge = new DexPatcherLoggerBridge(logWriter);
         }
 
-        excludedClassModifiedChecker = new ExcludedClassModifiedChecker(config);
+        dexSession = new DexSession(config.mParallelism);
+        excludedClassModifiedChecker = new ExcludedClassModifiedChecker(config, dexSession);
 
         addedClassDescToDexNameMap = new HashMap<>();
         deletedClassDescToDexNameMap = new HashMap<>();
@@ -188,49 +198,55 @@ public class DexDiffDecoder extends BaseDecoder {
 
     @Override
     public void onAllPatchesEnd() throws Exception {
-        if (!hasDexChanged) {
-            Logger.d("No dexes were changed, nothing needs to be done next.");
-            return;
-        }
-        // Whether tinker should treat the base apk as the one being protected by app
-        // protection tools.
-        // If this attribute is true, the generated patch package will contain a
-        // dex including all changed classes instead of any dexdiff patch-info files.
-        if (config.mIsProtectedApp) {
-           //  加固模式使用smali生成dex文件？
-            generateChangedClassesDexFile();
-        } else {
-            // 加固模式如何处理，现在看只有非加固模式才用到了DexPatchApplier
-            generatePatchInfoFile();
-        }
+        try {
+            if (!hasDexChanged) {
+                Logger.d("No dexes were changed, nothing needs to be done next.");
+                return;
+            }
+            // Whether tinker should treat the base apk as the one being protected by app
+            // protection tools.
+            // If this attribute is true, the generated patch package will contain a
+            // dex including all changed classes instead of any dexdiff patch-info files.
+            if (config.mIsProtectedApp) {
+               //  加固模式使用smali生成dex文件？
+                generateChangedClassesDexFile();
+            } else {
+                // 加固模式如何处理，现在看只有非加固模式才用到了DexPatchApplier
+                generatePatchInfoFile();
+            }
 
-        addTestDex();
+            addTestDex();
+        } finally {
+            // All dexes are diffed and verified, don't keep them for the rest of the build.
+            dexSession.release();
+        }
     }
 
     @SuppressWarnings("NewApi")
     private void generateChangedClassesDexFile() throws IOException {
         final String dexMode = config.mDexRaw ? "raw" : "jar";
 
-        List<File> oldDexList = new ArrayList<>();
-        List<File> newDexList = new ArrayList<>();
+        List<Dex> oldDexList = new ArrayList<>();
+        List<Dex> newDexList = new ArrayList<>();
         for (AbstractMap.SimpleEntry<File, File> oldAndNewDexFilePair : oldAndNewDexFilePairList) {
             File oldDexFile = oldAndNewDexFilePair.getKey();
             File newDexFile = oldAndNewDexFilePair.getValue();
             if (oldDexFile != null) {
-                oldDexList.add(oldDexFile);
+                oldDexList.add(dexSession.getDex(oldDexFile));
             }
             if (newDexFile != null) {
-                newDexList.add(newDexFile);
+                newDexList.add(dexSession.getDex(newDexFile));
             }
         }
 
-        DexGroup oldDexGroup = DexGroup.wrap(oldDexList);
-        DexGroup newDexGroup = DexGroup.wrap(newDexList);
+        DexGroup oldDexGroup = DexGroup.wrap(oldDexList.toArray(new Dex[oldDexList.size()]));
+        DexGroup newDexGroup = DexGroup.wrap(newDexList.toArray(new Dex[newDexList.size()]));
 
         ChangedClassesDexClassInfoCollector collector = new ChangedClassesDexClassInfoCollector();
         collector.setExcludedClassPatterns(config.mDexLoaderPattern);
         collector.setLogger(dexPatcherLoggerBridge);
         collector.setIncludeRefererToRefererAffectedClasses(true);
+        collector.setDexSession(dexSession);
 
         Set<DexClassInfo> classInfosInChangedClassesDex = collector.doCollect(oldDexGroup, newDexGroup);
 
@@ -454,22 +470,53 @@ public class DexDiffDecoder extends BaseDecoder {
         File dexDiffOut = getOutputPath(newDexFile).toFile();
         ensureDirectoryExist(dexDiffOut.getParentFile());
 
-        try {
-            // dex patch文件的生成
-            DexPatchGenerator dexPatchGen = new DexPatchGenerator(oldDexFile, newDexFile);
-            dexPatchGen.setAdditionalRemovingClassPatterns(config.mDexLoaderPattern);
+        File tempFullPatchedDexFile = new File(tempFullPatchDexPath, dexName);
+        if (!tempFullPatchedDexFile.exists()) {
+            ensureDirectoryExist(tempFullPatchedDexFile.getParentFile());
+        }
+
+        String cacheKey = null;
+        if (diffCache != null || previousState != null || currentState != null) {
+            List<String> loaderPatterns = new ArrayList<>(config.mDexLoaderPattern);
+            Collections.sort(loaderPatterns);
+            cacheKey = DiffCache.key("dexdiff", DexPatchFile.CURRENT_VERSION, relatedInfo.oldMd5, relatedInfo.newMd5, loaderPatterns.toString());
+        }
 
+        if (cacheKey != null && restorePreviousResult(cacheKey, dexName, dexDiffOut, tempFullPatchedDexFile, relatedInfo)) {
+            recordResult(cacheKey, relatedInfo);
+            return;
+        }
+
+        if (cacheKey != null && diffCache != null && diffCache.get(cacheKey, dexDiffOut)) {
             logWriter.writeLineToInfoFile(
                     String.format(
-                            "Start diff between [%s] as old and [%s] as new:",
+                            "Reuse cached diff between [%s] as old and [%s] as new.",
                             getRelativeStringBy(oldDexFile, config.mTempUnzipOldDir),
                             getRelativeStringBy(newDexFile, config.mTempUnzipNewDir)
                     )
             );
+        } else {
+            try {
+                // dex patch文件的生成
+                DexPatchGenerator dexPatchGen = new DexPatchGenerator(dexSession.getDex(oldDexFile), dexSession.getDex(newDexFile));
+                dexPatchGen.setAdditionalRemovingClassPatterns(config.mDexLoaderPattern);
+                dexPatchGen.setParallelism(config.mParallelism);
 
-            dexPatchGen.executeAndSaveTo(dexDiffOut);
-        } catch (Exception e) {
-            throw new TinkerPatchException(e);
+                logWriter.writeLineToInfoFile(
+                        String.format(
+                                "Start diff between [%s] as old and [%s] as new:",
+                                getRelativeStringBy(oldDexFile, config.mTempUnzipOldDir),
+                                getRelativeStringBy(newDexFile, config.mTempUnzipNewDir)
+                        )
+                );
+
+                dexPatchGen.executeAndSaveTo(dexDiffOut);
+            } catch (Exception e) {
+                throw new TinkerPatchException(e);
+            }
+            if (cacheKey != null && diffCache != null) {
+                diffCache.put(cacheKey, dexDiffOut);
+            }
         }
 
         if (!dexDiffOut.exists()) {
@@ -480,25 +527,34 @@ public class DexDiffDecoder extends BaseDecoder {
         relatedInfo.dexDiffMd5 = MD5.getMD5(dexDiffOut);
         Logger.d("\nGen %s patch file:%s, size:%d, md5:%s", dexName, relatedInfo.dexDiffFile.getAbsolutePath(), relatedInfo.dexDiffFile.length(), relatedInfo.dexDiffMd5);
 
-        File tempFullPatchedDexFile = new File(tempFullPatchDexPath, dexName);
-        if (!tempFullPatchedDexFile.exists()) {
-            ensureDirectoryExist(tempFullPatchedDexFile.getParentFile());
-        }
-
         try {
-            new DexPatchApplier(oldDexFile, dexDiffOut).executeAndSaveTo(tempFullPatchedDexFile);
+            // The full patched dex is applied in memory, its md5 and crc go to the dex meta anyway,
+            // so hash the bytes and parse them for verifying instead of reading the file back.
+            DexPatchFile dexPatchFile = new DexPatchFile(dexDiffOut);
+            ByteArrayOutputStream patchedDexOut = new ByteArrayOutputStream(dexPatchFile.getPatchedDexSize());
+            new DexPatchApplier(dexSession.getDex(oldDexFile), dexPatchFile).executeAndSaveTo(patchedDexOut);
+            byte[] patchedDexBytes = patchedDexOut.toByteArray();
+            OutputStream os = null;
+            try {
+                os = new FileOutputStream(tempFullPatchedDexFile);
+                os.write(patchedDexBytes);
+            } finally {
+                Utils.closeQuietly(os);
+            }
 
             Logger.d(
                     String.format("Verifying if patched new dex is logically the same as original new dex: %s ...", getRelativeStringBy(newDexFile, config.mTempUnzipNewDir))
             );
 
-            Dex origNewDex = new Dex(newDexFile);
-            Dex patchedNewDex = new Dex(tempFullPatchedDexFile);
+            Dex origNewDex = dexSession.getDex(newDexFile);
+            Dex patchedNewDex = new Dex(patchedDexBytes);
             checkDexChange(origNewDex, patchedNewDex);
 
+            CRC32 crc = new CRC32();
+            crc.update(patchedDexBytes);
             relatedInfo.newOrFullPatchedFile = tempFullPatchedDexFile;
-            relatedInfo.newOrFullPatchedMd5 = MD5.getMD5(tempFullPatchedDexFile);
-            relatedInfo.newOrFullPatchedCRC = FileOperation.getFileCrc32(tempFullPatchedDexFile);
+            relatedInfo.newOrFullPatchedMd5 = MD5.getMessageDigest(patchedDexBytes);
+            relatedInfo.newOrFullPatchedCRC = crc.getValue();
         } catch (Exception e) {
             e.printStackTrace();
             throw new TinkerPatchException(
@@ -510,6 +566,48 @@ public class DexDiffDecoder extends BaseDecoder {
             throw new TinkerPatchException("can not find the temporary full patched dex file:" + tempFullPatchedDexFile.getAbsolutePath());
         }
         Logger.d("\nGen %s for dalvik full dex file:%s, size:%d, md5:%s", dexName, tempFullPatchedDexFile.getAbsolutePath(), tempFullPatchedDexFile.length(), relatedInfo.newOrFullPatchedMd5);
+
+        if (cacheKey != null) {
+            recordResult(cacheKey, relatedInfo);
+        }
+    }
+
+    /**
+     * Takes the diff and the patched dex the previous build made and verified for the same dex pair,
+     * so neither of them is generated or verified again.
+     */
+    private boolean restorePreviousResult(String key, String dexName, File dexDiffOut, File fullPatchedDexFile, RelatedInfo relatedInfo) {
+        if (previousState == null) {
+            return false;
+        }
+        IncrementalState.DexResult result = previousState.getDexResult(key);
+        if (result == null
+            || !previousState.getOutput(key, dexDiffOut)
+            || !previousState.getOutput(getFullPatchedDexKey(key), fullPatchedDexFile)) {
+            return false;
+        }
+        relatedInfo.dexDiffFile = dexDiffOut;
+        relatedInfo.dexDiffMd5 = result.dexDiffMd5;
+        relatedInfo.newOrFullPatchedFile = fullPatchedDexFile;
+        relatedInfo.newOrFullPatchedMd5 = result.fullPatchedMd5;
+        relatedInfo.newOrFullPatchedCRC = result.fullPatchedCrc;
+        logWriter.writeLineToInfoFile(String.format("Reuse diff of previous build for [%s].", dexName));
+        Logger.d("\nReuse %s patch file of previous build:%s, size:%d, md5:%s", dexName, dexDiffOut.getAbsolutePath(), dexDiffOut.length(), result.dexDiffMd5);
+        return true;
+    }
+
+    private void recordResult(String key, RelatedInfo relatedInfo) {
+        if (currentState == null) {
+            return;
+        }
+        currentState.putOutput(key, relatedInfo.dexDiffFile);
+        currentState.putOutput(getFullPatchedDexKey(key), relatedInfo.newOrFullPatchedFile);
+        currentState.putDexResult(key, new IncrementalState.DexResult(
+            relatedInfo.dexDiffMd5, relatedInfo.newOrFullPatchedMd5, relatedInfo.newOrFullPatchedCRC));
+    }
+
+    private static String getFullPatchedDexKey(String key) {
+        return key + "-full";
     }
 
     private void addTestDex() throws IOException {
@@ -571,18 +669,11 @@ public class DexDiffDecoder extends BaseDecoder {
      * and deleted class descriptor for further analysing in {@code checkCrossDexMovingClasses}.
      */
     private void collectAddedOrDeletedClasses(File oldFile, File newFile) throws IOException {
-        Dex oldDex = new Dex(oldFile);
-        Dex newDex = new Dex(newFile);
-
-        Set<String> oldClassDescs = new HashSet<>();
-        for (ClassDef oldClassDef : oldDex.classDefs()) {
-            oldClassDescs.add(oldDex.typeNames().get(oldClassDef.typeIndex));
-        }
+        Dex oldDex = dexSession.getDex(oldFile);
+        Dex newDex = dexSession.getDex(newFile);
 
-        Set<String> newClassDescs = new HashSet<>();
-        for (ClassDef newClassDef : newDex.classDefs()) {
-            newClassDescs.add(newDex.typeNames().get(newClassDef.typeIndex));
-        }
+        Set<String> oldClassDescs = dexSession.getClassDefs(oldDex).keySet();
+        Set<String> newClassDescs = dexSession.getClassDefs(newDex).keySet();
 
         Set<String> addedClassDescs = new HashSet<>(newClassDescs);
         addedClassDescs.removeAll(oldClassDescs);
@@ -631,9 +722,15 @@ public class DexDiffDecoder extends BaseDecoder {
         logToDexMeta(newFile, null, null, newMd5, newMd5, "0", newFileCrc);
     }
 
+    /**
+     * Classes are hashed through the session, the structural hashes of original new dex are
+     * shared with the other checks of this build, and only classes whose hashes differ are
+     * compared member by member.
+     */
     private void checkDexChange(Dex originDex, Dex newDex) {
         DexClassesComparator classesCmptor = new DexClassesComparator("*");
         classesCmptor.setIgnoredRemovedClassDescPattern(config.mDexLoaderPattern);
+        classesCmptor.setDexSession(dexSession);
         classesCmptor.startCheck(originDex, newDex);
 
         List<DexClassInfo> addedClassInfos = classesCmptor.getAddedClassInfos();
@@ -742,6 +839,19 @@ public class DexDiffDecoder extends BaseDecoder {
     }
 
     private String getRawOrWrappedDexMD5(File dexOrJarFile) {
+        if (entryIndex == null) {
+            return computeRawOrWrappedDexMD5(dexOrJarFile);
+        }
+        // unchanged dexes are extracted from both apks, hash their content only once
+        String md5 = entryIndex.getCachedDigest(dexOrJarFile, "dex-md5");
+        if (md5 == null) {
+            md5 = computeRawOrWrappedDexMD5(dexOrJarFile);
+            entryIndex.cacheDigest(dexOrJarFile, "dex-md5", md5);
+        }
+        return md5;
+    }
+
+    private String computeRawOrWrappedDexMD5(File dexOrJarFile) {
         final String name = dexOrJarFile.getName();
         if (name.endsWith(".dex")) {
             return MD5.getMD5(dexOrJarFile);
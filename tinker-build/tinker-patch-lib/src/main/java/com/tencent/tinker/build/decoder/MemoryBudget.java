@@ -0,0 +1,57 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.decoder;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Heap shared by the diff jobs running at the same time, counted in KB.
+ *
+ * A job never takes more than the whole budget, so one file larger than the budget
+ * is still diffed, just on its own.
+ */
+final class MemoryBudget {
+    private static final long DEFAULT_BUDGET = 1024L * 1024 * 1024;
+
+    private final Semaphore permits;
+    private final int       totalPermits;
+
+    MemoryBudget(long bytes) {
+        this.totalPermits = (int) Math.max(1, Math.min(bytes / 1024, Integer.MAX_VALUE));
+        this.permits = new Semaphore(totalPermits, true);
+    }
+
+    /**
+     * half of the max heap, the other half is left to the dex decoder and the rest of the build
+     */
+    static MemoryBudget ofMaxMemory() {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        return new MemoryBudget(maxMemory == Long.MAX_VALUE ? DEFAULT_BUDGET : maxMemory / 2);
+    }
+
+    int permitsOf(long bytes) {
+        return (int) Math.min(bytes / 1024 + 1, totalPermits);
+    }
+
+    void acquire(int count) throws InterruptedException {
+        permits.acquire(count);
+    }
+
+    void release(int count) {
+        permits.release(count);
+    }
+}
@@ -16,13 +16,11 @@
 
 package com.tencent.tinker.build.decoder;
 
-import com.tencent.tinker.bsdiff.BSDiff;
 import com.tencent.tinker.build.apkparser.AndroidParser;
 import com.tencent.tinker.build.info.InfoWriter;
 import com.tencent.tinker.build.patch.Configuration;
 import com.tencent.tinker.build.util.FileOperation;
 import com.tencent.tinker.build.util.Logger;
-import com.tencent.tinker.build.util.MD5;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
@@ -38,6 +36,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,16 +56,16 @@ public class ResDiffDecoder extends BaseDecoder {
     private static final String TEST_RESOURCE_NAME        = "only_use_to_test_tinker_resource.txt";
     private static final String TEST_RESOURCE_ASSETS_PATH = "assets/" + TEST_RESOURCE_NAME;
 
-    private static final String TEMP_RES_ZIP = "temp_res.zip";
     private final InfoWriter        logWriter;
     private final InfoWriter        metaWriter;
-    private       ArrayList<String> addedSet;
-    private       ArrayList<String> modifiedSet;
-    private       ArrayList<String> storedSet;
+    // linked sets keep the meta file in walk order while making lookups cheap on big apks
+    private       LinkedHashSet<String> addedSet;
+    private       LinkedHashSet<String> modifiedSet;
+    private       LinkedHashSet<String> storedSet;
 
-    private ArrayList<String>              largeModifiedSet;
+    private LinkedHashSet<String>          largeModifiedSet;
     private HashMap<String, LargeModeInfo> largeModifiedMap;
-    private ArrayList<String>              deletedSet;
+    private LinkedHashSet<String>          deletedSet;
 
     private ApkParser                      newApkParser;
     private Set<String>                    newApkAnimResNames;
@@ -85,12 +84,12 @@ public class ResDiffDecoder extends BaseDecoder {
         } else {
             logWriter = null;
         }
-        addedSet = new ArrayList<>();
-        modifiedSet = new ArrayList<>();
-        largeModifiedSet = new ArrayList<>();
+        addedSet = new LinkedHashSet<>();
+        modifiedSet = new LinkedHashSet<>();
+        largeModifiedSet = new LinkedHashSet<>();
         largeModifiedMap = new HashMap<>();
-        deletedSet = new ArrayList<>();
-        storedSet = new ArrayList<>();
+        deletedSet = new LinkedHashSet<>();
+        storedSet = new LinkedHashSet<>();
 
         newApkParser = new ApkParser(config.mNewApkFile);
         newApkAnimResNames = new HashSet<>();
@@ -162,86 +161,14 @@ public class ResDiffDecoder extends BaseDecoder {
 
     @Override
     public boolean patch(File oldFile, File newFile) throws IOException, TinkerPatchException {
-        String name = getRelativePathStringToNewFile(newFile);
-
-        //actually, it won't go below
-        if (newFile == null || !newFile.exists()) {
-            String relativeStringByOldDir = getRelativePathStringToOldFile(oldFile);
-            if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, relativeStringByOldDir)) {
-                Logger.e("found delete resource: " + relativeStringByOldDir + " ,but it match ignore change pattern, just ignore!");
-                return false;
-            }
-            deletedSet.add(relativeStringByOldDir);
-            writeResLog(newFile, oldFile, TypedValue.DEL);
-            return true;
-        }
-
-        File outputFile = getOutputPath(newFile).toFile();
-
-        if (oldFile == null || !oldFile.exists()) {
-            if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
-                Logger.e("found add resource: " + name + " ,but it match ignore change pattern, just ignore!");
-                return false;
-            }
-            FileOperation.copyFileUsingStream(newFile, outputFile);
-            addedSet.add(name);
-            writeResLog(newFile, oldFile, TypedValue.ADD);
-            return true;
-        }
-        //both file length is 0
-        if (oldFile.length() == 0 && newFile.length() == 0) {
-            return false;
-        }
-        //new add file
-        String newMd5 = MD5.getMD5(newFile);
-        String oldMd5 = MD5.getMD5(oldFile);
-
-        //oldFile or newFile may be 0b length
-        if (oldMd5 != null && oldMd5.equals(newMd5)) {
-            return false;
-        }
-        if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
-            Logger.d("found modify resource: " + name + ", but it match ignore change pattern, just ignore!");
-            return false;
-        }
-        if (name.equals(TypedValue.RES_MANIFEST)) {
-            Logger.d("found modify resource: " + name + ", but it is AndroidManifest.xml, just ignore!");
-            return false;
-        }
-        if (name.equals(TypedValue.RES_ARSC)) {
-            if (AndroidParser.resourceTableLogicalChange(config)) {
-                Logger.d("found modify resource: " + name + ", but it is logically the same as original new resources.arsc, just ignore!");
-                return false;
-            }
-        }
-        dealWithModifyFile(name, newMd5, oldFile, newFile, outputFile);
-        return true;
+        ResDiffJob job = new ResDiffJob(oldFile, newFile);
+        job.compute();
+        return job.commit();
     }
 
-    private boolean dealWithModifyFile(String name, String newMd5, File oldFile, File newFile, File outputFile) throws IOException {
-        // 大文件采用bsdiff算法,BsDiff属于二进制比较
-        if (checkLargeModFile(newFile)) {
-            if (!outputFile.getParentFile().exists()) {
-                outputFile.getParentFile().mkdirs();
-            }
-            BSDiff.bsdiff(oldFile, newFile, outputFile);
-            //treat it as normal modify
-            //  对生成的diff文件大小和newFile进行比较，只有在达到我们的压缩效果后才使用diff文件
-            if (Utils.checkBsDiffFileSize(outputFile, newFile)) {
-                LargeModeInfo largeModeInfo = new LargeModeInfo();
-                largeModeInfo.path = newFile;
-                largeModeInfo.crc = FileOperation.getFileCrc32(newFile);
-                largeModeInfo.md5 = newMd5;
-                largeModifiedSet.add(name);
-                largeModifiedMap.put(name, largeModeInfo);
-                writeResLog(newFile, oldFile, TypedValue.LARGE_MOD);
-                return true;
-            }
-        }
-        modifiedSet.add(name);
-        FileOperation.copyFileUsingStream(newFile, outputFile);
-        writeResLog(newFile, oldFile, TypedValue.MOD);
-        return false;
+    @Override
+    public PatchJob createPatchJob(File oldFile, File newFile) {
+        return new ResDiffJob(oldFile, newFile);
     }
 
     private void writeResLog(File newFile, File oldFile, int mode) throws IOException {
@@ -350,23 +277,18 @@ public class ResDiffDecoder extends BaseDecoder {
         // last add test res in assets for user cannot ignore it;
         addAssetsFileForTestResource();
 
-        File tempResZip = new File(config.mOutFolder + File.separator + TEMP_RES_ZIP);
         final File tempResFiles = config.mTempResultDir;
 
         //gen zip resources_out.zip
-        FileOperation.zipInputDir(tempResFiles, tempResZip, null);
         File extractToZip = new File(config.mOutFolder + File.separator + TypedValue.RES_OUT);
 
-        String resZipMd5 = Utils.genResOutputFile(extractToZip, tempResZip, config,
+        String resZipMd5 = Utils.genResOutputFile(extractToZip, tempResFiles, config,
             addedSet, modifiedSet, deletedSet, largeModifiedSet, largeModifiedMap);
 
         Logger.e("Final normal zip resource: %s, size=%d, md5=%s", extractToZip.getName(), extractToZip.length(), resZipMd5);
         logWriter.writeLineToInfoFile(
             String.format("Final normal zip resource: %s, size=%d, md5=%s", extractToZip.getName(), extractToZip.length(), resZipMd5)
         );
-        //delete temp file
-        FileOperation.deleteFile(tempResZip);
-
         //first, write resource meta first
         //use resources.arsc's base crc to identify base.apk
         String arscBaseCrc = FileOperation.getZipEntryCrc(config.mOldApkFile, TypedValue.RES_ARSC);
@@ -476,7 +398,7 @@ public class ResDiffDecoder extends BaseDecoder {
         }
     }
 
-    private void removeIgnoreChangeFile(ArrayList<String> array) {
+    private void removeIgnoreChangeFile(Set<String> array) {
         ArrayList<String> removeList = new ArrayList<>();
         for (String name : array) {
             if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
@@ -491,7 +413,7 @@ public class ResDiffDecoder extends BaseDecoder {
         metaWriter.writeLineToInfoFile(line);
     }
 
-    private void writeMetaFile(ArrayList<String> set, int mode) {
+    private void writeMetaFile(Set<String> set, int mode) {
         if (!set.isEmpty()) {
             String title = "";
             switch (mode) {
@@ -571,4 +493,138 @@ public class ResDiffDecoder extends BaseDecoder {
             return FileVisitResult.CONTINUE;
         }
     }
+
+    /**
+     * Hashing, copying and bsdiff of large modified files run in {@link #compute()};
+     * the result sets and the log file are only updated in {@link #commit()}.
+     */
+    private final class ResDiffJob extends PatchJob {
+        private static final int RESULT_NONE      = 0;
+        private static final int RESULT_ADD       = 1;
+        private static final int RESULT_MOD       = 2;
+        private static final int RESULT_LARGE_MOD = 3;
+
+        private final File oldFile;
+        private final File newFile;
+
+        private String name;
+        private int    result = RESULT_NONE;
+        private String ignoreMessage;
+        private String newMd5;
+        private long   newCrc;
+
+        ResDiffJob(File oldFile, File newFile) {
+            this.oldFile = oldFile;
+            this.newFile = newFile;
+        }
+
+        @Override
+        protected void compute() throws IOException {
+            //actually, it won't go below
+            if (newFile == null || !newFile.exists()) {
+                return;
+            }
+            name = getRelativePathStringToNewFile(newFile);
+
+            File outputFile = getOutputPath(newFile).toFile();
+
+            if (oldFile == null || !oldFile.exists()) {
+                if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
+                    ignoreMessage = "found add resource: " + name + " ,but it match ignore change pattern, just ignore!";
+                    return;
+                }
+                FileOperation.copyFileUsingStream(newFile, outputFile);
+                result = RESULT_ADD;
+                return;
+            }
+            //both file length is 0
+            if (oldFile.length() == 0 && newFile.length() == 0) {
+                return;
+            }
+            //new add file
+            newMd5 = getFileMD5(newFile);
+            // a crc mismatch in the apks already proves a change, so only hash the old file otherwise
+            if (!isKnownChanged(oldFile, newFile)) {
+                String oldMd5 = getFileMD5(oldFile);
+
+                //oldFile or newFile may be 0b length
+                if (oldMd5 != null && oldMd5.equals(newMd5)) {
+                    return;
+                }
+            }
+            if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, name)) {
+                ignoreMessage = "found modify resource: " + name + ", but it match ignore change pattern, just ignore!";
+                return;
+            }
+            if (name.equals(TypedValue.RES_MANIFEST)) {
+                ignoreMessage = "found modify resource: " + name + ", but it is AndroidManifest.xml, just ignore!";
+                return;
+            }
+            if (name.equals(TypedValue.RES_ARSC)) {
+                if (AndroidParser.resourceTableLogicalChange(config)) {
+                    ignoreMessage = "found modify resource: " + name + ", but it is logically the same as original new resources.arsc, just ignore!";
+                    return;
+                }
+            }
+            // 大文件采用bsdiff算法,BsDiff属于二进制比较
+            if (checkLargeModFile(newFile)) {
+                if (!outputFile.getParentFile().exists()) {
+                    outputFile.getParentFile().mkdirs();
+                }
+                bsdiff(oldFile, newFile, newMd5, outputFile);
+                //treat it as normal modify
+                //  对生成的diff文件大小和newFile进行比较，只有在达到我们的压缩效果后才使用diff文件
+                if (Utils.checkBsDiffFileSize(outputFile, newFile)) {
+                    newCrc = FileOperation.getFileCrc32(newFile);
+                    result = RESULT_LARGE_MOD;
+                    return;
+                }
+            }
+            FileOperation.copyFileUsingStream(newFile, outputFile);
+            result = RESULT_MOD;
+        }
+
+        @Override
+        protected boolean commit() throws IOException, TinkerPatchException {
+            if (newFile == null || !newFile.exists()) {
+                String relativeStringByOldDir = getRelativePathStringToOldFile(oldFile);
+                if (Utils.checkFileInPattern(config.mResIgnoreChangePattern, relativeStringByOldDir)) {
+                    Logger.e("found delete resource: " + relativeStringByOldDir + " ,but it match ignore change pattern, just ignore!");
+                    return false;
+                }
+                deletedSet.add(relativeStringByOldDir);
+                writeResLog(newFile, oldFile, TypedValue.DEL);
+                return true;
+            }
+            if (ignoreMessage != null) {
+                if (oldFile == null || !oldFile.exists()) {
+                    Logger.e(ignoreMessage);
+                } else {
+                    Logger.d(ignoreMessage);
+                }
+                return false;
+            }
+            switch (result) {
+                case RESULT_ADD:
+                    addedSet.add(name);
+                    writeResLog(newFile, oldFile, TypedValue.ADD);
+                    return true;
+                case RESULT_LARGE_MOD:
+                    LargeModeInfo largeModeInfo = new LargeModeInfo();
+                    largeModeInfo.path = newFile;
+                    largeModeInfo.crc = newCrc;
+                    largeModeInfo.md5 = newMd5;
+                    largeModifiedSet.add(name);
+                    largeModifiedMap.put(name, largeModeInfo);
+                    writeResLog(newFile, oldFile, TypedValue.LARGE_MOD);
+                    return true;
+                case RESULT_MOD:
+                    modifiedSet.add(name);
+                    writeResLog(newFile, oldFile, TypedValue.MOD);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
 }
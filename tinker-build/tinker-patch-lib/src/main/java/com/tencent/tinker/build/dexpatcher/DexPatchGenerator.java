@@ -67,6 +67,10 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 
@@ -75,6 +79,7 @@ import java.util.regex.Pattern;
  */
 public class DexPatchGenerator {
     private static final String TAG = "DexPatchGenerator";
+    private static final int SECTION_COUNT = 15;
 
     private final Dex oldDex;
     private final Dex newDex;
@@ -95,6 +100,7 @@ public class DexPatchGenerator {
     private DexSectionDiffAlgorithm<EncodedValue> encodedArraySectionDiffAlg;
     private DexSectionDiffAlgorithm<AnnotationsDirectory> annotationsDirectorySectionDiffAlg;
     private Set<String> additionalRemovingClassPatternSet;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
     private int patchedHeaderOffset = 0;
     private int patchedStringIdsOffset = 0;
     private int patchedTypeIdsOffset = 0;
@@ -273,6 +279,17 @@ public class DexPatchGenerator {
         this.logger.setLoggerImpl(logger);
     }
 
+    /**
+     * Set max count of section diffs running concurrently, 1 means run them serially
+     * on the caller's thread. The patch file is the same for any value.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
     public void executeAndSaveTo(File file) throws IOException {
         OutputStream os = null;
         try {
@@ -311,7 +328,78 @@ public class DexPatchGenerator {
                 .setOffsetOfClassDatasToRemove(offsetOfClassDatasToRemove);
 
         // Then, run diff algorithms according to sections' dependencies.
+        ExecutorService executor = null;
+        if (this.parallelism > 1) {
+            executor = Executors.newFixedThreadPool(Math.min(this.parallelism, SECTION_COUNT), new ThreadFactory() {
+                private final AtomicInteger index = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "dex-section-diff-" + index.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        try {
+            SectionDiffScheduler scheduler = createSectionDiffScheduler(executor);
+            scheduler.start();
+            executeSectionDiffs(scheduler);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
 
+        // Finally, write results to patch file.
+        writeResultToStream(out);
+    }
+
+    /**
+     * Each section depends on the sections whose indices or offsets its items refer to,
+     * diff of a section can start once all of them are simulated.
+     */
+    private SectionDiffScheduler createSectionDiffScheduler(ExecutorService executor) {
+        SectionDiffScheduler scheduler = new SectionDiffScheduler(executor, this.logger);
+        scheduler.addSection("stringData", this.stringDataSectionDiffAlg);
+        scheduler.addSection("typeIds", this.typeIdSectionDiffAlg,
+                this.stringDataSectionDiffAlg);
+        scheduler.addSection("typeLists", this.typeListSectionDiffAlg,
+                this.typeIdSectionDiffAlg);
+        scheduler.addSection("protoIds", this.protoIdSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg, this.typeListSectionDiffAlg);
+        scheduler.addSection("fieldIds", this.fieldIdSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg);
+        scheduler.addSection("methodIds", this.methodIdSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg, this.protoIdSectionDiffAlg);
+        scheduler.addSection("annotations", this.annotationSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg,
+                this.fieldIdSectionDiffAlg, this.methodIdSectionDiffAlg);
+        scheduler.addSection("annotationSets", this.annotationSetSectionDiffAlg,
+                this.annotationSectionDiffAlg);
+        scheduler.addSection("annotationSetRefLists", this.annotationSetRefListSectionDiffAlg,
+                this.annotationSetSectionDiffAlg);
+        scheduler.addSection("annotationsDirectories", this.annotationsDirectorySectionDiffAlg,
+                this.fieldIdSectionDiffAlg, this.methodIdSectionDiffAlg,
+                this.annotationSetSectionDiffAlg, this.annotationSetRefListSectionDiffAlg);
+        scheduler.addSection("debugInfos", this.debugInfoSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg);
+        scheduler.addSection("codes", this.codeSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg, this.fieldIdSectionDiffAlg,
+                this.methodIdSectionDiffAlg, this.debugInfoSectionDiffAlg);
+        scheduler.addSection("classDatas", this.classDataSectionDiffAlg,
+                this.fieldIdSectionDiffAlg, this.methodIdSectionDiffAlg, this.codeSectionDiffAlg);
+        scheduler.addSection("encodedArrays", this.encodedArraySectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg,
+                this.fieldIdSectionDiffAlg, this.methodIdSectionDiffAlg);
+        scheduler.addSection("classDefs", this.classDefSectionDiffAlg,
+                this.stringDataSectionDiffAlg, this.typeIdSectionDiffAlg, this.typeListSectionDiffAlg,
+                this.annotationsDirectorySectionDiffAlg, this.classDataSectionDiffAlg,
+                this.encodedArraySectionDiffAlg);
+        return scheduler;
+    }
+
+    private void executeSectionDiffs(SectionDiffScheduler scheduler) throws IOException {
         // Use size calculated by algorithms above or from dex file definition to
         // calculate sections' offset and patched dex size.
 
@@ -355,23 +443,20 @@ public class DexPatchGenerator {
             this.patchedStringIdsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedStringIdsOffset);
         }
-        this.stringDataSectionDiffAlg.execute();
         this.patchedStringDataItemsOffset = patchedheaderSize + patchedIdSectionSize;
         if (this.oldDex.getTableOfContents().stringDatas.isElementFourByteAligned) {
             this.patchedStringDataItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedStringDataItemsOffset);
         }
-        this.stringDataSectionDiffAlg.simulatePatchOperation(this.patchedStringDataItemsOffset);
+        scheduler.simulate(this.stringDataSectionDiffAlg, this.patchedStringDataItemsOffset);
 
-        this.typeIdSectionDiffAlg.execute();
         this.patchedTypeIdsOffset = this.patchedStringIdsOffset + patchedStringIdsSize;
         if (this.oldDex.getTableOfContents().typeIds.isElementFourByteAligned) {
             this.patchedTypeIdsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedTypeIdsOffset);
         }
-        this.typeIdSectionDiffAlg.simulatePatchOperation(this.patchedTypeIdsOffset);
+        scheduler.simulate(this.typeIdSectionDiffAlg, this.patchedTypeIdsOffset);
 
-        this.typeListSectionDiffAlg.execute();
         this.patchedTypeListsOffset
                 = patchedheaderSize
                 + patchedIdSectionSize
@@ -380,30 +465,26 @@ public class DexPatchGenerator {
             this.patchedTypeListsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedTypeListsOffset);
         }
-        this.typeListSectionDiffAlg.simulatePatchOperation(this.patchedTypeListsOffset);
+        scheduler.simulate(this.typeListSectionDiffAlg, this.patchedTypeListsOffset);
 
-        this.protoIdSectionDiffAlg.execute();
         this.patchedProtoIdsOffset = this.patchedTypeIdsOffset + patchedTypeIdsSize;
         if (this.oldDex.getTableOfContents().protoIds.isElementFourByteAligned) {
             this.patchedProtoIdsOffset = SizeOf.roundToTimesOfFour(this.patchedProtoIdsOffset);
         }
-        this.protoIdSectionDiffAlg.simulatePatchOperation(this.patchedProtoIdsOffset);
+        scheduler.simulate(this.protoIdSectionDiffAlg, this.patchedProtoIdsOffset);
 
-        this.fieldIdSectionDiffAlg.execute();
         this.patchedFieldIdsOffset = this.patchedProtoIdsOffset + patchedProtoIdsSize;
         if (this.oldDex.getTableOfContents().fieldIds.isElementFourByteAligned) {
             this.patchedFieldIdsOffset = SizeOf.roundToTimesOfFour(this.patchedFieldIdsOffset);
         }
-        this.fieldIdSectionDiffAlg.simulatePatchOperation(this.patchedFieldIdsOffset);
+        scheduler.simulate(this.fieldIdSectionDiffAlg, this.patchedFieldIdsOffset);
 
-        this.methodIdSectionDiffAlg.execute();
         this.patchedMethodIdsOffset = this.patchedFieldIdsOffset + patchedFieldIdsSize;
         if (this.oldDex.getTableOfContents().methodIds.isElementFourByteAligned) {
             this.patchedMethodIdsOffset = SizeOf.roundToTimesOfFour(this.patchedMethodIdsOffset);
         }
-        this.methodIdSectionDiffAlg.simulatePatchOperation(this.patchedMethodIdsOffset);
+        scheduler.simulate(this.methodIdSectionDiffAlg, this.patchedMethodIdsOffset);
 
-        this.annotationSectionDiffAlg.execute();
         this.patchedAnnotationItemsOffset
                 = this.patchedTypeListsOffset
                 + this.typeListSectionDiffAlg.getPatchedSectionSize();
@@ -411,9 +492,8 @@ public class DexPatchGenerator {
             this.patchedAnnotationItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedAnnotationItemsOffset);
         }
-        this.annotationSectionDiffAlg.simulatePatchOperation(this.patchedAnnotationItemsOffset);
+        scheduler.simulate(this.annotationSectionDiffAlg, this.patchedAnnotationItemsOffset);
 
-        this.annotationSetSectionDiffAlg.execute();
         this.patchedAnnotationSetItemsOffset
                 = this.patchedAnnotationItemsOffset
                 + this.annotationSectionDiffAlg.getPatchedSectionSize();
@@ -421,11 +501,10 @@ public class DexPatchGenerator {
             this.patchedAnnotationSetItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedAnnotationSetItemsOffset);
         }
-        this.annotationSetSectionDiffAlg.simulatePatchOperation(
+        scheduler.simulate(this.annotationSetSectionDiffAlg,
                 this.patchedAnnotationSetItemsOffset
         );
 
-        this.annotationSetRefListSectionDiffAlg.execute();
         this.patchedAnnotationSetRefListItemsOffset
                 = this.patchedAnnotationSetItemsOffset
                 + this.annotationSetSectionDiffAlg.getPatchedSectionSize();
@@ -433,11 +512,10 @@ public class DexPatchGenerator {
             this.patchedAnnotationSetRefListItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedAnnotationSetRefListItemsOffset);
         }
-        this.annotationSetRefListSectionDiffAlg.simulatePatchOperation(
+        scheduler.simulate(this.annotationSetRefListSectionDiffAlg,
                 this.patchedAnnotationSetRefListItemsOffset
         );
 
-        this.annotationsDirectorySectionDiffAlg.execute();
         this.patchedAnnotationsDirectoryItemsOffset
                 = this.patchedAnnotationSetRefListItemsOffset
                 + this.annotationSetRefListSectionDiffAlg.getPatchedSectionSize();
@@ -445,11 +523,10 @@ public class DexPatchGenerator {
             this.patchedAnnotationsDirectoryItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedAnnotationsDirectoryItemsOffset);
         }
-        this.annotationsDirectorySectionDiffAlg.simulatePatchOperation(
+        scheduler.simulate(this.annotationsDirectorySectionDiffAlg,
                 this.patchedAnnotationsDirectoryItemsOffset
         );
 
-        this.debugInfoSectionDiffAlg.execute();
         this.patchedDebugInfoItemsOffset
                 = this.patchedAnnotationsDirectoryItemsOffset
                 + this.annotationsDirectorySectionDiffAlg.getPatchedSectionSize();
@@ -457,18 +534,16 @@ public class DexPatchGenerator {
             this.patchedDebugInfoItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedDebugInfoItemsOffset);
         }
-        this.debugInfoSectionDiffAlg.simulatePatchOperation(this.patchedDebugInfoItemsOffset);
+        scheduler.simulate(this.debugInfoSectionDiffAlg, this.patchedDebugInfoItemsOffset);
 
-        this.codeSectionDiffAlg.execute();
         this.patchedCodeItemsOffset
                 = this.patchedDebugInfoItemsOffset
                 + this.debugInfoSectionDiffAlg.getPatchedSectionSize();
         if (this.oldDex.getTableOfContents().codes.isElementFourByteAligned) {
             this.patchedCodeItemsOffset = SizeOf.roundToTimesOfFour(this.patchedCodeItemsOffset);
         }
-        this.codeSectionDiffAlg.simulatePatchOperation(this.patchedCodeItemsOffset);
+        scheduler.simulate(this.codeSectionDiffAlg, this.patchedCodeItemsOffset);
 
-        this.classDataSectionDiffAlg.execute();
         this.patchedClassDataItemsOffset
                 = this.patchedCodeItemsOffset
                 + this.codeSectionDiffAlg.getPatchedSectionSize();
@@ -476,9 +551,8 @@ public class DexPatchGenerator {
             this.patchedClassDataItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedClassDataItemsOffset);
         }
-        this.classDataSectionDiffAlg.simulatePatchOperation(this.patchedClassDataItemsOffset);
+        scheduler.simulate(this.classDataSectionDiffAlg, this.patchedClassDataItemsOffset);
 
-        this.encodedArraySectionDiffAlg.execute();
         this.patchedEncodedArrayItemsOffset
                 = this.patchedClassDataItemsOffset
                 + this.classDataSectionDiffAlg.getPatchedSectionSize();
@@ -486,9 +560,9 @@ public class DexPatchGenerator {
             this.patchedEncodedArrayItemsOffset
                     = SizeOf.roundToTimesOfFour(this.patchedEncodedArrayItemsOffset);
         }
-        this.encodedArraySectionDiffAlg.simulatePatchOperation(this.patchedEncodedArrayItemsOffset);
+        scheduler.simulate(this.encodedArraySectionDiffAlg, this.patchedEncodedArrayItemsOffset);
 
-        this.classDefSectionDiffAlg.execute();
+        scheduler.awaitExecuted(this.classDefSectionDiffAlg);
         this.patchedClassDefsOffset = this.patchedMethodIdsOffset + patchedMethodIdsSize;
         if (this.oldDex.getTableOfContents().classDefs.isElementFourByteAligned) {
             this.patchedClassDefsOffset = SizeOf.roundToTimesOfFour(this.patchedClassDefsOffset);
@@ -506,9 +580,6 @@ public class DexPatchGenerator {
         this.patchedDexSize
                 = this.patchedMapListOffset
                 + patchedMapListSize;
-
-        // Finally, write results to patch file.
-        writeResultToStream(out);
     }
 
     private void writeResultToStream(OutputStream os) throws IOException {
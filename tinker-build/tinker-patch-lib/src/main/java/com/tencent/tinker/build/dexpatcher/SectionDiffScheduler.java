@@ -0,0 +1,170 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.dexpatcher;
+
+import com.tencent.tinker.build.dexpatcher.algorithms.diff.DexSectionDiffAlgorithm;
+import com.tencent.tinker.commons.dexpatcher.DexPatcherLogger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs {@link DexSectionDiffAlgorithm#execute()} of dex sections concurrently.
+ *
+ * A section's diff reads index or offset mappings of the sections it references, so it
+ * is only started once all of them have run {@code simulatePatchOperation}. Simulations
+ * are done by the caller in section layout order through {@link #simulate}, since each
+ * base offset depends on the patched size of the previous section. Each section only
+ * writes its own mappings, so the result is the same as running all sections serially.
+ *
+ * All methods except the diff itself are called on the generator's thread, so is the logger.
+ */
+final class SectionDiffScheduler {
+    private static final String TAG = "SectionDiffScheduler";
+
+    private final ExecutorService executor;
+    private final DexPatcherLogger logger;
+    private final Map<DexSectionDiffAlgorithm<?>, SectionNode> nodes = new IdentityHashMap<>();
+
+    /**
+     * @param executor executor to run diffs on, or null to run each diff on the
+     *                 caller's thread when it is awaited.
+     */
+    SectionDiffScheduler(ExecutorService executor, DexPatcherLogger logger) {
+        this.executor = executor;
+        this.logger = logger;
+    }
+
+    void addSection(String name, DexSectionDiffAlgorithm<?> algorithm, DexSectionDiffAlgorithm<?>... dependencies) {
+        SectionNode node = new SectionNode(name, algorithm);
+        for (DexSectionDiffAlgorithm<?> dependency : dependencies) {
+            SectionNode dependencyNode = nodes.get(dependency);
+            if (dependencyNode == null) {
+                throw new IllegalStateException("section " + name + " is added before its dependency.");
+            }
+            dependencyNode.dependents.add(node);
+            ++node.pendingDependencyCount;
+        }
+        nodes.put(algorithm, node);
+    }
+
+    /**
+     * Submit diffs of all sections without dependencies.
+     */
+    void start() {
+        for (SectionNode node : nodes.values()) {
+            if (node.pendingDependencyCount == 0) {
+                submit(node);
+            }
+        }
+    }
+
+    void awaitExecuted(DexSectionDiffAlgorithm<?> algorithm) throws IOException {
+        SectionNode node = getNode(algorithm);
+        if (node.executed) {
+            return;
+        }
+        long waitStart = System.nanoTime();
+        if (node.future == null) {
+            if (executor != null || node.pendingDependencyCount != 0) {
+                throw new IllegalStateException("section " + node.name + " is awaited before its dependencies are simulated.");
+            }
+            node.call();
+        } else {
+            try {
+                node.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted when diffing section " + node.name, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException("failed to diff section " + node.name, cause);
+            }
+        }
+        node.executed = true;
+        logger.i(TAG, "section %s diff cost: %d ms, waited: %d ms", node.name,
+                node.executeCost / 1000000, (System.nanoTime() - waitStart) / 1000000);
+    }
+
+    /**
+     * Simulate patch operations of an executed section, then start diffs of
+     * sections whose dependencies are all simulated.
+     */
+    void simulate(DexSectionDiffAlgorithm<?> algorithm, int baseOffset) throws IOException {
+        awaitExecuted(algorithm);
+        SectionNode node = getNode(algorithm);
+        long start = System.nanoTime();
+        algorithm.simulatePatchOperation(baseOffset);
+        logger.i(TAG, "section %s simulate cost: %d ms", node.name, (System.nanoTime() - start) / 1000000);
+        for (SectionNode dependent : node.dependents) {
+            if (--dependent.pendingDependencyCount == 0) {
+                submit(dependent);
+            }
+        }
+    }
+
+    private void submit(SectionNode node) {
+        if (executor != null) {
+            node.future = executor.submit(node);
+        }
+    }
+
+    private SectionNode getNode(DexSectionDiffAlgorithm<?> algorithm) {
+        SectionNode node = nodes.get(algorithm);
+        if (node == null) {
+            throw new IllegalArgumentException("unknown section algorithm: " + algorithm);
+        }
+        return node;
+    }
+
+    private static final class SectionNode implements Callable<Void> {
+        final String name;
+        final DexSectionDiffAlgorithm<?> algorithm;
+        final List<SectionNode> dependents = new ArrayList<>();
+        int pendingDependencyCount = 0;
+        Future<Void> future = null;
+        boolean executed = false;
+        volatile long executeCost = 0;
+
+        SectionNode(String name, DexSectionDiffAlgorithm<?> algorithm) {
+            this.name = name;
+            this.algorithm = algorithm;
+        }
+
+        @Override
+        public Void call() {
+            long start = System.nanoTime();
+            algorithm.execute();
+            executeCost = System.nanoTime() - start;
+            return null;
+        }
+    }
+}
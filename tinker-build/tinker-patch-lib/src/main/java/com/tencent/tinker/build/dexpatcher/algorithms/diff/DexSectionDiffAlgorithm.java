@@ -22,25 +22,23 @@ import com.tencent.tinker.android.dex.TableOfContents;
 import com.tencent.tinker.android.dex.TableOfContents.Section.Item;
 import com.tencent.tinker.android.dex.io.DexDataBuffer;
 import com.tencent.tinker.android.dex.util.CompareUtils;
+import com.tencent.tinker.build.dexpatcher.util.IntIntHashMap;
 import com.tencent.tinker.commons.dexpatcher.struct.PatchOperation;
 import com.tencent.tinker.commons.dexpatcher.util.AbstractIndexMap;
 import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
 
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Created by tangyinsheng on 2016/6/29.
  */
 public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
-    private static final AbstractMap.SimpleEntry[] EMPTY_ENTRY_ARRAY = new AbstractMap.SimpleEntry[0];
+    private static final IndexedItem[] EMPTY_ITEM_ARRAY = new IndexedItem[0];
     protected final Dex oldDex;
     protected final Dex newDex;
     /**
@@ -63,16 +61,19 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
      */
     private final SparseIndexMap selfIndexMapForSkip;
     private final List<PatchOperation<T>> patchOperationList;
-    private final Map<Integer, PatchOperation<T>> indexToDelOperationMap = new HashMap<>();
-    private final Map<Integer, PatchOperation<T>> indexToAddOperationMap = new HashMap<>();
-    private final Map<Integer, PatchOperation<T>> indexToReplaceOperationMap = new HashMap<>();
-    private final Map<Integer, Integer> oldIndexToNewIndexMap = new HashMap<>();
-    private final Map<Integer, Integer> oldOffsetToNewOffsetMap = new HashMap<>();
+    /**
+     * Patch operations indexed by their item index, an index without operation holds null.
+     */
+    private PatchOperation<T>[] indexToDelOperations = null;
+    private PatchOperation<T>[] indexToAddOperations = null;
+    private PatchOperation<T>[] indexToReplaceOperations = null;
+    private final IntIntHashMap oldIndexToNewIndexMap = new IntIntHashMap();
+    private final IntIntHashMap oldOffsetToNewOffsetMap = new IntIntHashMap();
     private int patchedSectionSize;
-    private Comparator<AbstractMap.SimpleEntry<Integer, T>> comparatorForItemDiff = new Comparator<AbstractMap.SimpleEntry<Integer, T>>() {
+    private Comparator<IndexedItem<T>> comparatorForItemDiff = new Comparator<IndexedItem<T>>() {
         @Override
-        public int compare(AbstractMap.SimpleEntry<Integer, T> o1, AbstractMap.SimpleEntry<Integer, T> o2) {
-            return o1.getValue().compareTo(o2.getValue());
+        public int compare(IndexedItem<T> o1, IndexedItem<T> o2) {
+            return o1.item.compareTo(o2.item);
         }
     };
     private Comparator<PatchOperation<T>> comparatorForPatchOperationOpt = new Comparator<PatchOperation<T>>() {
@@ -112,7 +113,7 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
             return CompareUtils.sCompare(o1OrderId, o2OrderId);
         }
     };
-    private AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItemsWithOrigOrder = null;
+    private IndexedItem<T>[] adjustedOldIndexedItemsWithOrigOrder = null;
     private int oldItemCount = 0;
     private int newItemCount = 0;
 
@@ -209,20 +210,21 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
     }
 
-    @SuppressWarnings("unchecked,NewApi")
-    private AbstractMap.SimpleEntry<Integer, T>[] collectSectionItems(Dex dex, boolean isOldDex) {
+    @SuppressWarnings("unchecked")
+    private IndexedItem<T>[] collectSectionItems(Dex dex, boolean isOldDex) {
         TableOfContents.Section tocSec = getTocSection(dex);
         if (!tocSec.exists()) {
-            return EMPTY_ENTRY_ARRAY;
+            return EMPTY_ITEM_ARRAY;
         }
         Dex.Section dexSec = dex.openSection(tocSec);
         int itemCount = tocSec.size;
-        List<AbstractMap.SimpleEntry<Integer, T>> result = new ArrayList<>(itemCount);
+        IndexedItem<T>[] result = new IndexedItem[itemCount];
+        int resultCount = 0;
         if (isOldDex) {
             for (int i = 0; i < itemCount; ++i) {
                 T nextItem = nextItem(dexSec);
                 T adjustedItem = adjustItem(oldToPatchedIndexMap, nextItem);
-                result.add(new AbstractMap.SimpleEntry<>(i, adjustedItem));
+                result[resultCount++] = new IndexedItem<>(i, adjustedItem);
             }
         } else {
             int i = 0;
@@ -243,15 +245,15 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                 if (nextItem != null) {
                     int offsetAfterSkip = getItemOffsetOrIndex(indexAfterSkip, nextItem);
                     T adjustedItem = adjustItem(newToPatchedIndexMap, adjustItem(selfIndexMapForSkip, nextItem));
-                    int currentOutIndex = result.size();
-                    result.add(new AbstractMap.SimpleEntry<>(currentOutIndex, adjustedItem));
+                    int currentOutIndex = resultCount;
+                    result[resultCount++] = new IndexedItem<>(currentOutIndex, adjustedItem);
                     updateIndexOrOffset(selfIndexMapForSkip, indexBeforeSkip, offsetBeforeSkip, indexAfterSkip, offsetAfterSkip);
                 }
                 i = indexAfterSkip;
                 ++i;
             }
         }
-        return result.toArray(new AbstractMap.SimpleEntry[0]);
+        return (resultCount == itemCount ? result : Arrays.copyOf(result, resultCount));
     }
 
     public void execute() {
@@ -260,11 +262,10 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         this.adjustedOldIndexedItemsWithOrigOrder = collectSectionItems(this.oldDex, true);
         this.oldItemCount = this.adjustedOldIndexedItemsWithOrigOrder.length;
 
-        AbstractMap.SimpleEntry<Integer, T>[] adjustedOldIndexedItems = new AbstractMap.SimpleEntry[this.oldItemCount];
-        System.arraycopy(this.adjustedOldIndexedItemsWithOrigOrder, 0, adjustedOldIndexedItems, 0, this.oldItemCount);
+        IndexedItem<T>[] adjustedOldIndexedItems = Arrays.copyOf(this.adjustedOldIndexedItemsWithOrigOrder, this.oldItemCount);
         Arrays.sort(adjustedOldIndexedItems, this.comparatorForItemDiff);
 
-        AbstractMap.SimpleEntry<Integer, T>[] adjustedNewIndexedItems = collectSectionItems(this.newDex, false);
+        IndexedItem<T>[] adjustedNewIndexedItems = collectSectionItems(this.newDex, false);
         this.newItemCount = adjustedNewIndexedItems.length;
         Arrays.sort(adjustedNewIndexedItems, this.comparatorForItemDiff);
 
@@ -274,38 +275,38 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
             if (oldCursor >= this.oldItemCount) {
                 // rest item are all newItem.
                 while (newCursor < this.newItemCount) {
-                    AbstractMap.SimpleEntry<Integer, T> newIndexedItem = adjustedNewIndexedItems[newCursor++];
-                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.getKey(), newIndexedItem.getValue()));
+                    IndexedItem<T> newIndexedItem = adjustedNewIndexedItems[newCursor++];
+                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.index, newIndexedItem.item));
                 }
             } else
             if (newCursor >= newItemCount) {
                 // rest item are all oldItem.
                 while (oldCursor < oldItemCount) {
-                    AbstractMap.SimpleEntry<Integer, T> oldIndexedItem = adjustedOldIndexedItems[oldCursor++];
-                    int deletedIndex = oldIndexedItem.getKey();
-                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.getValue());
+                    IndexedItem<T> oldIndexedItem = adjustedOldIndexedItems[oldCursor++];
+                    int deletedIndex = oldIndexedItem.index;
+                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.item);
                     this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
                     markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
                 }
             } else {
-                AbstractMap.SimpleEntry<Integer, T> oldIndexedItem = adjustedOldIndexedItems[oldCursor];
-                AbstractMap.SimpleEntry<Integer, T> newIndexedItem = adjustedNewIndexedItems[newCursor];
-                int cmpRes = oldIndexedItem.getValue().compareTo(newIndexedItem.getValue());
+                IndexedItem<T> oldIndexedItem = adjustedOldIndexedItems[oldCursor];
+                IndexedItem<T> newIndexedItem = adjustedNewIndexedItems[newCursor];
+                int cmpRes = oldIndexedItem.item.compareTo(newIndexedItem.item);
                 if (cmpRes < 0) {
-                    int deletedIndex = oldIndexedItem.getKey();
-                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.getValue());
+                    int deletedIndex = oldIndexedItem.index;
+                    int deletedOffset = getItemOffsetOrIndex(deletedIndex, oldIndexedItem.item);
                     this.patchOperationList.add(new PatchOperation<T>(PatchOperation.OP_DEL, deletedIndex));
                     markDeletedIndexOrOffset(this.oldToPatchedIndexMap, deletedIndex, deletedOffset);
                     ++oldCursor;
                 } else
                 if (cmpRes > 0) {
-                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.getKey(), newIndexedItem.getValue()));
+                    this.patchOperationList.add(new PatchOperation<>(PatchOperation.OP_ADD, newIndexedItem.index, newIndexedItem.item));
                     ++newCursor;
                 } else {
-                    int oldIndex = oldIndexedItem.getKey();
-                    int newIndex = newIndexedItem.getKey();
-                    int oldOffset = getItemOffsetOrIndex(oldIndexedItem.getKey(), oldIndexedItem.getValue());
-                    int newOffset = getItemOffsetOrIndex(newIndexedItem.getKey(), newIndexedItem.getValue());
+                    int oldIndex = oldIndexedItem.index;
+                    int newIndex = newIndexedItem.index;
+                    int oldOffset = getItemOffsetOrIndex(oldIndex, oldIndexedItem.item);
+                    int newOffset = getItemOffsetOrIndex(newIndex, newIndexedItem.item);
 
                     if (oldIndex != newIndex) {
                         this.oldIndexToNewIndexMap.put(oldIndex, newIndex);
@@ -348,20 +349,24 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         }
 
         // Finally we record some information for the final calculations.
+        // Del and replace operations are indexed by old item index, add operations by new item index.
+        this.indexToDelOperations = new PatchOperation[this.oldItemCount];
+        this.indexToAddOperations = new PatchOperation[this.newItemCount];
+        this.indexToReplaceOperations = new PatchOperation[this.oldItemCount];
         patchOperationIt = this.patchOperationList.iterator();
         while (patchOperationIt.hasNext()) {
             PatchOperation<T> patchOperation = patchOperationIt.next();
             switch (patchOperation.op) {
                 case PatchOperation.OP_DEL: {
-                    indexToDelOperationMap.put(patchOperation.index, patchOperation);
+                    indexToDelOperations[patchOperation.index] = patchOperation;
                     break;
                 }
                 case PatchOperation.OP_ADD: {
-                    indexToAddOperationMap.put(patchOperation.index, patchOperation);
+                    indexToAddOperations[patchOperation.index] = patchOperation;
                     break;
                 }
                 case PatchOperation.OP_REPLACE: {
-                    indexToReplaceOperationMap.put(patchOperation.index, patchOperation);
+                    indexToReplaceOperations[patchOperation.index] = patchOperation;
                     break;
                 }
                 default: {
@@ -377,25 +382,11 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
         int patchedIndex = 0;
         int patchedOffset = baseOffset;
         while (oldIndex < this.oldItemCount || patchedIndex < this.newItemCount) {
-            if (this.indexToAddOperationMap.containsKey(patchedIndex)) {
-                PatchOperation<T> patchOperation = this.indexToAddOperationMap.get(patchedIndex);
-                if (isNeedToMakeAlign) {
-                    patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
-                }
-                T newItem = patchOperation.newItem;
-                int itemSize = getItemSize(newItem);
-                updateIndexOrOffset(
-                        this.newToPatchedIndexMap,
-                        0,
-                        getItemOffsetOrIndex(patchOperation.index, newItem),
-                        0,
-                        patchedOffset
-                );
-                ++patchedIndex;
-                patchedOffset += itemSize;
-            } else
-            if (this.indexToReplaceOperationMap.containsKey(patchedIndex)) {
-                PatchOperation<T> patchOperation = this.indexToReplaceOperationMap.get(patchedIndex);
+            PatchOperation<T> patchOperation = getOperation(this.indexToAddOperations, patchedIndex);
+            if (patchOperation == null) {
+                patchOperation = getOperation(this.indexToReplaceOperations, patchedIndex);
+            }
+            if (patchOperation != null) {
                 if (isNeedToMakeAlign) {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
@@ -411,10 +402,10 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                 ++patchedIndex;
                 patchedOffset += itemSize;
             } else
-            if (this.indexToDelOperationMap.containsKey(oldIndex)) {
+            if (getOperation(this.indexToDelOperations, oldIndex) != null) {
                 ++oldIndex;
             } else
-            if (this.indexToReplaceOperationMap.containsKey(oldIndex)) {
+            if (getOperation(this.indexToReplaceOperations, oldIndex) != null) {
                 ++oldIndex;
             } else
             if (oldIndex < this.oldItemCount) {
@@ -422,7 +413,7 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                     patchedOffset = SizeOf.roundToTimesOfFour(patchedOffset);
                 }
 
-                T oldItem = this.adjustedOldIndexedItemsWithOrigOrder[oldIndex].getValue();
+                T oldItem = this.adjustedOldIndexedItemsWithOrigOrder[oldIndex].item;
                 int itemSize = getItemSize(oldItem);
 
                 int oldOffset = getItemOffsetOrIndex(oldIndex, oldItem);
@@ -435,15 +426,8 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
                         patchedOffset
                 );
 
-                int newIndex = oldIndex;
-                if (this.oldIndexToNewIndexMap.containsKey(oldIndex)) {
-                    newIndex = this.oldIndexToNewIndexMap.get(oldIndex);
-                }
-
-                int newOffset = oldOffset;
-                if (this.oldOffsetToNewOffsetMap.containsKey(oldOffset)) {
-                    newOffset = this.oldOffsetToNewOffsetMap.get(oldOffset);
-                }
+                int newIndex = this.oldIndexToNewIndexMap.get(oldIndex, oldIndex);
+                int newOffset = this.oldOffsetToNewOffsetMap.get(oldOffset, oldOffset);
 
                 updateIndexOrOffset(
                         this.newToPatchedIndexMap,
@@ -461,4 +445,21 @@ public abstract class DexSectionDiffAlgorithm<T extends Comparable<T>> {
 
         this.patchedSectionSize = SizeOf.roundToTimesOfFour(patchedOffset - baseOffset);
     }
+
+    private static <T> PatchOperation<T> getOperation(PatchOperation<T>[] operations, int index) {
+        return (index >= 0 && index < operations.length ? operations[index] : null);
+    }
+
+    /**
+     * Item with its index in section, replaces {@code SimpleEntry<Integer, T>} to avoid boxing index.
+     */
+    private static final class IndexedItem<T> {
+        final int index;
+        final T item;
+
+        IndexedItem(int index, T item) {
+            this.index = index;
+            this.item = item;
+        }
+    }
 }
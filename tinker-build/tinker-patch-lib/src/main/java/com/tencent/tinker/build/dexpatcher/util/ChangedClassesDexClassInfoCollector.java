@@ -28,6 +28,7 @@ import com.tencent.tinker.android.dx.instruction.InstructionReader;
 import com.tencent.tinker.android.dx.instruction.InstructionVisitor;
 import com.tencent.tinker.android.dx.instruction.ShortArrayCodeInput;
 import com.tencent.tinker.build.util.DexClassesComparator;
+import com.tencent.tinker.build.util.DexSession;
 import com.tencent.tinker.commons.dexpatcher.DexPatcherLogger;
 
 import java.io.EOFException;
@@ -48,6 +49,7 @@ public class ChangedClassesDexClassInfoCollector {
     private static final DexPatcherLogger LOGGER = new DexPatcherLogger();
     private final Set<String> excludedClassPatterns = new HashSet<>();
     private boolean includeRefererToRefererAffectedClasses = false;
+    private DexSession dexSession;
 
     public ChangedClassesDexClassInfoCollector setExcludedClassPatterns(Collection<String> loaderClassPatterns) {
         this.excludedClassPatterns.clear();
@@ -70,6 +72,11 @@ public class ChangedClassesDexClassInfoCollector {
         return this;
     }
 
+    public ChangedClassesDexClassInfoCollector setDexSession(DexSession dexSession) {
+        this.dexSession = dexSession;
+        return this;
+    }
+
     public Set<DexClassInfo> doCollect(DexGroup oldDexGroup, DexGroup newDexGroup) {
         final Set<String> classDescsInResult = new HashSet<>();
         final Set<DexClassInfo> result = new HashSet<>();
@@ -78,6 +85,7 @@ public class ChangedClassesDexClassInfoCollector {
         dexClassCmptor.setCompareMode(DexClassesComparator.COMPARE_MODE_NORMAL);
         dexClassCmptor.setIgnoredRemovedClassDescPattern(excludedClassPatterns);
         dexClassCmptor.setLogger(LOGGER.getLoggerImpl());
+        dexClassCmptor.setDexSession(dexSession);
         dexClassCmptor.startCheck(oldDexGroup, newDexGroup);
 
         // So far we collected infos of all added, changed, and deleted classes.
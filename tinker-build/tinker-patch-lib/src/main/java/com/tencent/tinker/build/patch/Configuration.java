@@ -16,7 +16,9 @@
 
 package com.tencent.tinker.build.patch;
 
+import com.tencent.tinker.bsdiff.BlockCodec;
 import com.tencent.tinker.build.util.FileOperation;
+import com.tencent.tinker.build.util.IncrementalState;
 import com.tencent.tinker.build.util.TinkerPatchException;
 import com.tencent.tinker.build.util.TypedValue;
 import com.tencent.tinker.build.util.Utils;
@@ -37,6 +39,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -47,6 +50,9 @@ import javax.xml.parsers.ParserConfigurationException;
  *         do not use Logger here
  */
 public class Configuration {
+    public static final long DEFAULT_DIFF_CACHE_MAX_SIZE = 512L * 1024 * 1024;
+    public static final int  DEFAULT_COMPRESS_LEVEL      = Deflater.BEST_COMPRESSION;
+    public static final int  DEFAULT_MAX_PARALLELISM     = 4;
 
     protected static final String TAG_ISSUE = "issue";
     protected static final String DEX_ISSUE = "dex";
@@ -69,6 +75,8 @@ public class Configuration {
     protected static final String ATTR_SUPPORT_HOTPLUG_COMPONENT = "supportHotplugComponent";
     protected static final String ATTR_USE_SIGN                  = "useSign";
     protected static final String ATTR_SEVEN_ZIP_PATH            = "sevenZipPath";
+    protected static final String ATTR_COMPRESS_LEVEL            = "compressLevel";
+    protected static final String ATTR_BSDIFF_CODEC              = "bsdiffCodec";
     protected static final String ATTR_DEX_MODE                  = "dexMode";
     protected static final String ATTR_PATTERN                   = "pattern";
     protected static final String ATTR_IGNORE_CHANGE             = "ignoreChange";
@@ -131,6 +139,15 @@ public class Configuration {
      * sevenZip path config
      */
     public String                  mSevenZipPath;
+    /**
+     * deflate level of the patch apk entries, 0-9
+     */
+    public int                     mCompressLevel = DEFAULT_COMPRESS_LEVEL;
+    /**
+     * compression of the blocks in so and resource bsdiff files, anything but gzip
+     * needs a tinker runtime which knows the codec
+     */
+    public BlockCodec              mBsDiffCodec   = BlockCodec.GZIP;
     /**
      * sign data
      */
@@ -149,6 +166,30 @@ public class Configuration {
 
     public boolean mUsingGradle;
 
+    /**
+     * number of worker threads used to diff files, and of regions a large file is split into
+     * by bsdiff, 1 means no extra threads,
+     * the available processors but at most {@link #DEFAULT_MAX_PARALLELISM} by default
+     */
+    public int mParallelism;
+
+    /**
+     * diff outputs cache shared between builds, disabled if null
+     */
+    public File mDiffCacheDir;
+    public long mDiffCacheMaxSize = DEFAULT_DIFF_CACHE_MAX_SIZE;
+
+    /**
+     * incremental state of a previous build against the same base apk, null for a full build
+     */
+    public File mIncrementalStateDir;
+
+    /**
+     * keep the incremental state in the output folder for a later -incrementalFrom build,
+     * implied when building incrementally
+     */
+    public boolean mSaveIncrementalState;
+
     /**
      * ark patch
      */
@@ -181,6 +222,7 @@ public class Configuration {
         mNewApkFile = newApkFile;
         mNewApkPath = newApkFile.getAbsolutePath();
         mLargeModSize = 100;
+        mParallelism = getDefaultParallelism();
         readXmlConfig(config);
         createTempDirectory();
         checkInputPatternParameter();
@@ -225,6 +267,13 @@ public class Configuration {
             addToPatterns(item, mResIgnoreChangeWarningPattern);
         }
         mLargeModSize = param.largeModSize;
+        mParallelism = param.parallelism > 0 ? param.parallelism : getDefaultParallelism();
+        if (param.diffCacheDir != null && !param.diffCacheDir.isEmpty()) {
+            mDiffCacheDir = new File(param.diffCacheDir);
+        }
+        if (param.diffCacheMaxSizeMb > 0) {
+            mDiffCacheMaxSize = param.diffCacheMaxSizeMb * 1024L * 1024L;
+        }
         //only gradle have the param
         mUseApplyResource = param.useApplyResource;
 
@@ -254,11 +303,17 @@ public class Configuration {
         mSupportHotplugComponent = param.supportHotplugComponent;
 
         mSevenZipPath = param.sevenZipPath;
+        mCompressLevel = checkCompressLevel(param.compressLevel);
+        mBsDiffCodec = checkBsDiffCodec(param.bsdiffCodec);
         mPackageFields = param.configFields;
 
         mUseSignAPk = param.useSign;
         setSignData(param.signFile, param.keypass, param.storealias, param.storepass);
 
+        mSaveIncrementalState = param.saveIncrementalState;
+        if (param.incrementalFrom != null && !param.incrementalFrom.isEmpty()) {
+            mIncrementalStateDir = IncrementalState.stashIfInside(new File(param.incrementalFrom), new File(mOutFolder));
+        }
         FileOperation.cleanDir(new File(mOutFolder));
 
         createTempDirectory();
@@ -268,6 +323,14 @@ public class Configuration {
         mArkHotPatchPath = param.arkHotPatchPath;
     }
 
+    /**
+     * bsdiff takes several times the size of its inputs, so more threads would rather run out of heap
+     * than finish sooner on machines with many cores
+     */
+    private static int getDefaultParallelism() {
+        return Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PARALLELISM);
+    }
+
     @Override
     public String toString() {
         StringBuffer sb = new StringBuffer();
@@ -280,7 +343,17 @@ public class Configuration {
         sb.append("isRemoveLoaderForAllDex:" + mRemoveLoaderForAllDex + "\n");
         sb.append("isProtectedApp:" + mIsProtectedApp + "\n");
         sb.append("7-ZipPath:" + mSevenZipPath + "\n");
+        sb.append("compressLevel:" + mCompressLevel + "\n");
+        sb.append("bsdiffCodec:" + mBsDiffCodec + "\n");
         sb.append("useSignAPk:" + mUseSignAPk + "\n");
+        sb.append("parallelism:" + mParallelism + "\n");
+        if (mIncrementalStateDir != null) {
+            sb.append("incrementalFrom:" + mIncrementalStateDir.getAbsolutePath() + "\n");
+        }
+        sb.append("saveIncrementalState:" + mSaveIncrementalState + "\n");
+        if (mDiffCacheDir != null) {
+            sb.append("diffCacheDir:" + mDiffCacheDir.getAbsolutePath() + ", maxSize:" + mDiffCacheMaxSize + "\n");
+        }
 
         sb.append("package meta fields: \n");
 
@@ -480,6 +553,14 @@ public class Configuration {
                         } else {
                             mSevenZipPath = "7za";
                         }
+                    } else if (tagName.equals(ATTR_COMPRESS_LEVEL)) {
+                        try {
+                            mCompressLevel = checkCompressLevel(Integer.parseInt(value));
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Invalid config file: compressLevel must be a number, yours " + value);
+                        }
+                    } else if (tagName.equals(ATTR_BSDIFF_CODEC)) {
+                        mBsDiffCodec = checkBsDiffCodec(value);
                     } else {
                         System.err.println("unknown property tag " + tagName);
                     }
@@ -488,6 +569,29 @@ public class Configuration {
         }
     }
 
+    private static int checkCompressLevel(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new TinkerPatchException(
+                String.format("compressLevel must be between %d and %d, yours %d", Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION, level)
+            );
+        }
+        return level;
+    }
+
+    private static BlockCodec checkBsDiffCodec(String name) {
+        if (name == null || name.isEmpty()) {
+            return BlockCodec.GZIP;
+        }
+        try {
+            return BlockCodec.get(name);
+        } catch (IllegalArgumentException e) {
+            throw new TinkerPatchException(
+                String.format("bsdiffCodec must be one of %s, %s or %s, yours %s",
+                    BlockCodec.GZIP, BlockCodec.DEFLATE_BEST, BlockCodec.STORED, name)
+            );
+        }
+    }
+
     private void readArkHotPropertyFromXml(Node node) throws IOException {
         NodeList childNodes = node.getChildNodes();
         if (childNodes.getLength() > 0) {
@@ -40,6 +40,23 @@ public class InputParam {
     public final boolean isProtectedApp;
     public final boolean supportHotplugComponent;
     public final boolean useSign;
+    /**
+     * worker threads for diffing, 0 means available processors but at most 4
+     */
+    public final int     parallelism;
+    /**
+     * diff cache dir shared between builds, null or empty to disable
+     */
+    public final String  diffCacheDir;
+    public final int     diffCacheMaxSizeMb;
+    /**
+     * output folder of a previous build against the same base apk, null or empty for a full build
+     */
+    public final String  incrementalFrom;
+    /**
+     * keep the state of this build in its output folder for a later incremental build
+     */
+    public final boolean saveIncrementalState;
 
     /**
      * tinkerPatch.dex
@@ -81,6 +98,14 @@ public class InputParam {
      * tinkerPatch.sevenZip
      */
     public final String                  sevenZipPath;
+    /**
+     * deflate level of the patch apk entries, 0-9
+     */
+    public final int                     compressLevel;
+    /**
+     * block codec of bsdiff files, gzip if null or empty
+     */
+    public final String                  bsdiffCodec;
 
     /**
      * TinkerPatch ark
@@ -102,6 +127,13 @@ public class InputParam {
             boolean isProtectedApp,
             boolean supportHotplugComponent,
             boolean useSign,
+            int parallelism,
+            String diffCacheDir,
+            int diffCacheMaxSizeMb,
+            String incrementalFrom,
+            boolean saveIncrementalState,
+            int compressLevel,
+            String bsdiffCodec,
 
             ArrayList<String> dexFilePattern,
             ArrayList<String> dexLoaderPattern,
@@ -133,6 +165,13 @@ public class InputParam {
         this.isProtectedApp = isProtectedApp;
         this.supportHotplugComponent = supportHotplugComponent;
         this.useSign = useSign;
+        this.parallelism = parallelism;
+        this.diffCacheDir = diffCacheDir;
+        this.diffCacheMaxSizeMb = diffCacheMaxSizeMb;
+        this.incrementalFrom = incrementalFrom;
+        this.saveIncrementalState = saveIncrementalState;
+        this.compressLevel = compressLevel;
+        this.bsdiffCodec = bsdiffCodec;
 
         this.dexFilePattern = dexFilePattern;
         this.dexLoaderPattern = dexLoaderPattern;
@@ -170,6 +209,11 @@ public class InputParam {
         private boolean isProtectedApp;
         private boolean isComponentHotplugSupported;
         private boolean useSign;
+        private int     parallelism;
+        private String  diffCacheDir;
+        private int     diffCacheMaxSizeMb;
+        private String  incrementalFrom;
+        private boolean saveIncrementalState;
 
         /**
          * tinkerPatch.dex
@@ -211,6 +255,8 @@ public class InputParam {
          * tinkerPatch.sevenZip
          */
         private String                  sevenZipPath;
+        private int                     compressLevel = Configuration.DEFAULT_COMPRESS_LEVEL;
+        private String                  bsdiffCodec;
 
         /**
          * tinkerPatch ark
@@ -347,6 +393,41 @@ public class InputParam {
             return this;
         }
 
+        public Builder setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        public Builder setDiffCacheDir(String diffCacheDir) {
+            this.diffCacheDir = diffCacheDir;
+            return this;
+        }
+
+        public Builder setDiffCacheMaxSizeMb(int diffCacheMaxSizeMb) {
+            this.diffCacheMaxSizeMb = diffCacheMaxSizeMb;
+            return this;
+        }
+
+        public Builder setIncrementalFrom(String incrementalFrom) {
+            this.incrementalFrom = incrementalFrom;
+            return this;
+        }
+
+        public Builder setSaveIncrementalState(boolean saveIncrementalState) {
+            this.saveIncrementalState = saveIncrementalState;
+            return this;
+        }
+
+        public Builder setCompressLevel(int compressLevel) {
+            this.compressLevel = compressLevel;
+            return this;
+        }
+
+        public Builder setBsDiffCodec(String bsdiffCodec) {
+            this.bsdiffCodec = bsdiffCodec;
+            return this;
+        }
+
         public Builder setArkHotPath(String path) {
             this.arkHotPatchPath = path;
             return this;
@@ -372,6 +453,13 @@ public class InputParam {
                     isProtectedApp,
                     isComponentHotplugSupported,
                     useSign,
+                    parallelism,
+                    diffCacheDir,
+                    diffCacheMaxSizeMb,
+                    incrementalFrom,
+                    saveIncrementalState,
+                    compressLevel,
+                    bsdiffCodec,
                     dexFilePattern,
                     dexLoaderPattern,
                     dexIgnoreWarningLoaderPattern,
@@ -0,0 +1,295 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.commons.util.IOHelper;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipEntry;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipFile;
+import com.tencent.tinker.ziputils.ziputil.TinkerZipUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Central directory view of the old and new apk.
+ *
+ * Entries whose crc and size are equal in both apks are treated as unchanged without
+ * reading their data, everything else is extracted on demand, one entry at a time,
+ * instead of unzipping both apks up front.
+ *
+ * Extracted files remember the entry they came from, so decoders can tell a known
+ * change from the crc alone and share one digest between files with the same name,
+ * size and crc. Lookups are thread-safe; extraction is expected on a single thread.
+ */
+public class ApkEntryIndex implements Closeable {
+    private final TinkerZipFile oldApk;
+    private final TinkerZipFile newApk;
+
+    private final ConcurrentHashMap<File, TinkerZipEntry> extractedEntries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String>       digests          = new ConcurrentHashMap<>();
+
+    private final AtomicInteger unchangedByCrcCount = new AtomicInteger();
+    private final AtomicInteger changedByCrcCount   = new AtomicInteger();
+    private final AtomicInteger digestHitCount      = new AtomicInteger();
+    private final AtomicInteger digestMissCount     = new AtomicInteger();
+
+    public ApkEntryIndex(File oldApkFile, File newApkFile) throws IOException {
+        TinkerZipFile old = new TinkerZipFile(oldApkFile);
+        try {
+            this.newApk = new TinkerZipFile(newApkFile);
+        } catch (IOException e) {
+            IOHelper.closeQuietly(old);
+            throw e;
+        }
+        this.oldApk = old;
+    }
+
+    /**
+     * file entries of the new apk, in central directory order
+     */
+    public List<TinkerZipEntry> getNewEntries() {
+        return fileEntriesOf(newApk);
+    }
+
+    /**
+     * file entries of the old apk which do not exist in the new apk any more
+     */
+    public List<TinkerZipEntry> getDeletedEntries() {
+        List<TinkerZipEntry> result = new ArrayList<>();
+        for (TinkerZipEntry oldEntry : fileEntriesOf(oldApk)) {
+            if (newApk.getEntry(oldEntry.getName()) == null) {
+                result.add(oldEntry);
+            }
+        }
+        return result;
+    }
+
+    public TinkerZipEntry getOldEntry(String name) {
+        TinkerZipEntry entry = oldApk.getEntry(name);
+        if (entry == null || entry.isDirectory()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @return true if the old apk has an entry with the same name, size and crc
+     */
+    public boolean isUnchanged(TinkerZipEntry newEntry) {
+        TinkerZipEntry oldEntry = getOldEntry(newEntry.getName());
+        if (oldEntry == null) {
+            return false;
+        }
+        if (isSameContent(oldEntry, newEntry)) {
+            unchangedByCrcCount.incrementAndGet();
+            return true;
+        }
+        changedByCrcCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return true if both files were extracted by this index and their entries differ in size or crc,
+     * which means their content differs and there is no need to hash both of them to find out
+     */
+    public boolean isKnownChanged(File oldFile, File newFile) {
+        if (oldFile == null || newFile == null) {
+            return false;
+        }
+        TinkerZipEntry oldEntry = extractedEntries.get(oldFile);
+        TinkerZipEntry newEntry = extractedEntries.get(newFile);
+        return oldEntry != null && newEntry != null && !isSameContent(oldEntry, newEntry);
+    }
+
+    /**
+     * Returns the digest of {@code kind} stored for a file with the same name, size and crc, or null.
+     */
+    public String getCachedDigest(File file, String kind) {
+        String key = digestKey(file, kind);
+        if (key == null) {
+            return null;
+        }
+        String digest = digests.get(key);
+        if (digest != null) {
+            digestHitCount.incrementAndGet();
+        } else {
+            digestMissCount.incrementAndGet();
+        }
+        return digest;
+    }
+
+    /**
+     * Returns the name, size and crc of the entry a file was extracted from, which can stand in for
+     * its content hash, or null if the file was not extracted by this index.
+     */
+    public String getContentKey(File file) {
+        TinkerZipEntry entry = extractedEntries.get(file);
+        if (entry == null) {
+            return null;
+        }
+        return entry.getName() + ':' + entry.getSize() + ':' + Long.toHexString(entry.getCrc());
+    }
+
+    public void cacheDigest(File file, String kind, String digest) {
+        String key = digestKey(file, kind);
+        if (key != null && digest != null) {
+            digests.putIfAbsent(key, digest);
+        }
+    }
+
+    /**
+     * all digests stored so far, keyed by kind, entry name, size and crc
+     */
+    public Map<String, String> getDigests() {
+        return new HashMap<>(digests);
+    }
+
+    /**
+     * Adds digests taken by an earlier build, see {@link #getDigests()}.
+     */
+    public void seedDigests(Map<String, String> digests) {
+        this.digests.putAll(digests);
+    }
+
+    public String getStatistics() {
+        return String.format("unchanged by crc: %d, changed by crc: %d, digest reused: %d, digest computed: %d",
+            unchangedByCrcCount.get(), changedByCrcCount.get(), digestHitCount.get(), digestMissCount.get());
+    }
+
+    public File extractOld(TinkerZipEntry entry, File destDir) throws IOException {
+        File file = extract(oldApk, entry, destDir);
+        extractedEntries.put(file, entry);
+        return file;
+    }
+
+    public File extractNew(TinkerZipEntry entry, File destDir) throws IOException {
+        File file = extract(newApk, entry, destDir);
+        extractedEntries.put(file, entry);
+        return file;
+    }
+
+    @Override
+    public void close() {
+        IOHelper.closeQuietly(oldApk);
+        IOHelper.closeQuietly(newApk);
+    }
+
+    private static boolean isSameContent(TinkerZipEntry oldEntry, TinkerZipEntry newEntry) {
+        return oldEntry.getSize() == newEntry.getSize() && oldEntry.getCrc() == newEntry.getCrc();
+    }
+
+    private String digestKey(File file, String kind) {
+        String contentKey = getContentKey(file);
+        if (contentKey == null) {
+            return null;
+        }
+        return kind + ':' + contentKey;
+    }
+
+    private static List<TinkerZipEntry> fileEntriesOf(TinkerZipFile apk) {
+        List<TinkerZipEntry> result = new ArrayList<>(apk.size());
+        Set<String> names = new HashSet<>();
+        Enumeration<? extends TinkerZipEntry> entries = apk.entries();
+        while (entries.hasMoreElements()) {
+            TinkerZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory() && names.add(entry.getName())) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static File extract(TinkerZipFile apk, TinkerZipEntry entry, File destDir) throws IOException {
+        String name = entry.getName();
+        if (!TinkerZipUtil.validateZipEntryName(destDir, name)) {
+            throw new IOException("Bad ZipEntry name: " + name);
+        }
+        File destFile = new File(destDir, name);
+        File parentFile = destFile.getParentFile();
+        if (parentFile != null && !parentFile.exists()) {
+            parentFile.mkdirs();
+        }
+
+        CRC32 crc = new CRC32();
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new CheckedInputStream(openEntry(apk, entry), crc);
+            out = new BufferedOutputStream(new FileOutputStream(destFile), TypedValue.BUFFER_SIZE);
+            byte[] buffer = new byte[TypedValue.BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            IOHelper.closeQuietly(out);
+            IOHelper.closeQuietly(in);
+        }
+        if (crc.getValue() != entry.getCrc()) {
+            throw new IOException(String.format("crc mismatch of %s in %s, expected %x, got %x",
+                name, apk.getName(), entry.getCrc(), crc.getValue()));
+        }
+        return destFile;
+    }
+
+    /**
+     * {@link TinkerZipFile#getInputStream(TinkerZipEntry)} returns the raw entry data,
+     * so deflated entries have to be inflated here.
+     */
+    private static InputStream openEntry(TinkerZipFile apk, TinkerZipEntry entry) throws IOException {
+        InputStream raw = apk.getInputStream(entry);
+        if (raw == null) {
+            throw new IOException("can't find zipEntry " + entry.getName() + " in " + apk.getName());
+        }
+        if (entry.getMethod() == TinkerZipEntry.STORED) {
+            return raw;
+        }
+        // Inflater in 'nowrap' mode may need one extra byte past the deflated data.
+        InputStream padded = new SequenceInputStream(raw, new ByteArrayInputStream(new byte[1]));
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(padded, inflater, TypedValue.BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
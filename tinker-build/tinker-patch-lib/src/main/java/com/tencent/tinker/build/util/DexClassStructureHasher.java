@@ -0,0 +1,581 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.android.dex.Annotation;
+import com.tencent.tinker.android.dex.AnnotationSet;
+import com.tencent.tinker.android.dex.AnnotationSetRefList;
+import com.tencent.tinker.android.dex.AnnotationsDirectory;
+import com.tencent.tinker.android.dex.ClassData;
+import com.tencent.tinker.android.dex.ClassDef;
+import com.tencent.tinker.android.dex.Code;
+import com.tencent.tinker.android.dex.DebugInfoItem;
+import com.tencent.tinker.android.dex.Dex;
+import com.tencent.tinker.android.dex.EncodedValueReader;
+import com.tencent.tinker.android.dex.FieldId;
+import com.tencent.tinker.android.dex.MethodId;
+import com.tencent.tinker.android.dex.ProtoId;
+import com.tencent.tinker.android.dex.TypeList;
+import com.tencent.tinker.android.dex.io.DexDataBuffer;
+import com.tencent.tinker.android.dx.instruction.InstructionCodec;
+import com.tencent.tinker.android.dx.instruction.InstructionReader;
+import com.tencent.tinker.android.dx.instruction.InstructionVisitor;
+import com.tencent.tinker.android.dx.instruction.ShortArrayCodeInput;
+import com.tencent.tinker.build.util.DexClassesComparator.DexClassInfo;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Structural hashes of dex classes.
+ *
+ * A class is hashed over everything {@link DexClassesComparator} looks at when deciding whether two
+ * classes are the same, with every string, type, field and method index replaced by what it refers to,
+ * so the hash doesn't depend on the layout of the dex holding the class. The hash is stricter than the
+ * comparator: equal hashes mean the classes are the same, different hashes mean they have to be compared
+ * in depth.
+ *
+ * Hashes are kept by the caller, in the {@link DexSession} of the build if there is one, so comparisons run
+ * by different checkers on the same dex share them.
+ */
+final class DexClassStructureHasher {
+
+    private final Dex dex;
+    private final MessageDigest digest;
+    private final byte[] scratch = new byte[8];
+    private byte[] charBytes = new byte[256];
+
+    private DexClassStructureHasher(Dex dex) {
+        this.dex = dex;
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Hashes the given classes of every dex into the class hashes of that dex, skipping classes
+     * hashed before. Dexes are hashed one per task on executor, or on the calling thread if it is null.
+     *
+     * @param dexToClassHashesMap class descriptor to hash for each dex, must be thread-safe maps
+     */
+    static void hashClasses(Map<Dex, List<DexClassInfo>> dexToClassInfosMap,
+                            final Map<Dex, Map<String, byte[]>> dexToClassHashesMap, ExecutorService executor) {
+        if (executor == null || dexToClassInfosMap.size() <= 1) {
+            for (Map.Entry<Dex, List<DexClassInfo>> entry : dexToClassInfosMap.entrySet()) {
+                hashClasses(entry.getKey(), entry.getValue(), dexToClassHashesMap.get(entry.getKey()));
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (final Map.Entry<Dex, List<DexClassInfo>> entry : dexToClassInfosMap.entrySet()) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        hashClasses(entry.getKey(), entry.getValue(), dexToClassHashesMap.get(entry.getKey()));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void hashClasses(Dex dex, List<DexClassInfo> classInfos, Map<String, byte[]> classHashes) {
+        DexClassStructureHasher hasher = null;
+        for (DexClassInfo classInfo : classInfos) {
+            if (classHashes.containsKey(classInfo.classDesc)) {
+                continue;
+            }
+            if (hasher == null) {
+                hasher = new DexClassStructureHasher(dex);
+            }
+            classHashes.put(classInfo.classDesc, hasher.hashClass(classInfo.classDef));
+        }
+    }
+
+    private byte[] hashClass(ClassDef classDef) {
+        digest.reset();
+        putInt(classDef.accessFlags);
+        putType(classDef.supertypeIndex);
+        short[] interfaceIndices = dex.interfaceTypeIndicesFromClassDef(classDef);
+        putInt(interfaceIndices.length);
+        for (short interfaceIndex : interfaceIndices) {
+            putType(interfaceIndex & 0xFFFF);
+        }
+        putString(classDef.sourceFileIndex);
+        putAnnotationDirectory(classDef.annotationsOffset);
+        putClassData(classDef.classDataOffset);
+        putStaticValues(classDef.staticValuesOffset);
+        return digest.digest();
+    }
+
+    private void putAnnotationDirectory(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        AnnotationsDirectory directory = dex.openSection(offset).readAnnotationsDirectory();
+        putAnnotationSet(directory.classAnnotationsOffset);
+        putInt(directory.fieldAnnotations.length);
+        for (int[] fieldAnnotation : directory.fieldAnnotations) {
+            putFieldId(fieldAnnotation[0]);
+            putAnnotationSet(fieldAnnotation[1]);
+        }
+        putInt(directory.methodAnnotations.length);
+        for (int[] methodAnnotation : directory.methodAnnotations) {
+            putMethodId(methodAnnotation[0]);
+            putAnnotationSet(methodAnnotation[1]);
+        }
+        putInt(directory.parameterAnnotations.length);
+        for (int[] parameterAnnotation : directory.parameterAnnotations) {
+            putMethodId(parameterAnnotation[0]);
+            putAnnotationSetRefList(parameterAnnotation[1]);
+        }
+    }
+
+    private void putAnnotationSetRefList(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        AnnotationSetRefList refList = dex.openSection(offset).readAnnotationSetRefList();
+        putInt(refList.annotationSetRefItems.length);
+        for (int annotationSetOffset : refList.annotationSetRefItems) {
+            putAnnotationSet(annotationSetOffset);
+        }
+    }
+
+    private void putAnnotationSet(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        AnnotationSet annotationSet = dex.openSection(offset).readAnnotationSet();
+        putInt(annotationSet.annotationOffsets.length);
+        for (int annotationOffset : annotationSet.annotationOffsets) {
+            Annotation annotation = dex.openSection(annotationOffset).readAnnotation();
+            putInt(annotation.visibility);
+            putAnnotation(annotation.getReader());
+        }
+    }
+
+    private void putAnnotation(EncodedValueReader reader) {
+        int fieldCount = reader.readAnnotation();
+        putInt(fieldCount);
+        putType(reader.getAnnotationType());
+        for (int i = 0; i < fieldCount; ++i) {
+            putString(reader.readAnnotationName());
+            putEncodedValue(reader);
+        }
+    }
+
+    private void putStaticValues(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        EncodedValueReader reader = new EncodedValueReader(
+                dex.openSection(offset).readEncodedArray(), EncodedValueReader.ENCODED_ARRAY
+        );
+        putEncodedValue(reader);
+    }
+
+    private void putEncodedValue(EncodedValueReader reader) {
+        int type = reader.peek();
+        putInt(type);
+        switch (type) {
+            case EncodedValueReader.ENCODED_BYTE:
+                putInt(reader.readByte());
+                break;
+            case EncodedValueReader.ENCODED_SHORT:
+                putInt(reader.readShort());
+                break;
+            case EncodedValueReader.ENCODED_INT:
+                putInt(reader.readInt());
+                break;
+            case EncodedValueReader.ENCODED_LONG:
+                putLong(reader.readLong());
+                break;
+            case EncodedValueReader.ENCODED_CHAR:
+                putInt(reader.readChar());
+                break;
+            case EncodedValueReader.ENCODED_FLOAT:
+                putInt(Float.floatToIntBits(reader.readFloat()));
+                break;
+            case EncodedValueReader.ENCODED_DOUBLE:
+                putLong(Double.doubleToLongBits(reader.readDouble()));
+                break;
+            case EncodedValueReader.ENCODED_STRING:
+                putString(reader.readString());
+                break;
+            case EncodedValueReader.ENCODED_TYPE:
+                putType(reader.readType());
+                break;
+            case EncodedValueReader.ENCODED_FIELD:
+                putFieldId(reader.readField());
+                break;
+            case EncodedValueReader.ENCODED_ENUM:
+                putFieldId(reader.readEnum());
+                break;
+            case EncodedValueReader.ENCODED_METHOD:
+                putMethodId(reader.readMethod());
+                break;
+            case EncodedValueReader.ENCODED_ARRAY: {
+                int size = reader.readArray();
+                putInt(size);
+                for (int i = 0; i < size; ++i) {
+                    putEncodedValue(reader);
+                }
+                break;
+            }
+            case EncodedValueReader.ENCODED_ANNOTATION:
+                putAnnotation(reader);
+                break;
+            case EncodedValueReader.ENCODED_NULL:
+                reader.readNull();
+                break;
+            case EncodedValueReader.ENCODED_BOOLEAN:
+                putInt(reader.readBoolean() ? 1 : 0);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected annotation value type: " + Integer.toHexString(type));
+        }
+    }
+
+    private void putClassData(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        ClassData classData = dex.openSection(offset).readClassData();
+        putFields(classData.instanceFields);
+        putFields(classData.staticFields);
+        putMethods(classData.directMethods);
+        putMethods(classData.virtualMethods);
+    }
+
+    private void putFields(ClassData.Field[] fields) {
+        putInt(fields.length);
+        for (ClassData.Field field : fields) {
+            putInt(field.accessFlags);
+            putFieldId(field.fieldIndex);
+        }
+    }
+
+    private void putMethods(ClassData.Method[] methods) {
+        putInt(methods.length);
+        for (ClassData.Method method : methods) {
+            putInt(method.accessFlags);
+            putMethodId(method.methodIndex);
+            putCode(method.codeOffset);
+        }
+    }
+
+    private void putCode(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        Code code = dex.openSection(offset).readCode();
+        putInt(code.registersSize);
+        putInt(code.insSize);
+        putInstructions(code.instructions);
+        putDebugInfo(code.debugInfoOffset);
+        putInt(code.tries.length);
+        for (Code.Try tryItem : code.tries) {
+            putInt(tryItem.startAddress);
+            putInt(tryItem.instructionCount);
+            putInt(tryItem.catchHandlerIndex);
+        }
+        putInt(code.catchHandlers.length);
+        for (Code.CatchHandler catchHandler : code.catchHandlers) {
+            putInt(catchHandler.typeIndexes.length);
+            for (int i = 0; i < catchHandler.typeIndexes.length; ++i) {
+                putType(catchHandler.typeIndexes[i]);
+                putInt(catchHandler.addresses[i]);
+            }
+            putInt(catchHandler.catchAllAddress);
+        }
+    }
+
+    /**
+     * Instructions are hashed with their addresses and branch targets as they are, so a const-string
+     * turned into a const-string/jumbo makes the hash differ and the comparator decide.
+     */
+    private void putInstructions(short[] instructions) {
+        putInt(instructions.length);
+        InstructionReader reader = new InstructionReader(new ShortArrayCodeInput(instructions));
+        try {
+            reader.accept(new InstructionVisitor(null) {
+                public void visitZeroRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, 0);
+                }
+
+                public void visitOneRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, 1);
+                    putInt(a);
+                }
+
+                public void visitTwoRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, 2);
+                    putInt(a);
+                    putInt(b);
+                }
+
+                public void visitThreeRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, 3);
+                    putInt(a);
+                    putInt(b);
+                    putInt(c);
+                }
+
+                public void visitFourRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, 4);
+                    putInt(a);
+                    putInt(b);
+                    putInt(c);
+                    putInt(d);
+                }
+
+                public void visitFiveRegisterInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int b, int c, int d, int e) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, 5);
+                    putInt(a);
+                    putInt(b);
+                    putInt(c);
+                    putInt(d);
+                    putInt(e);
+                }
+
+                public void visitRegisterRangeInsn(int currentAddress, int opcode, int index, int indexType, int target, long literal, int a, int registerCount) {
+                    putInsn(currentAddress, opcode, index, indexType, target, literal, registerCount);
+                    putInt(a);
+                }
+
+                public void visitSparseSwitchPayloadInsn(int currentAddress, int opcode, int[] keys, int[] targets) {
+                    putInt(currentAddress);
+                    putInt(opcode);
+                    putInt(keys.length);
+                    for (int i = 0; i < keys.length; ++i) {
+                        putInt(keys[i]);
+                        putInt(targets[i]);
+                    }
+                }
+
+                public void visitPackedSwitchPayloadInsn(int currentAddress, int opcode, int firstKey, int[] targets) {
+                    putInt(currentAddress);
+                    putInt(opcode);
+                    putInt(firstKey);
+                    putInt(targets.length);
+                    for (int target : targets) {
+                        putInt(target);
+                    }
+                }
+
+                public void visitFillArrayDataPayloadInsn(int currentAddress, int opcode, Object data, int size, int elementWidth) {
+                    putInt(currentAddress);
+                    putInt(opcode);
+                    putInt(size);
+                    putInt(elementWidth);
+                    if (data instanceof byte[]) {
+                        digest.update((byte[]) data);
+                    } else if (data instanceof short[]) {
+                        for (short element : (short[]) data) {
+                            putInt(element);
+                        }
+                    } else if (data instanceof int[]) {
+                        for (int element : (int[]) data) {
+                            putInt(element);
+                        }
+                    } else {
+                        for (long element : (long[]) data) {
+                            putLong(element);
+                        }
+                    }
+                }
+            });
+        } catch (EOFException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void putInsn(int address, int opcode, int index, int indexType, int target, long literal, int registerCount) {
+        putInt(address);
+        putInt(opcode);
+        switch (indexType) {
+            case InstructionCodec.INDEX_TYPE_STRING_REF:
+                putString(index);
+                break;
+            case InstructionCodec.INDEX_TYPE_TYPE_REF:
+                putType(index);
+                break;
+            case InstructionCodec.INDEX_TYPE_FIELD_REF:
+                putFieldId(index);
+                break;
+            case InstructionCodec.INDEX_TYPE_METHOD_REF:
+                putMethodId(index);
+                break;
+            default:
+                putInt(index);
+                break;
+        }
+        putInt(target);
+        putLong(literal);
+        putInt(registerCount);
+    }
+
+    private void putDebugInfo(int offset) {
+        putInt(offset == 0 ? 0 : 1);
+        if (offset == 0) {
+            return;
+        }
+        DebugInfoItem debugInfoItem = dex.openSection(offset).readDebugInfoItem();
+        putInt(debugInfoItem.lineStart);
+        putInt(debugInfoItem.parameterNames.length);
+        for (int parameterName : debugInfoItem.parameterNames) {
+            putString(parameterName);
+        }
+        DexDataBuffer buffer = new DexDataBuffer(ByteBuffer.wrap(debugInfoItem.infoSTM));
+        while (buffer.available() > 0) {
+            int opcode = buffer.readUnsignedByte();
+            putInt(opcode);
+            switch (opcode) {
+                case DebugInfoItem.DBG_ADVANCE_PC:
+                case DebugInfoItem.DBG_END_LOCAL:
+                case DebugInfoItem.DBG_RESTART_LOCAL:
+                    putInt(buffer.readUleb128());
+                    break;
+                case DebugInfoItem.DBG_ADVANCE_LINE:
+                    putInt(buffer.readSleb128());
+                    break;
+                case DebugInfoItem.DBG_START_LOCAL:
+                case DebugInfoItem.DBG_START_LOCAL_EXTENDED:
+                    putInt(buffer.readUleb128());
+                    putString(buffer.readUleb128p1());
+                    putType(buffer.readUleb128p1());
+                    if (opcode == DebugInfoItem.DBG_START_LOCAL_EXTENDED) {
+                        putString(buffer.readUleb128p1());
+                    }
+                    break;
+                case DebugInfoItem.DBG_SET_FILE:
+                    putString(buffer.readUleb128p1());
+                    break;
+                default:
+                    // DBG_END_SEQUENCE, the prologue / epilogue markers and special opcodes
+                    // carry no operands.
+                    break;
+            }
+        }
+    }
+
+    private void putFieldId(int fieldIndex) {
+        FieldId fieldId = dex.fieldIds().get(fieldIndex);
+        putType(fieldId.declaringClassIndex);
+        putType(fieldId.typeIndex);
+        putString(fieldId.nameIndex);
+    }
+
+    private void putMethodId(int methodIndex) {
+        MethodId methodId = dex.methodIds().get(methodIndex);
+        putType(methodId.declaringClassIndex);
+        ProtoId protoId = dex.protoIds().get(methodId.protoIndex);
+        putString(protoId.shortyIndex);
+        putType(protoId.returnTypeIndex);
+        if (protoId.parametersOffset == 0) {
+            putInt(-1);
+        } else {
+            TypeList parameters = dex.openSection(protoId.parametersOffset).readTypeList();
+            putInt(parameters.types.length);
+            for (short type : parameters.types) {
+                putType(type & 0xFFFF);
+            }
+        }
+        putString(methodId.nameIndex);
+    }
+
+    private void putType(int typeIndex) {
+        putChars(typeIndex == ClassDef.NO_INDEX ? null : dex.typeNames().get(typeIndex));
+    }
+
+    private void putString(int stringIndex) {
+        putChars(stringIndex == ClassDef.NO_INDEX ? null : dex.strings().get(stringIndex));
+    }
+
+    /**
+     * Hashes the UTF-16 chars themselves, encoding them would replace lone surrogates
+     * and let different dex strings hash the same.
+     */
+    private void putChars(String value) {
+        if (value == null) {
+            putInt(-1);
+            return;
+        }
+        int length = value.length();
+        putInt(length);
+        if (charBytes.length < length * 2) {
+            charBytes = new byte[length * 2];
+        }
+        for (int i = 0; i < length; ++i) {
+            char c = value.charAt(i);
+            charBytes[i * 2] = (byte) (c >>> 8);
+            charBytes[i * 2 + 1] = (byte) c;
+        }
+        digest.update(charBytes, 0, length * 2);
+    }
+
+    private void putInt(int value) {
+        scratch[0] = (byte) (value >>> 24);
+        scratch[1] = (byte) (value >>> 16);
+        scratch[2] = (byte) (value >>> 8);
+        scratch[3] = (byte) value;
+        digest.update(scratch, 0, 4);
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+}
@@ -44,13 +44,16 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -77,6 +80,9 @@ public final class DexClassesComparator {
     private final Set<String> newDescriptorOfClassesToCheck = new HashSet<>();
     private final Map<String, DexClassInfo> oldClassDescriptorToClassInfoMap = new HashMap<>();
     private final Map<String, DexClassInfo> newClassDescriptorToClassInfoMap = new HashMap<>();
+    // dex => classDesc => structural hash, see DexClassStructureHasher.
+    private final Map<Dex, Map<String, byte[]>> dexToClassHashesMap = new HashMap<>();
+    private DexSession dexSession;
 
     // Record class descriptors whose references key (index or offset) of methods and fields
     // are changed.
@@ -133,6 +139,14 @@ public final class DexClassesComparator {
         }
     }
 
+    /**
+     * Keeps class hashes in the session, so they are shared with other comparators of the build
+     * and hashed on its threads. Without a session they are hashed on the calling thread for each check.
+     */
+    public void setDexSession(DexSession dexSession) {
+        this.dexSession = dexSession;
+    }
+
     public void setCompareMode(int mode) {
         if (mode == COMPARE_MODE_NORMAL || mode == COMPARE_MODE_REFERRER_AFFECTED_CHANGE_ONLY) {
             this.compareMode = mode;
@@ -175,6 +189,16 @@ public final class DexClassesComparator {
         oldClassDescriptorToClassInfoMap.clear();
         newClassDescriptorToClassInfoMap.clear();
         refAffectedClassDescs.clear();
+        dexToClassHashesMap.clear();
+
+        // Descriptors and names are looked up over and over while comparing,
+        // decode each of them only once.
+        for (Dex oldDex : oldDexGroup.dexes) {
+            oldDex.enableStringCache();
+        }
+        for (Dex newDex : newDexGroup.dexes) {
+            newDex.enableStringCache();
+        }
 
         // Map classDesc and typeIndex to classInfo
         // and collect typeIndex of classes to check in oldDexes.
@@ -249,12 +273,16 @@ public final class DexClassesComparator {
         Set<String> mayBeChangedClassDescs = new HashSet<>(oldDescriptorOfClassesToCheck);
         mayBeChangedClassDescs.retainAll(newDescriptorOfClassesToCheck);
 
+        if (compareMode == COMPARE_MODE_NORMAL) {
+            hashClasses(mayBeChangedClassDescs);
+        }
+
         for (String desc : mayBeChangedClassDescs) {
             DexClassInfo oldClassInfo = oldClassDescriptorToClassInfoMap.get(desc);
             DexClassInfo newClassInfo = newClassDescriptorToClassInfoMap.get(desc);
             switch (compareMode) {
                 case COMPARE_MODE_NORMAL: {
-                    if (!isSameClass(
+                    if (!isSameClassHash(oldClassInfo, newClassInfo) && !isSameClass(
                             oldClassInfo.owner,
                             newClassInfo.owner,
                             oldClassInfo.classDef,
@@ -296,6 +324,47 @@ public final class DexClassesComparator {
         }
     }
 
+    /**
+     * Hashes the classes that exist on both sides so that unchanged ones can be told apart
+     * without comparing them member by member. Classes of different dexes are hashed in parallel
+     * on the threads of the session.
+     */
+    private void hashClasses(Set<String> classDescs) {
+        Map<Dex, List<DexClassInfo>> dexToClassInfosMap = new LinkedHashMap<>();
+        for (String desc : classDescs) {
+            addClassInfoToHash(dexToClassInfosMap, oldClassDescriptorToClassInfoMap.get(desc));
+            addClassInfoToHash(dexToClassInfosMap, newClassDescriptorToClassInfoMap.get(desc));
+        }
+        for (Dex dex : dexToClassInfosMap.keySet()) {
+            if (!dexToClassHashesMap.containsKey(dex)) {
+                Map<String, byte[]> classHashes = (dexSession != null ? dexSession.getClassHashes(dex) : new ConcurrentHashMap<String, byte[]>());
+                dexToClassHashesMap.put(dex, classHashes);
+            }
+        }
+        DexClassStructureHasher.hashClasses(dexToClassInfosMap, dexToClassHashesMap,
+                dexSession != null ? dexSession.getHashExecutor() : null);
+    }
+
+    private static void addClassInfoToHash(Map<Dex, List<DexClassInfo>> dexToClassInfosMap, DexClassInfo classInfo) {
+        List<DexClassInfo> classInfos = dexToClassInfosMap.get(classInfo.owner);
+        if (classInfos == null) {
+            classInfos = new ArrayList<>();
+            dexToClassInfosMap.put(classInfo.owner, classInfos);
+        }
+        classInfos.add(classInfo);
+    }
+
+    private boolean isSameClassHash(DexClassInfo oldClassInfo, DexClassInfo newClassInfo) {
+        Map<String, byte[]> oldClassHashes = dexToClassHashesMap.get(oldClassInfo.owner);
+        Map<String, byte[]> newClassHashes = dexToClassHashesMap.get(newClassInfo.owner);
+        if (oldClassHashes == null || newClassHashes == null) {
+            return false;
+        }
+        byte[] oldClassHash = oldClassHashes.get(oldClassInfo.classDesc);
+        byte[] newClassHash = newClassHashes.get(newClassInfo.classDesc);
+        return oldClassHash != null && Arrays.equals(oldClassHash, newClassHash);
+    }
+
     private boolean isClassChangeAffectedToReferrer(
             Dex oldDex,
             Dex newDex,
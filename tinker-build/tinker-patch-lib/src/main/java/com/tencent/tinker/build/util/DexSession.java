@@ -0,0 +1,126 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.android.dex.ClassDef;
+import com.tencent.tinker.android.dex.Dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dexes of the old and new apk parsed for one patch build.
+ *
+ * Every consumer asking for the same file gets the same {@link Dex}, with its string cache enabled,
+ * so a dex is read and decoded once no matter how many checks and diffs look at it. Dexes handed out
+ * here are shared and must only be read. The structural class hashes of each dex are kept here as well,
+ * together with the threads hashing them. {@link #release()} drops all of them once the dexes are done.
+ */
+public final class DexSession {
+    private final int parallelism;
+
+    private final Map<File, Dex> fileToDexMap = new HashMap<>();
+    private final Map<Dex, Map<String, ClassDef>> dexToClassDefsMap = new HashMap<>();
+    private final Map<Dex, Map<String, byte[]>> dexToClassHashesMap = new HashMap<>();
+
+    private ExecutorService hashExecutor;
+
+    /**
+     * @param parallelism number of threads hashing classes of different dexes, 1 to hash on the calling thread
+     */
+    public DexSession(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public synchronized Dex getDex(File dexFile) throws IOException {
+        File key = dexFile.getAbsoluteFile();
+        Dex dex = fileToDexMap.get(key);
+        if (dex == null) {
+            dex = new Dex(key);
+            dex.enableStringCache();
+            fileToDexMap.put(key, dex);
+        }
+        return dex;
+    }
+
+    /**
+     * @return class descriptor to class def of every class in {@code dex}, in class def order
+     */
+    public synchronized Map<String, ClassDef> getClassDefs(Dex dex) {
+        Map<String, ClassDef> classDefs = dexToClassDefsMap.get(dex);
+        if (classDefs == null) {
+            Map<String, ClassDef> descToClassDefMap = new LinkedHashMap<>();
+            for (ClassDef classDef : dex.classDefs()) {
+                descToClassDefMap.put(dex.typeNames().get(classDef.typeIndex), classDef);
+            }
+            classDefs = Collections.unmodifiableMap(descToClassDefMap);
+            dexToClassDefsMap.put(dex, classDefs);
+        }
+        return classDefs;
+    }
+
+    /**
+     * @return class descriptor to structural hash of the classes of {@code dex} hashed so far,
+     * see {@link DexClassesComparator#setDexSession(DexSession)}
+     */
+    public synchronized Map<String, byte[]> getClassHashes(Dex dex) {
+        Map<String, byte[]> classHashes = dexToClassHashesMap.get(dex);
+        if (classHashes == null) {
+            classHashes = new ConcurrentHashMap<>();
+            dexToClassHashesMap.put(dex, classHashes);
+        }
+        return classHashes;
+    }
+
+    /**
+     * @return the threads hashing classes, or null if they are hashed on the calling thread
+     */
+    public synchronized ExecutorService getHashExecutor() {
+        if (hashExecutor == null && parallelism > 1) {
+            final AtomicInteger threadIndex = new AtomicInteger();
+            hashExecutor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "tinker-dex-hash-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return hashExecutor;
+    }
+
+    public synchronized void release() {
+        fileToDexMap.clear();
+        dexToClassDefsMap.clear();
+        dexToClassHashesMap.clear();
+        if (hashExecutor != null) {
+            hashExecutor.shutdownNow();
+            hashExecutor = null;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.build.patch.Configuration;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * On-disk cache of diff outputs shared between patch builds.
+ *
+ * An entry is addressed by the md5 of its key, which callers build from the algorithm name and
+ * version, the content hashes of the inputs and any configuration the output depends on, see
+ * {@link #key(String, int, String...)}. Entries are published by atomic rename so concurrent
+ * builds sharing a directory never see partial files. Reading an entry refreshes its
+ * modification time, and the least recently used entries are evicted once the directory
+ * grows beyond its size limit.
+ */
+public class DiffCache {
+    private static final String ENTRY_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX  = ".tmp";
+
+    private final File dir;
+    private final long maxSize;
+
+    /**
+     * running size of the directory, -1 until it is listed for the first time
+     */
+    private long totalSize = -1;
+
+    public DiffCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the cache configured for this build, or null if diff caching is disabled
+     */
+    public static DiffCache open(Configuration config) {
+        if (config.mDiffCacheDir == null) {
+            return null;
+        }
+        if (!config.mDiffCacheDir.exists() && !config.mDiffCacheDir.mkdirs()) {
+            Logger.e("Warning: can't create diff cache dir %s, diff cache is disabled", config.mDiffCacheDir.getAbsolutePath());
+            return null;
+        }
+        return new DiffCache(config.mDiffCacheDir, config.mDiffCacheMaxSize);
+    }
+
+    public static String key(String algorithm, int algorithmVersion, String... parts) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(algorithm).append('#').append(algorithmVersion);
+        for (String part : parts) {
+            sb.append('|').append(part);
+        }
+        try {
+            return MD5.getMessageDigest(sb.toString().getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the cached output for {@code key} to {@code dest}.
+     *
+     * @return false if there is no such entry
+     */
+    public boolean get(String key, File dest) {
+        File entry = entryFile(key);
+        if (!entry.isFile()) {
+            return false;
+        }
+        try {
+            File parent = dest.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            Files.copy(entry.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // evicted by another build in the meantime
+            Logger.e("Warning: can't read diff cache entry %s: %s", entry.getName(), e.getMessage());
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    public void put(String key, File src) {
+        File entry = entryFile(key);
+        long replacedSize = entry.length();
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, TEMP_SUFFIX, dir);
+            Files.copy(src.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logger.e("Warning: can't write diff cache entry %s: %s", entry.getName(), e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+            return;
+        }
+        evictIfNeeded(entry.length() - replacedSize);
+    }
+
+    private File entryFile(String key) {
+        return new File(dir, key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Adds {@code addedSize} to the running size of the directory and evicts the least recently used
+     * entries once it exceeds the limit. The directory is only listed to initialize the running size
+     * and when evicting, which also picks up entries written by other builds in the meantime.
+     */
+    private synchronized void evictIfNeeded(long addedSize) {
+        try {
+            if (totalSize < 0) {
+                totalSize = sizeOf(listEntries());
+            } else {
+                totalSize += addedSize;
+            }
+            if (totalSize <= maxSize) {
+                return;
+            }
+            CacheEntry[] entries = listEntries();
+            totalSize = sizeOf(entries);
+            // lastModified is snapshotted since reads of other builds keep touching it while sorting
+            Arrays.sort(entries, new Comparator<CacheEntry>() {
+                @Override
+                public int compare(CacheEntry lhs, CacheEntry rhs) {
+                    return lhs.lastModified < rhs.lastModified ? -1 : (lhs.lastModified == rhs.lastModified ? 0 : 1);
+                }
+            });
+            for (CacheEntry entry : entries) {
+                if (totalSize <= maxSize) {
+                    break;
+                }
+                if (entry.file.delete()) {
+                    totalSize -= entry.length;
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.e("Warning: can't evict diff cache entries in %s: %s", dir.getAbsolutePath(), e.getMessage());
+            totalSize = -1;
+        }
+    }
+
+    private CacheEntry[] listEntries() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(ENTRY_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new CacheEntry[0];
+        }
+        CacheEntry[] entries = new CacheEntry[files.length];
+        for (int i = 0; i < files.length; i++) {
+            entries[i] = new CacheEntry(files[i], files[i].length(), files[i].lastModified());
+        }
+        return entries;
+    }
+
+    private static long sizeOf(CacheEntry[] entries) {
+        long size = 0;
+        for (CacheEntry entry : entries) {
+            size += entry.length;
+        }
+        return size;
+    }
+
+    private static final class CacheEntry {
+        final File file;
+        final long length;
+        final long lastModified;
+
+        CacheEntry(File file, long length, long lastModified) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
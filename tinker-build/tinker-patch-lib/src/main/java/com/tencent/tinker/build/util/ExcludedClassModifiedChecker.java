@@ -16,7 +16,6 @@
 
 package com.tencent.tinker.build.util;
 
-import com.tencent.tinker.android.dex.ClassDef;
 import com.tencent.tinker.android.dex.Dex;
 import com.tencent.tinker.android.dex.DexFormat;
 import com.tencent.tinker.build.dexpatcher.util.PatternUtils;
@@ -48,6 +47,7 @@ public final class ExcludedClassModifiedChecker {
     private static final int STMCODE_ERROR_LOADER_CLASS_CHANGED                    = 0x07;
     private static final int STMCODE_END                                           = 0x08;
     private final Configuration        config;
+    private final DexSession           dexSession;
     private final DexClassesComparator dexCmptor;
     private Dex                         oldDex                = null;
     private Dex                         newDex                = null;
@@ -58,9 +58,11 @@ public final class ExcludedClassModifiedChecker {
     private Set<String>                 newClassesDescToCheck = new HashSet<>();
     private HashSet<Pattern>            ignoreChangeWarning   = new HashSet<>();
 
-    public ExcludedClassModifiedChecker(Configuration config) {
+    public ExcludedClassModifiedChecker(Configuration config, DexSession dexSession) {
         this.config = config;
+        this.dexSession = dexSession;
         this.dexCmptor = new DexClassesComparator(config.mDexLoaderPattern);
+        this.dexCmptor.setDexSession(dexSession);
         for (String classname : config.mDexIgnoreWarningLoaderPattern) {
             ignoreChangeWarning.add(Pattern.compile(
                 PatternUtils.dotClassNamePatternToDescriptorRegEx(classname)
@@ -73,8 +75,8 @@ public final class ExcludedClassModifiedChecker {
             throw new TinkerPatchException("both oldFile and newFile are null.");
         }
 
-        oldDex = (oldFile != null ? new Dex(oldFile) : null);
-        newDex = (newFile != null ? new Dex(newFile) : null);
+        oldDex = (oldFile != null ? dexSession.getDex(oldFile) : null);
+        newDex = (newFile != null ? dexSession.getDex(newFile) : null);
 
         int stmCode = STMCODE_START;
 
@@ -146,8 +148,7 @@ public final class ExcludedClassModifiedChecker {
 
                         if (oldDex != null) {
                             oldClassesDescToCheck.clear();
-                            for (ClassDef classDef : oldDex.classDefs()) {
-                                String desc = oldDex.typeNames().get(classDef.typeIndex);
+                            for (String desc : dexSession.getClassDefs(oldDex).keySet()) {
                                 if (Utils.isStringMatchesPatterns(desc, patternsOfClassDescToCheck)) {
                                     oldClassesDescToCheck.add(desc);
                                 }
@@ -163,8 +164,7 @@ public final class ExcludedClassModifiedChecker {
 
                         if (newDex != null) {
                             newClassesDescToCheck.clear();
-                            for (ClassDef classDef : newDex.classDefs()) {
-                                String desc = newDex.typeNames().get(classDef.typeIndex);
+                            for (String desc : dexSession.getClassDefs(newDex).keySet()) {
                                 if (Utils.isStringMatchesPatterns(desc, patternsOfClassDescToCheck)) {
                                     newClassesDescToCheck.add(desc);
                                 }
@@ -0,0 +1,266 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.build.util;
+
+import com.tencent.tinker.commons.util.IOHelper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a patch build learned about its inputs, kept in its output folder when the build asks
+ * for it, or builds incrementally itself, so that the next build against the same base apk
+ * can pick it up with {@code -incrementalFrom}.
+ *
+ * The state holds the digests of the apk entries, keyed by entry name, size and crc as in
+ * {@link ApkEntryIndex}, and the outputs of every dex and bsdiff run, keyed like the
+ * {@link DiffCache} entries. A later build only hashes, diffs and verifies the entries whose
+ * fingerprint is not found here.
+ */
+public class IncrementalState {
+    public static final String STATE_DIR = "tinker_incremental";
+
+    private static final String STATE_FILE   = "state.txt";
+    private static final String OUTPUTS_DIR  = "outputs";
+    private static final String STASH_PREFIX = "tinker_incremental_";
+    private static final String OUTPUT_SUFFIX = ".bin";
+
+    private static final int VERSION = 1;
+
+    private static final String LINE_VERSION = "version";
+    private static final String LINE_BASE    = "base";
+    private static final String LINE_DIGEST  = "digest";
+    private static final String LINE_DEX     = "dex";
+
+    private final File   dir;
+    private final File   outputsDir;
+    private final String baseApkMd5;
+
+    private final Map<String, String>    digests    = new ConcurrentHashMap<>();
+    private final Map<String, DexResult> dexResults = new ConcurrentHashMap<>();
+
+    private IncrementalState(File dir, String baseApkMd5) {
+        this.dir = dir;
+        this.outputsDir = new File(dir, OUTPUTS_DIR);
+        this.baseApkMd5 = baseApkMd5;
+    }
+
+    /**
+     * Starts an empty state in the output folder of the current build.
+     */
+    public static IncrementalState create(File outFolder, String baseApkMd5) {
+        File dir = new File(outFolder, STATE_DIR);
+        FileOperation.deleteDir(dir);
+        new File(dir, OUTPUTS_DIR).mkdirs();
+        return new IncrementalState(dir, baseApkMd5);
+    }
+
+    /**
+     * Reads the state kept by a previous build.
+     *
+     * @return null if there is no usable state, or it was made against another base apk
+     */
+    public static IncrementalState load(File dir, String baseApkMd5) {
+        File stateFile = new File(dir, STATE_FILE);
+        if (!stateFile.isFile()) {
+            Logger.e("Warning: no incremental state found in %s, do a full build", dir.getAbsolutePath());
+            return null;
+        }
+        IncrementalState state = new IncrementalState(dir, baseApkMd5);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split(",", 3);
+                if (columns[0].equals(LINE_VERSION)) {
+                    if (Integer.parseInt(columns[1]) != VERSION) {
+                        Logger.e("Warning: incremental state version %s is not supported, do a full build", columns[1]);
+                        return null;
+                    }
+                } else if (columns[0].equals(LINE_BASE)) {
+                    if (!columns[1].equals(baseApkMd5)) {
+                        Logger.e("Warning: incremental state was made against another base apk, do a full build");
+                        return null;
+                    }
+                } else if (columns[0].equals(LINE_DIGEST)) {
+                    // the key goes last since it contains the entry name
+                    state.digests.put(columns[2], columns[1]);
+                } else if (columns[0].equals(LINE_DEX)) {
+                    String[] values = columns[2].split(",");
+                    state.dexResults.put(columns[1], new DexResult(values[0], values[1], Long.parseLong(values[2])));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Logger.e("Warning: can't read incremental state %s: %s, do a full build", stateFile.getAbsolutePath(), e.getMessage());
+            return null;
+        } finally {
+            IOHelper.closeQuietly(reader);
+        }
+        return state;
+    }
+
+    /**
+     * The output folder is cleaned before each build, so a state which lives in there
+     * is moved to a temp dir first.
+     *
+     * @return the dir to load the state from
+     */
+    public static File stashIfInside(File stateSourceDir, File outFolder) throws IOException {
+        File dir = new File(stateSourceDir, STATE_DIR);
+        String outPath = outFolder.getCanonicalPath() + File.separator;
+        if (!dir.isDirectory() || !dir.getCanonicalPath().startsWith(outPath)) {
+            return dir;
+        }
+        File stash = Files.createTempDirectory(STASH_PREFIX).toFile();
+        File stashed = new File(stash, STATE_DIR);
+        Files.move(dir.toPath(), stashed.toPath());
+        return stashed;
+    }
+
+    public Map<String, String> getDigests() {
+        return Collections.unmodifiableMap(digests);
+    }
+
+    public void putDigests(Map<String, String> digests) {
+        this.digests.putAll(digests);
+    }
+
+    /**
+     * Copies the output stored for {@code key} to {@code dest}.
+     *
+     * @return false if there is no such output
+     */
+    public boolean getOutput(String key, File dest) {
+        File output = outputFile(key);
+        if (!output.isFile()) {
+            return false;
+        }
+        try {
+            File parent = dest.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            Files.copy(output.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Logger.e("Warning: can't read incremental output %s: %s", output.getName(), e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Keeps {@code src} as the output for {@code key}. Outputs are never rewritten once they are
+     * made, so a hard link is enough, the file is only copied if the file system can't link it.
+     */
+    public void putOutput(String key, File src) {
+        File output = outputFile(key);
+        if (output.exists()) {
+            return;
+        }
+        try {
+            try {
+                Files.createLink(output.toPath(), src.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(src.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logger.e("Warning: can't keep incremental output %s: %s", output.getName(), e.getMessage());
+            output.delete();
+        }
+    }
+
+    public DexResult getDexResult(String key) {
+        return dexResults.get(key);
+    }
+
+    public void putDexResult(String key, DexResult result) {
+        dexResults.put(key, result);
+    }
+
+    public void save() throws IOException {
+        File stateFile = new File(dir, STATE_FILE);
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stateFile), "UTF-8"));
+            writeLine(writer, LINE_VERSION, String.valueOf(VERSION));
+            writeLine(writer, LINE_BASE, baseApkMd5);
+            for (Map.Entry<String, String> entry : digests.entrySet()) {
+                writeLine(writer, LINE_DIGEST, entry.getValue(), entry.getKey());
+            }
+            for (Map.Entry<String, DexResult> entry : dexResults.entrySet()) {
+                DexResult result = entry.getValue();
+                writeLine(writer, LINE_DEX, entry.getKey(), result.dexDiffMd5 + "," + result.fullPatchedMd5 + "," + result.fullPatchedCrc);
+            }
+        } finally {
+            IOHelper.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Removes a state dir returned by {@link #stashIfInside(File, File)} if it was stashed.
+     */
+    public static void release(File dir) {
+        File parent = dir.getParentFile();
+        if (parent != null && parent.getName().startsWith(STASH_PREFIX)) {
+            FileOperation.deleteDir(parent);
+        }
+    }
+
+    private File outputFile(String key) {
+        return new File(outputsDir, key + OUTPUT_SUFFIX);
+    }
+
+    private static void writeLine(BufferedWriter writer, String... columns) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(column);
+        }
+        writer.write(sb.toString());
+        writer.newLine();
+    }
+
+    /**
+     * What the dex decoder records after generating and verifying a dex diff.
+     */
+    public static final class DexResult {
+        public final String dexDiffMd5;
+        public final String fullPatchedMd5;
+        public final long   fullPatchedCrc;
+
+        public DexResult(String dexDiffMd5, String fullPatchedMd5, long fullPatchedCrc) {
+            this.dexDiffMd5 = dexDiffMd5;
+            this.fullPatchedMd5 = fullPatchedMd5;
+            this.fullPatchedCrc = fullPatchedCrc;
+        }
+    }
+}
@@ -29,12 +29,12 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -118,16 +118,21 @@ public class Utils {
         return false;
     }
 
-    public static String genResOutputFile(File output, File newZipFile, Configuration config,
-                                    ArrayList<String> addedSet, ArrayList<String> modifiedSet, ArrayList<String> deletedSet,
-                                    ArrayList<String> largeModifiedSet, HashMap<String, ResDiffDecoder.LargeModeInfo> largeModifiedMap) throws IOException {
+    /**
+     * Assembles resources_out.zip from the raw entries of the old apk, the large modified files,
+     * and the raw entries of the new apk for added and modified resources. Files which only exist
+     * in the result dir, such as the test resource, are stored.
+     */
+    public static String genResOutputFile(File output, File resultDir, Configuration config,
+                                    Set<String> addedSet, Set<String> modifiedSet, Set<String> deletedSet,
+                                    Set<String> largeModifiedSet, HashMap<String, ResDiffDecoder.LargeModeInfo> largeModifiedMap) throws IOException {
         TinkerZipFile oldApk = null;
         TinkerZipFile newApk = null;
         TinkerZipOutputStream out = null;
 
         try {
             oldApk = new TinkerZipFile(config.mOldApkFile);
-            newApk = new TinkerZipFile(newZipFile);
+            newApk = new TinkerZipFile(config.mNewApkFile);
             out = new TinkerZipOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
 
             final Enumeration<? extends TinkerZipEntry> entries = oldApk.entries();
@@ -173,23 +178,11 @@ public class Utils {
             }
 
             for (String name : addedSet) {
-                TinkerZipEntry addZipEntry = newApk.getEntry(name);
-                if (addZipEntry == null) {
-                    throw new TinkerPatchException(
-                        String.format("can't found add resource file %s from new apk file %s", name, config.mNewApkFile.getAbsolutePath())
-                    );
-                }
-                TinkerZipUtil.extractTinkerEntry(newApk, addZipEntry, out);
+                writeNewResEntry(newApk, resultDir, name, out);
             }
 
             for (String name : modifiedSet) {
-                TinkerZipEntry modZipEntry = newApk.getEntry(name);
-                if (modZipEntry == null) {
-                    throw new TinkerPatchException(
-                        String.format("can't found add resource file %s from new apk file %s", name, config.mNewApkFile.getAbsolutePath())
-                    );
-                }
-                TinkerZipUtil.extractTinkerEntry(newApk, modZipEntry, out);
+                writeNewResEntry(newApk, resultDir, name, out);
             }
         } finally {
             IOHelper.closeQuietly(out);
@@ -199,6 +192,21 @@ public class Utils {
         return MD5.getMD5(output);
     }
 
+    private static void writeNewResEntry(TinkerZipFile newApk, File resultDir, String name, TinkerZipOutputStream out) throws IOException {
+        TinkerZipEntry newZipEntry = newApk.getEntry(name);
+        if (newZipEntry != null) {
+            TinkerZipUtil.extractTinkerEntry(newApk, newZipEntry, out);
+            return;
+        }
+        File resultFile = new File(resultDir, name);
+        if (!resultFile.isFile()) {
+            throw new TinkerPatchException(
+                String.format("can't found resource file %s from new apk file %s", name, newApk.getName())
+            );
+        }
+        TinkerZipUtil.extractLargeModifyFile(new TinkerZipEntry(name), resultFile, FileOperation.getFileCrc32(resultFile), out);
+    }
+
     public static String getResourceMeta(String baseCrc, String md5) {
         return TypedValue.RES_OUT + "," + baseCrc + "," + md5;
     }
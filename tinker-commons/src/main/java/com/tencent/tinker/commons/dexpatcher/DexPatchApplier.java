@@ -50,12 +50,10 @@ import com.tencent.tinker.commons.dexpatcher.algorithms.patch.StringDataSectionP
 import com.tencent.tinker.commons.dexpatcher.algorithms.patch.TypeIdSectionPatchAlgorithm;
 import com.tencent.tinker.commons.dexpatcher.algorithms.patch.TypeListSectionPatchAlgorithm;
 import com.tencent.tinker.commons.dexpatcher.struct.DexPatchFile;
+import com.tencent.tinker.commons.dexpatcher.util.DenseIndexMap;
 import com.tencent.tinker.commons.dexpatcher.util.SparseIndexMap;
-import com.tencent.tinker.commons.util.IOHelper;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -67,7 +65,7 @@ import java.util.Arrays;
 // 真正处理dex文件的地方
 public class DexPatchApplier {
     private final Dex oldDex;
-    private final Dex patchedDex;
+    private Dex patchedDex;
 
     private final DexPatchFile patchFile;
 
@@ -103,12 +101,41 @@ public class DexPatchApplier {
     ) {
         this.oldDex = oldDexIn;
         this.patchFile = patchFileIn;
-        this.patchedDex = new Dex(patchFileIn.getPatchedDexSize());
-        this.oldToPatchedIndexMap = new SparseIndexMap();
+        this.oldToPatchedIndexMap = new DenseIndexMap(oldDexIn.getTableOfContents());
     }
 
     // 真正处理dex文件的地方
     public void executeAndSaveTo(OutputStream out) throws IOException {
+        checkOldDexSignature();
+        this.patchedDex = new Dex(this.patchFile.getPatchedDexSize());
+        execute();
+
+        // Finally, write patched dex to file.
+        this.patchedDex.writeTo(out);
+    }
+
+    /**
+     * Patched dex is mapped onto {@code file} and written in place, so
+     * it never needs a heap copy as large as the whole patched dex.
+     * {@code file} is deleted if patching fails.
+     */
+    public void executeAndSaveTo(File file) throws IOException {
+        checkOldDexSignature();
+        this.patchedDex = Dex.createMapped(file, this.patchFile.getPatchedDexSize());
+        boolean isSaved = false;
+        try {
+            execute();
+            this.patchedDex.flush();
+            isSaved = true;
+        } finally {
+            if (!isSaved) {
+                this.patchedDex = null;
+                file.delete();
+            }
+        }
+    }
+
+    private void checkOldDexSignature() throws IOException {
         // Before executing, we should check if this patch can be applied to
         // old dex we passed in.
         byte[] oldDexSign = this.oldDex.computeSignature(false);
@@ -128,7 +155,9 @@ public class DexPatchApplier {
                     )
             );
         }
+    }
 
+    private void execute() throws IOException {
         // Firstly, set sections' offset after patched, sort according to their offset so that
         // the dex lib of aosp can calculate section size.
         TableOfContents patchedToc = this.patchedDex.getTableOfContents();
@@ -250,18 +279,5 @@ public class DexPatchApplier {
         patchedToc.writeMap(mapListOut);
 
         this.patchedDex.writeHashes();
-
-        // Finally, write patched dex to file.
-        this.patchedDex.writeTo(out);
-    }
-
-    public void executeAndSaveTo(File file) throws IOException {
-        OutputStream os = null;
-        try {
-            os = new BufferedOutputStream(new FileOutputStream(file));
-            executeAndSaveTo(os);
-        } finally {
-            IOHelper.closeQuietly(os);
-        }
     }
 }
@@ -33,11 +33,10 @@ import com.tencent.tinker.android.dex.Leb128;
 import com.tencent.tinker.android.dex.MethodId;
 import com.tencent.tinker.android.dex.ProtoId;
 import com.tencent.tinker.android.dex.TypeList;
-import com.tencent.tinker.android.dex.util.ByteInput;
+import com.tencent.tinker.android.dex.util.ByteArrayInput;
+import com.tencent.tinker.android.dex.util.ByteArrayOutput;
 import com.tencent.tinker.android.dex.util.ByteOutput;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 
 /**
  * Created by tangyinsheng on 2016/6/29.
@@ -46,6 +45,19 @@ import java.io.ByteArrayOutputStream;
  */
 
 public abstract class AbstractIndexMap {
+    /**
+     * Per-thread scratch for re-encoding debug info and encoded values. An index map may be
+     * shared by section diffs running on different threads, so the scratch must not be a
+     * plain field.
+     */
+    private final ThreadLocal<ByteArrayOutput> scratchOut = new ThreadLocal<ByteArrayOutput>() {
+        @Override
+        protected ByteArrayOutput initialValue() {
+            return new ByteArrayOutput(512);
+        }
+    };
+
+    private final InstructionTransformer instructionTransformer = new InstructionTransformer(this);
 
     public abstract int adjustStringIndex(int stringIndex);
 
@@ -75,6 +87,12 @@ public abstract class AbstractIndexMap {
 
     public abstract int adjustCodeOffset(int codeOffset);
 
+    private ByteArrayOutput acquireScratch() {
+        ByteArrayOutput out = scratchOut.get();
+        out.reset();
+        return out;
+    }
+
     public TypeList adjust(TypeList typeList) {
         if (typeList == TypeList.EMPTY) {
             return typeList;
@@ -153,8 +171,7 @@ public abstract class AbstractIndexMap {
         if (instructions == null || instructions.length == 0) {
             return instructions;
         }
-        InstructionTransformer insTrans = new InstructionTransformer(this);
-        return insTrans.transform(instructions);
+        return instructionTransformer.transform(instructions);
     }
 
     private Code.CatchHandler[] adjustCatchHandlers(Code.CatchHandler[] catchHandlers) {
@@ -218,68 +235,53 @@ public abstract class AbstractIndexMap {
     }
 
     private byte[] adjustDebugInfoItemSTM(byte[] infoSTM) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(infoSTM);
-        final ByteArrayInputStream baisRef = bais;
-        ByteInput inAdapter = new ByteInput() {
-            @Override
-            public byte readByte() {
-                return (byte) (baisRef.read() & 0xFF);
-            }
-        };
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(infoSTM.length + 512);
-        final ByteArrayOutputStream baosRef = baos;
-        ByteOutput outAdapter = new ByteOutput() {
-            @Override
-            public void writeByte(int i) {
-                baosRef.write(i);
-            }
-        };
+        ByteArrayInput in = new ByteArrayInput(infoSTM);
+        ByteArrayOutput out = acquireScratch();
 
         outside_whileloop:
         while (true) {
-            int opcode = bais.read() & 0xFF;
-            baos.write(opcode);
+            int opcode = in.readByte() & 0xFF;
+            out.writeByte(opcode);
             switch (opcode) {
                 case DebugInfoItem.DBG_END_SEQUENCE: {
                     break outside_whileloop;
                 }
                 case DebugInfoItem.DBG_ADVANCE_PC: {
-                    int addrDiff = Leb128.readUnsignedLeb128(inAdapter);
-                    Leb128.writeUnsignedLeb128(outAdapter, addrDiff);
+                    int addrDiff = Leb128.readUnsignedLeb128(in);
+                    Leb128.writeUnsignedLeb128(out, addrDiff);
                     break;
                 }
                 case DebugInfoItem.DBG_ADVANCE_LINE: {
-                    int lineDiff = Leb128.readSignedLeb128(inAdapter);
-                    Leb128.writeSignedLeb128(outAdapter, lineDiff);
+                    int lineDiff = Leb128.readSignedLeb128(in);
+                    Leb128.writeSignedLeb128(out, lineDiff);
                     break;
                 }
                 case DebugInfoItem.DBG_START_LOCAL:
                 case DebugInfoItem.DBG_START_LOCAL_EXTENDED: {
-                    int registerNum = Leb128.readUnsignedLeb128(inAdapter);
-                    Leb128.writeUnsignedLeb128(outAdapter, registerNum);
+                    int registerNum = Leb128.readUnsignedLeb128(in);
+                    Leb128.writeUnsignedLeb128(out, registerNum);
 
-                    int nameIndex = adjustStringIndex(Leb128.readUnsignedLeb128p1(inAdapter));
-                    Leb128.writeUnsignedLeb128p1(outAdapter, nameIndex);
+                    int nameIndex = adjustStringIndex(Leb128.readUnsignedLeb128p1(in));
+                    Leb128.writeUnsignedLeb128p1(out, nameIndex);
 
-                    int typeIndex = adjustTypeIdIndex(Leb128.readUnsignedLeb128p1(inAdapter));
-                    Leb128.writeUnsignedLeb128p1(outAdapter, typeIndex);
+                    int typeIndex = adjustTypeIdIndex(Leb128.readUnsignedLeb128p1(in));
+                    Leb128.writeUnsignedLeb128p1(out, typeIndex);
 
                     if (opcode == DebugInfoItem.DBG_START_LOCAL_EXTENDED) {
-                        int sigIndex = adjustStringIndex(Leb128.readUnsignedLeb128p1(inAdapter));
-                        Leb128.writeUnsignedLeb128p1(outAdapter, sigIndex);
+                        int sigIndex = adjustStringIndex(Leb128.readUnsignedLeb128p1(in));
+                        Leb128.writeUnsignedLeb128p1(out, sigIndex);
                     }
                     break;
                 }
                 case DebugInfoItem.DBG_END_LOCAL:
                 case DebugInfoItem.DBG_RESTART_LOCAL: {
-                    int registerNum = Leb128.readUnsignedLeb128(inAdapter);
-                    Leb128.writeUnsignedLeb128(outAdapter, registerNum);
+                    int registerNum = Leb128.readUnsignedLeb128(in);
+                    Leb128.writeUnsignedLeb128(out, registerNum);
                     break;
                 }
                 case DebugInfoItem.DBG_SET_FILE: {
-                    int nameIndex = adjustStringIndex(Leb128.readUnsignedLeb128p1(inAdapter));
-                    Leb128.writeUnsignedLeb128p1(outAdapter, nameIndex);
+                    int nameIndex = adjustStringIndex(Leb128.readUnsignedLeb128p1(in));
+                    Leb128.writeUnsignedLeb128p1(out, nameIndex);
                     break;
                 }
                 case DebugInfoItem.DBG_SET_PROLOGUE_END:
@@ -290,38 +292,24 @@ public abstract class AbstractIndexMap {
             }
         }
 
-        return baos.toByteArray();
+        return out.toByteArray();
     }
 
     public EncodedValue adjust(EncodedValue encodedArray) {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream(encodedArray.data.length);
-        new EncodedValueTransformer(
-                new ByteOutput() {
-                    @Override
-                    public void writeByte(int i) {
-                        baos.write(i);
-                    }
-                }
-        ).transformArray(
+        ByteArrayOutput out = acquireScratch();
+        new EncodedValueTransformer(out).transformArray(
                 new EncodedValueReader(encodedArray, EncodedValueReader.ENCODED_ARRAY)
         );
-        return new EncodedValue(encodedArray.off, baos.toByteArray());
+        return new EncodedValue(encodedArray.off, out.toByteArray());
     }
 
     public Annotation adjust(Annotation annotation) {
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream(annotation.encodedAnnotation.data.length);
-        new EncodedValueTransformer(
-                new ByteOutput() {
-                    @Override
-                    public void writeByte(int i) {
-                        baos.write(i);
-                    }
-                }
-        ).transformAnnotation(annotation.getReader());
+        ByteArrayOutput out = acquireScratch();
+        new EncodedValueTransformer(out).transformAnnotation(annotation.getReader());
         return new Annotation(
                 annotation.off,
                 annotation.visibility,
-                new EncodedValue(annotation.encodedAnnotation.off, baos.toByteArray())
+                new EncodedValue(annotation.encodedAnnotation.off, out.toByteArray())
         );
     }
 
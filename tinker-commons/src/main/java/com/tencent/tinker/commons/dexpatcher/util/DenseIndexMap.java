@@ -0,0 +1,187 @@
+/*
+ * Tencent is pleased to support the open source community by making Tinker available.
+ *
+ * Copyright (C) 2016 THL A29 Limited, a Tencent company. All rights reserved.
+ *
+ * Licensed under the BSD 3-Clause License (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ * https://opensource.org/licenses/BSD-3-Clause
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" basis, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tencent.tinker.commons.dexpatcher.util;
+
+import com.tencent.tinker.android.dex.TableOfContents;
+
+import java.util.Arrays;
+
+/**
+ * {@link SparseIndexMap} whose string, type, proto, field and method id maps are
+ * flat int tables sized from the old dex's {@link TableOfContents}, so adjusting
+ * an index is an array load instead of a binary search.
+ *
+ * Offsets are not dense and still go to the sparse maps, as do indices
+ * outside the old dex's id sections.
+ */
+public class DenseIndexMap extends SparseIndexMap {
+    private final DenseTable stringIds;
+    private final DenseTable typeIds;
+    private final DenseTable protoIds;
+    private final DenseTable fieldIds;
+    private final DenseTable methodIds;
+
+    public DenseIndexMap(TableOfContents oldToc) {
+        this.stringIds = new DenseTable(oldToc.stringIds.size);
+        this.typeIds = new DenseTable(oldToc.typeIds.size);
+        this.protoIds = new DenseTable(oldToc.protoIds.size);
+        this.fieldIds = new DenseTable(oldToc.fieldIds.size);
+        this.methodIds = new DenseTable(oldToc.methodIds.size);
+    }
+
+    @Override
+    public void mapStringIds(int oldIndex, int newIndex) {
+        if (!stringIds.map(oldIndex, newIndex)) {
+            super.mapStringIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markStringIdDeleted(int index) {
+        if (!stringIds.markDeleted(index)) {
+            super.markStringIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapTypeIds(int oldIndex, int newIndex) {
+        if (!typeIds.map(oldIndex, newIndex)) {
+            super.mapTypeIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markTypeIdDeleted(int index) {
+        if (!typeIds.markDeleted(index)) {
+            super.markTypeIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapProtoIds(int oldIndex, int newIndex) {
+        if (!protoIds.map(oldIndex, newIndex)) {
+            super.mapProtoIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markProtoIdDeleted(int index) {
+        if (!protoIds.markDeleted(index)) {
+            super.markProtoIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapFieldIds(int oldIndex, int newIndex) {
+        if (!fieldIds.map(oldIndex, newIndex)) {
+            super.mapFieldIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markFieldIdDeleted(int index) {
+        if (!fieldIds.markDeleted(index)) {
+            super.markFieldIdDeleted(index);
+        }
+    }
+
+    @Override
+    public void mapMethodIds(int oldIndex, int newIndex) {
+        if (!methodIds.map(oldIndex, newIndex)) {
+            super.mapMethodIds(oldIndex, newIndex);
+        }
+    }
+
+    @Override
+    public void markMethodIdDeleted(int index) {
+        if (!methodIds.markDeleted(index)) {
+            super.markMethodIdDeleted(index);
+        }
+    }
+
+    @Override
+    public int adjustStringIndex(int stringIndex) {
+        return stringIds.contains(stringIndex) ? stringIds.adjust(stringIndex) : super.adjustStringIndex(stringIndex);
+    }
+
+    @Override
+    public int adjustTypeIdIndex(int typeIdIndex) {
+        return typeIds.contains(typeIdIndex) ? typeIds.adjust(typeIdIndex) : super.adjustTypeIdIndex(typeIdIndex);
+    }
+
+    @Override
+    public int adjustProtoIdIndex(int protoIndex) {
+        return protoIds.contains(protoIndex) ? protoIds.adjust(protoIndex) : super.adjustProtoIdIndex(protoIndex);
+    }
+
+    @Override
+    public int adjustFieldIdIndex(int fieldIndex) {
+        return fieldIds.contains(fieldIndex) ? fieldIds.adjust(fieldIndex) : super.adjustFieldIdIndex(fieldIndex);
+    }
+
+    @Override
+    public int adjustMethodIdIndex(int methodIndex) {
+        return methodIds.contains(methodIndex) ? methodIds.adjust(methodIndex) : super.adjustMethodIdIndex(methodIndex);
+    }
+
+    /**
+     * Index table with two sentinels, like the sparse maps a mapped index wins over
+     * a deleted one no matter which is recorded first.
+     */
+    private static final class DenseTable {
+        private static final int NOT_MAPPED = Integer.MIN_VALUE;
+        private static final int DELETED = Integer.MIN_VALUE + 1;
+
+        private final int[] values;
+
+        DenseTable(int size) {
+            this.values = new int[Math.max(size, 0)];
+            Arrays.fill(this.values, NOT_MAPPED);
+        }
+
+        boolean contains(int index) {
+            return index >= 0 && index < values.length;
+        }
+
+        boolean map(int oldIndex, int newIndex) {
+            if (!contains(oldIndex)) {
+                return false;
+            }
+            values[oldIndex] = newIndex;
+            return true;
+        }
+
+        boolean markDeleted(int index) {
+            if (!contains(index)) {
+                return false;
+            }
+            if (values[index] == NOT_MAPPED) {
+                values[index] = DELETED;
+            }
+            return true;
+        }
+
+        int adjust(int index) {
+            int value = values[index];
+            if (value == NOT_MAPPED) {
+                return index;
+            }
+            return (value == DELETED ? -1 : value);
+        }
+    }
+}